@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.api.csv;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One sample of the sync metrics (see {@link CsvSyncService#getMetrics()}), the samples with the same
+ * name make up one metric (e.g. one sample per handler or per quantile), this maps directly onto
+ * the Prometheus text exposition format without tying the API to a metrics library
+ */
+public class CsvSyncMetric {
+
+    public static final String TYPE_COUNTER = "counter";
+    public static final String TYPE_GAUGE = "gauge";
+    public static final String TYPE_SUMMARY = "summary";
+
+    private final String name;
+    private final String type;
+    private final String help;
+    private final Map<String, String> labels = new LinkedHashMap<String, String>();
+    private final double value;
+
+    /**
+     * @param name the metric name (e.g. sakora_sync_handler_rows_per_second), the _sum and _count samples of
+     * a summary use the summary name with the suffix
+     * @param type {@link #TYPE_COUNTER}, {@link #TYPE_GAUGE} or {@link #TYPE_SUMMARY}
+     * @param help the description of the metric
+     * @param value the sample value
+     */
+    public CsvSyncMetric(String name, String type, String help, double value) {
+        this.name = name;
+        this.type = type;
+        this.help = help;
+        this.value = value;
+    }
+
+    /**
+     * @param name the label name
+     * @param value the label value
+     * @return this sample (for chaining)
+     */
+    public CsvSyncMetric label(String name, String value) {
+        labels.put(name, value);
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    public Map<String, String> getLabels() {
+        return Collections.unmodifiableMap(labels);
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return name + labels + " " + value;
+    }
+
+}
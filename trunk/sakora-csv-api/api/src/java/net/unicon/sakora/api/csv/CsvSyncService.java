@@ -18,10 +18,97 @@
  */
 package net.unicon.sakora.api.csv;
 
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import net.unicon.sakora.api.csv.model.SakoraRun;
+import net.unicon.sakora.api.csv.model.SakoraRunHandler;
+
 public interface CsvSyncService {
 
 	public static final String SYNC_CONTEXT_PROPERTY_KEY_PREFIX = "csv-sync::";
 	public String getBatchUploadDir();
 	public void sync(CsvSyncContext context);
+
+	/**
+	 * @return true if a sync is currently running on this server
+	 */
+	public boolean isSyncRunning();
+
+	/**
+	 * Creates a new upload staging dir in the batch upload dir, the uploaded csv files are written
+	 * to it and then it is published for processing with {@link #commitUploadBatch(String, Map)}
+	 * 
+	 * @return the path of the new (uncommitted) upload staging dir
+	 * @throws IOException if the dir cannot be created
+	 */
+	public String createUploadBatch() throws IOException;
+
+	/**
+	 * Queues an upload batch for processing, batches are never processed before they are committed.
+	 * Writes the batch manifest (files, sizes and hashes) and then publishes the batch with an atomic rename.
+	 * 
+	 * @param uploadBatchDir the path from {@link #createUploadBatch()}
+	 * @param properties sync context overrides for the run which processes this batch (may be null)
+	 * @throws IOException if the batch cannot be committed
+	 */
+	public void commitUploadBatch(String uploadBatchDir, Map<String, String> properties) throws IOException;
+
+	/**
+	 * Removes an upload staging dir which is not going to be committed (e.g. an upload which was only planned)
+	 * 
+	 * @param uploadBatchDir the path from {@link #createUploadBatch()}
+	 * @throws IOException if the dir cannot be removed
+	 */
+	public void discardUploadBatch(String uploadBatchDir) throws IOException;
+
+	/**
+	 * Plan mode (dry run): works out what processing a batch would change without changing anything
+	 * (CM, users and the tracking tables are only read) and reports the adds, updates and removals
+	 * for each feed file along with warnings for unusually large removals (e.g. a truncated feed).
+	 * No sync can start while a batch is being planned.
+	 * 
+	 * @param batchDir the dir which holds the feed files, null for the next batch to be processed
+	 * @param properties sync context overrides to plan with (may be null), the overrides stored with a queued batch are used otherwise
+	 * @return the change set report
+	 * @throws IOException if the batch cannot be read or a sync is running
+	 */
+	public String plan(String batchDir, Map<String, String> properties) throws IOException;
+
+	/**
+	 * Run history (SAKORA_RUN) for trend analysis, e.g. rows/sec and duration per run over time
+	 * 
+	 * @param since only runs started at or after this time, null for all runs
+	 * @param max the max number of runs to return (newest first), 0 for no limit
+	 * @return the runs, newest first
+	 */
+	public List<SakoraRun> getRunHistory(Date since, int max);
+
+	/**
+	 * Handler history (SAKORA_RUN_HANDLER) for trend analysis, e.g. the rows/sec of one handler across releases
+	 * 
+	 * @param handler the handler name (e.g. Person), null for all handlers
+	 * @param since only handlers started at or after this time, null for all
+	 * @param max the max number of entries to return (newest first), 0 for no limit
+	 * @return the handler entries, newest first
+	 */
+	public List<SakoraRunHandler> getRunHandlerHistory(String handler, Date since, int max);
+
+	/**
+	 * @param runId the run history id ({@link SakoraRun#getId()})
+	 * @return the handlers of the run in processing order
+	 */
+	public List<SakoraRunHandler> getRunHandlers(long runId);
+
+	/**
+	 * Current sync metrics for monitoring: rows/sec and counts per handler for the last run, the latency quantiles
+	 * of the handler phases and external calls, upload throughput, time since the last successful sync and the
+	 * tracking table sizes
+	 * 
+	 * @return the metric samples, the samples of one metric are together
+	 */
+	public List<CsvSyncMetric> getMetrics();
 	
 }
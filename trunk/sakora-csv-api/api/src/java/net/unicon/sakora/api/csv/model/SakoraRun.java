@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.api.csv.model;
+
+import java.util.Date;
+
+/**
+ * One sync run in the run history (SAKORA_RUN), the totals are filled in when the run completes
+ */
+public class SakoraRun {
+
+	private long id;
+	private String runId; // the sync run id ({run counter}:{start seconds})
+	private String serverId;
+	private String batch; // the processed batch dir name
+	private String handlers; // the selected handlers, null for all
+	private String status; // running, complete or failed
+	private Date startTime;
+	private Date endTime;
+	private int seconds;
+	private int lines;
+	private int errors;
+	private int adds;
+	private int updates;
+	private int deletes;
+	private long bytes; // input bytes read
+	private double rowsPerSecond;
+
+	public SakoraRun() {}
+
+	public SakoraRun(String runId, String serverId, String handlers, Date startTime) {
+		this.runId = runId;
+		this.serverId = serverId;
+		this.handlers = handlers;
+		this.startTime = startTime;
+		this.status = "running";
+	}
+
+	public long getId() {
+		return id;
+	}
+	public void setId(long id) {
+		this.id = id;
+	}
+	public String getRunId() {
+		return runId;
+	}
+	public void setRunId(String runId) {
+		this.runId = runId;
+	}
+	public String getServerId() {
+		return serverId;
+	}
+	public void setServerId(String serverId) {
+		this.serverId = serverId;
+	}
+	public String getBatch() {
+		return batch;
+	}
+	public void setBatch(String batch) {
+		this.batch = batch;
+	}
+	public String getHandlers() {
+		return handlers;
+	}
+	public void setHandlers(String handlers) {
+		this.handlers = handlers;
+	}
+	public String getStatus() {
+		return status;
+	}
+	public void setStatus(String status) {
+		this.status = status;
+	}
+	public Date getStartTime() {
+		return startTime;
+	}
+	public void setStartTime(Date startTime) {
+		this.startTime = startTime;
+	}
+	public Date getEndTime() {
+		return endTime;
+	}
+	public void setEndTime(Date endTime) {
+		this.endTime = endTime;
+	}
+	public int getSeconds() {
+		return seconds;
+	}
+	public void setSeconds(int seconds) {
+		this.seconds = seconds;
+	}
+	public int getLines() {
+		return lines;
+	}
+	public void setLines(int lines) {
+		this.lines = lines;
+	}
+	public int getErrors() {
+		return errors;
+	}
+	public void setErrors(int errors) {
+		this.errors = errors;
+	}
+	public int getAdds() {
+		return adds;
+	}
+	public void setAdds(int adds) {
+		this.adds = adds;
+	}
+	public int getUpdates() {
+		return updates;
+	}
+	public void setUpdates(int updates) {
+		this.updates = updates;
+	}
+	public int getDeletes() {
+		return deletes;
+	}
+	public void setDeletes(int deletes) {
+		this.deletes = deletes;
+	}
+	public long getBytes() {
+		return bytes;
+	}
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+	public double getRowsPerSecond() {
+		return rowsPerSecond;
+	}
+	public void setRowsPerSecond(double rowsPerSecond) {
+		this.rowsPerSecond = rowsPerSecond;
+	}
+}
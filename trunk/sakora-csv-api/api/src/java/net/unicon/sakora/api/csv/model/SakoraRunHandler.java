@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.api.csv.model;
+
+import java.util.Date;
+
+/**
+ * One handler of a sync run in the run history (SAKORA_RUN_HANDLER), written when the handler is done
+ */
+public class SakoraRunHandler {
+
+	private long id;
+	private long runId; // SAKORA_RUN.ID
+	private String handler;
+	private String status; // complete or failed
+	private Date startTime;
+	private Date endTime;
+	private int seconds;
+	private int lines;
+	private int errors;
+	private int adds;
+	private int updates;
+	private int deletes;
+	private long bytes; // input bytes read
+	private double rowsPerSecond;
+	private int compacted; // tracking records compacted
+	private int trackingFailures; // tracking writes which failed (also counted in errors)
+	private int cpuMillis = -1; // handler CPU time, -1 if not measured
+	private long allocatedBytes = -1L; // bytes allocated by the handler, -1 if not measured
+
+	public SakoraRunHandler() {}
+
+	public SakoraRunHandler(long runId, String handler, String status) {
+		this.runId = runId;
+		this.handler = handler;
+		this.status = status;
+	}
+
+	public long getId() {
+		return id;
+	}
+	public void setId(long id) {
+		this.id = id;
+	}
+	public long getRunId() {
+		return runId;
+	}
+	public void setRunId(long runId) {
+		this.runId = runId;
+	}
+	public String getHandler() {
+		return handler;
+	}
+	public void setHandler(String handler) {
+		this.handler = handler;
+	}
+	public String getStatus() {
+		return status;
+	}
+	public void setStatus(String status) {
+		this.status = status;
+	}
+	public Date getStartTime() {
+		return startTime;
+	}
+	public void setStartTime(Date startTime) {
+		this.startTime = startTime;
+	}
+	public Date getEndTime() {
+		return endTime;
+	}
+	public void setEndTime(Date endTime) {
+		this.endTime = endTime;
+	}
+	public int getSeconds() {
+		return seconds;
+	}
+	public void setSeconds(int seconds) {
+		this.seconds = seconds;
+	}
+	public int getLines() {
+		return lines;
+	}
+	public void setLines(int lines) {
+		this.lines = lines;
+	}
+	public int getErrors() {
+		return errors;
+	}
+	public void setErrors(int errors) {
+		this.errors = errors;
+	}
+	public int getAdds() {
+		return adds;
+	}
+	public void setAdds(int adds) {
+		this.adds = adds;
+	}
+	public int getUpdates() {
+		return updates;
+	}
+	public void setUpdates(int updates) {
+		this.updates = updates;
+	}
+	public int getDeletes() {
+		return deletes;
+	}
+	public void setDeletes(int deletes) {
+		this.deletes = deletes;
+	}
+	public long getBytes() {
+		return bytes;
+	}
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+	public double getRowsPerSecond() {
+		return rowsPerSecond;
+	}
+	public void setRowsPerSecond(double rowsPerSecond) {
+		this.rowsPerSecond = rowsPerSecond;
+	}
+	public int getCompacted() {
+		return compacted;
+	}
+	public void setCompacted(int compacted) {
+		this.compacted = compacted;
+	}
+	public int getTrackingFailures() {
+		return trackingFailures;
+	}
+	public void setTrackingFailures(int trackingFailures) {
+		this.trackingFailures = trackingFailures;
+	}
+	public int getCpuMillis() {
+		return cpuMillis;
+	}
+	public void setCpuMillis(int cpuMillis) {
+		this.cpuMillis = cpuMillis;
+	}
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+	public void setAllocatedBytes(long allocatedBytes) {
+		this.allocatedBytes = allocatedBytes;
+	}
+}
@@ -21,10 +21,15 @@ package net.unicon.sakora.impl.csv;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import net.unicon.sakora.api.csv.CsvSyncContext;
 import net.unicon.sakora.api.csv.model.Session;
+import net.unicon.sakora.impl.csv.dao.CsvTrackingBatch;
+import net.unicon.sakora.impl.csv.dao.CsvTrackingDao;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,15 +48,37 @@ import org.sakaiproject.genericdao.api.search.Search;
 public class CsvAcademicSessionHandler extends CsvHandlerBase {
 	static final Log log = LogFactory.getLog(CsvAcademicSessionHandler.class);
 
+	// delta input only: sessions added to (or removed from) the current sessions by this feed
+	private Set<String> deltaCurrent = new HashSet<String>();
+	private Set<String> deltaRemoved = new HashSet<String>();
+
+	@Override
+	public void before(CsvSyncContext context) {
+	    super.before(context);
+	    deltaCurrent.clear();
+	    deltaRemoved.clear();
+	}
+
 	@Override
 	public String getName() {
 	    return "AcademicSession";
 	}
 
+	@Override
+	protected int getMinFieldCount() {
+	    return 5;
+	}
+
+	@Override
+	protected boolean isResumable() {
+	    // the current sessions are only set once the whole file is read
+	    return false;
+	}
+
 	@Override
 	protected void readInputLine(CsvSyncContext context, String[] line) {
 		
-		final int minFieldCount = 5;
+		final int minFieldCount = getMinFieldCount();
 
 		if (line != null && line.length >= minFieldCount) {
 			line = trimAll(line);
@@ -83,15 +110,17 @@ public class CsvAcademicSessionHandler extends CsvHandlerBase {
 				cmAdmin.createAcademicSession(eid, title, description, startDate, endDate);
 				adds++;
 			}
-			Search search = new Search();
-			search.addRestriction(new Restriction("eid", eid));
-			Session existing = dao.findOneBySearch(Session.class, search);
-			if (existing != null) {
-				existing.setInputTime(time);
-				dao.update(existing);
-			} else {
-				dao.create(new Session(eid, time));
+			if (isDeltaInput()) {
+				deltaCurrent.add(eid);
+				deltaRemoved.remove(eid);
 			}
+			final String sessionEid = eid;
+			final Date sessionTime = time;
+			addTrackingWrite(new CsvTrackingBatch.TrackingWrite() {
+				public void write(CsvTrackingDao dao) {
+					dao.saveSession(sessionEid, sessionTime);
+				}
+			});
 		} else {
 			log.error("SakoraCSV Skipping short line (expected at least [" + minFieldCount + 
 					"] fields): [" + (line == null ? null : Arrays.toString(line)) + "]");
@@ -99,8 +128,29 @@ public class CsvAcademicSessionHandler extends CsvHandlerBase {
 		}
 	}
 	
+	/**
+	 * A removed session is no longer current (same as a session missing from a snapshot),
+	 * the session itself is left in CM
+	 */
+	@Override
+	protected void readDeleteLine(CsvSyncContext context, String[] line) {
+		if (line == null || line.length < 1 || line[0] == null || "".equals(line[0].trim())) {
+			log.error("SakoraCSV Skipping removal line without a session eid: [" + (line == null ? null : Arrays.toString(line)) + "]");
+			errors++;
+			return;
+		}
+		String eid = line[0].trim();
+		deltaRemoved.add(eid);
+		deltaCurrent.remove(eid);
+		deletes++;
+	}
+
 	@Override
 	protected void processInternal(CsvSyncContext context) {
+		if (isDeltaInput()) {
+			processDelta();
+			return;
+		}
 		loginToSakai();
 
 		ArrayList<String> currentSessions = new ArrayList<String>();
@@ -137,4 +187,27 @@ public class CsvAcademicSessionHandler extends CsvHandlerBase {
 		logoutFromSakai();
 	}
 
+	/**
+	 * Delta input: the current sessions are the sessions which are current in CM plus the added
+	 * or updated sessions minus the removed ones
+	 */
+	private void processDelta() {
+		loginToSakai();
+		Set<String> currentSessions = new LinkedHashSet<String>();
+		List<AcademicSession> sessions = cmService.getCurrentAcademicSessions();
+		if (sessions != null) {
+			for (AcademicSession session : sessions) {
+				currentSessions.add(session.getEid());
+			}
+		}
+		currentSessions.addAll(deltaCurrent);
+		currentSessions.removeAll(deltaRemoved);
+		if (currentSessions.isEmpty()) {
+			log.warn("SakoraCSV delta feed removed all current academic sessions");
+		}
+		cmAdmin.setCurrentAcademicSessions(new ArrayList<String>(currentSessions));
+		commonHandlerService.setCurrentAcademicSessions( currentSessions.toArray(new String[currentSessions.size()]) );
+		logoutFromSakai();
+	}
+
 }
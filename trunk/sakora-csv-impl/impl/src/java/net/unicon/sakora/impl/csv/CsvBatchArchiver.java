@@ -0,0 +1,356 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Housekeeping for the batch upload dir.
+ * 
+ * Processed batch dirs (finished, failed) and the dirs taken out of the upload queue (superseded, failed, invalid)
+ * are moved into the archive tree (sakora-csv-archive/{yyyy-MM}/) so the upload dir only holds the current batches,
+ * the most recent finished batches and the newest finished snapshot of each feed file are kept in the upload dir
+ * uncompressed (they are the previous batch for diffMode).
+ * Staging dirs of uploads which were never committed are archived (abandoned suffix) once they are old enough.
+ * 
+ * Archiving is only renames (cheap enough to do after every sync), the archived files are gzipped
+ * by {@link #compress()} and archived batches older than the retention are removed by {@link #prune()}.
+ */
+public class CsvBatchArchiver {
+
+    private static final Log log = LogFactory.getLog(CsvBatchArchiver.class);
+
+    public static final String ARCHIVE_DIR_NAME = "sakora-csv-archive";
+    public static final String ABANDONED_BATCH_DIR_SUFFIX = "-abandoned";
+    public static final String COMPRESSED_SUFFIX = ".gz";
+
+    private static final long HOUR_MILLIS = 60L * 60L * 1000L;
+    private static final long DAY_MILLIS = 24L * HOUR_MILLIS;
+
+    private final File uploadDir;
+    private int keepFinished = 3;
+    private int abandonedStagingHours = 24;
+    private int retentionDays = 0;
+
+    public CsvBatchArchiver(String batchUploadDir) {
+        this.uploadDir = new File(batchUploadDir);
+    }
+
+    /**
+     * Moves all the old batch dirs from the upload dir into the archive tree
+     * 
+     * @return the number of batch dirs archived
+     */
+    public int archive() {
+        File[] dirs = uploadDir.listFiles();
+        if ( dirs == null ) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        // the failed batch which can still be resumed stays in place
+        File resumable = CsvSyncServiceImpl.findResumableBatch(uploadDir.getPath());
+        List<BatchDir> finished = new ArrayList<BatchDir>();
+        List<BatchDir> archive = new ArrayList<BatchDir>();
+        String processingPrefix = CsvSyncServiceImpl.BATCH_PROCESSING_DIR_BASE_NAME + "-";
+        String uploadPrefix = CsvBatchQueue.UPLOAD_BATCH_DIR_BASE_NAME + "-";
+        String stagingPrefix = CsvBatchQueue.STAGING_BATCH_DIR_BASE_NAME + "-";
+        for (File dir : dirs) {
+            if ( !dir.isDirectory() ) {
+                continue;
+            }
+            String name = dir.getName();
+            if ( name.startsWith(processingPrefix) ) {
+                if ( name.endsWith(CsvSyncServiceImpl.FINISHED_BATCH_PROCESSING_DIR_SUFFIX) ) {
+                    finished.add(new BatchDir(dir, parseTime(name, processingPrefix), name));
+                } else if ( name.endsWith(CsvSyncServiceImpl.FAILED_BATCH_PROCESSING_DIR_SUFFIX) && !dir.equals(resumable) ) {
+                    archive.add(new BatchDir(dir, 0, name));
+                }
+                // anything else is still being processed
+            } else if ( name.startsWith(uploadPrefix) ) {
+                if ( name.endsWith(CsvBatchQueue.SUPERSEDED_BATCH_DIR_SUFFIX)
+                        || name.endsWith(CsvBatchQueue.INVALID_BATCH_DIR_SUFFIX)
+                        || name.endsWith(CsvSyncServiceImpl.FAILED_BATCH_PROCESSING_DIR_SUFFIX) ) {
+                    archive.add(new BatchDir(dir, 0, name));
+                }
+                // committed batches are still queued
+            } else if ( name.startsWith(stagingPrefix) ) {
+                long time = parseTime(name, stagingPrefix);
+                if ( time > 0 && abandonedStagingHours > 0 && now - time > abandonedStagingHours * HOUR_MILLIS ) {
+                    archive.add(new BatchDir(dir, 0, name + ABANDONED_BATCH_DIR_SUFFIX));
+                }
+            }
+        }
+        // newest first, the most recent finished batches stay in place and so does the newest
+        // snapshot of each feed file (a lane batch must not push the only people.csv out of diffMode's reach)
+        Collections.sort(finished);
+        Set<String> snapshotFiles = new HashSet<String>();
+        for (int i = 0; i < finished.size(); i++) {
+            boolean newestSnapshot = false;
+            if ( !new File(finished.get(i).dir, CsvSyncServiceImpl.DELTA_FEED_MARKER_FILE_NAME).exists() ) {
+                for (String fileName : getFeedFileNames(finished.get(i).dir)) {
+                    newestSnapshot |= snapshotFiles.add(fileName);
+                }
+            }
+            if ( i >= Math.max(keepFinished, 0) && !newestSnapshot ) {
+                archive.add(finished.get(i));
+            }
+        }
+        int archived = 0;
+        for (BatchDir batch : archive) {
+            File monthDir = new File(new File(uploadDir, ARCHIVE_DIR_NAME),
+                    new SimpleDateFormat("yyyy-MM").format(new Date(batch.dir.lastModified())));
+            if ( !monthDir.isDirectory() && !monthDir.mkdirs() ) {
+                log.error("SakoraCSV unable to create batch archive dir " + monthDir);
+                break;
+            }
+            File target = new File(monthDir, batch.archiveName);
+            if ( target.exists() || !batch.dir.renameTo(target) ) {
+                log.warn("SakoraCSV unable to archive batch dir " + batch.dir + " to " + target);
+            } else {
+                archived++;
+            }
+        }
+        if ( archived > 0 ) {
+            log.info("SakoraCSV archived " + archived + " batch dirs from " + uploadDir);
+        }
+        return archived;
+    }
+
+    /**
+     * @return the names of the feed files in a batch dir (not the manifest, checkpoint or sort and diff temp files)
+     */
+    private static List<String> getFeedFileNames(File dir) {
+        List<String> names = new ArrayList<String>();
+        File[] files = dir.listFiles();
+        if ( files != null ) {
+            for (File file : files) {
+                String name = file.getName();
+                if ( !file.isFile() || CsvBatchQueue.MANIFEST_FILE_NAME.equals(name)
+                        || CsvSyncCheckpoint.CHECKPOINT_FILE_NAME.equals(name)
+                        || CsvSyncServiceImpl.DELTA_FEED_MARKER_FILE_NAME.equals(name)
+                        || name.contains(CsvFileSorter.SORTED_SUFFIX) || name.contains(CsvFileDiffer.DELTA_SUFFIX) ) {
+                    continue;
+                }
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Gzips all uncompressed files in the archive tree
+     * 
+     * @return the number of files compressed
+     * @throws InterruptedException if the thread is interrupted (stops between files)
+     */
+    public int compress() throws InterruptedException {
+        int compressed = 0;
+        for (File batchDir : listArchivedBatches()) {
+            File[] files = batchDir.listFiles();
+            if ( files == null ) {
+                continue;
+            }
+            for (File file : files) {
+                if ( Thread.interrupted() ) {
+                    throw new InterruptedException("Batch archive compression interrupted");
+                }
+                if ( !file.isFile() || file.getName().endsWith(COMPRESSED_SUFFIX) ) {
+                    continue;
+                }
+                try {
+                    gzip(file);
+                    compressed++;
+                } catch (IOException e) {
+                    log.warn("SakoraCSV unable to compress archived file " + file + ": " + e);
+                }
+            }
+        }
+        if ( compressed > 0 ) {
+            log.info("SakoraCSV compressed " + compressed + " archived batch files");
+        }
+        return compressed;
+    }
+
+    /**
+     * Removes archived batches older than the retention (does nothing if the retention is 0)
+     * 
+     * @return the number of archived batch dirs removed
+     */
+    public int prune() {
+        if ( retentionDays <= 0 ) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - (retentionDays * DAY_MILLIS);
+        int removed = 0;
+        for (File batchDir : listArchivedBatches()) {
+            if ( batchDir.lastModified() < cutoff ) {
+                File[] files = batchDir.listFiles();
+                if ( files != null ) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                if ( batchDir.delete() ) {
+                    removed++;
+                } else {
+                    log.warn("SakoraCSV unable to remove archived batch dir " + batchDir);
+                }
+            }
+        }
+        File[] monthDirs = new File(uploadDir, ARCHIVE_DIR_NAME).listFiles();
+        if ( monthDirs != null ) {
+            for (File monthDir : monthDirs) {
+                String[] left = monthDir.list();
+                if ( left != null && left.length == 0 ) {
+                    monthDir.delete();
+                }
+            }
+        }
+        if ( removed > 0 ) {
+            log.info("SakoraCSV removed " + removed + " archived batch dirs older than " + retentionDays + " days");
+        }
+        return removed;
+    }
+
+    private List<File> listArchivedBatches() {
+        List<File> batches = new ArrayList<File>();
+        File[] monthDirs = new File(uploadDir, ARCHIVE_DIR_NAME).listFiles();
+        if ( monthDirs != null ) {
+            for (File monthDir : monthDirs) {
+                File[] batchDirs = monthDir.listFiles();
+                if ( batchDirs != null ) {
+                    for (File batchDir : batchDirs) {
+                        if ( batchDir.isDirectory() ) {
+                            batches.add(batchDir);
+                        }
+                    }
+                }
+            }
+        }
+        return batches;
+    }
+
+    private void gzip(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + COMPRESSED_SUFFIX + ".tmp");
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ( (read = in.read(buffer)) != -1 ) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+        File gz = new File(file.getParentFile(), file.getName() + COMPRESSED_SUFFIX);
+        if ( !tmp.renameTo(gz) ) {
+            tmp.delete();
+            throw new IOException("Unable to rename " + tmp + " to " + gz);
+        }
+        if ( !file.delete() ) {
+            log.warn("SakoraCSV unable to remove compressed file " + file);
+        }
+    }
+
+    private static long parseTime(String name, String prefix) {
+        int end = name.indexOf('-', prefix.length());
+        try {
+            return Long.parseLong(end < 0 ? name.substring(prefix.length()) : name.substring(prefix.length(), end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public int getKeepFinished() {
+        return keepFinished;
+    }
+
+    /**
+     * @param keepFinished the number of most recent finished batches which stay uncompressed in the upload dir
+     */
+    public void setKeepFinished(int keepFinished) {
+        this.keepFinished = keepFinished;
+    }
+
+    public int getAbandonedStagingHours() {
+        return abandonedStagingHours;
+    }
+
+    /**
+     * @param abandonedStagingHours uncommitted upload staging dirs older than this are archived (0 = never)
+     */
+    public void setAbandonedStagingHours(int abandonedStagingHours) {
+        this.abandonedStagingHours = abandonedStagingHours;
+    }
+
+    public int getRetentionDays() {
+        return retentionDays;
+    }
+
+    /**
+     * @param retentionDays archived batches older than this are removed (0 = keep forever)
+     */
+    public void setRetentionDays(int retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
+    private static class BatchDir implements Comparable<BatchDir> {
+        final File dir;
+        final long time;
+        final String archiveName;
+
+        BatchDir(File dir, long time, String archiveName) {
+            this.dir = dir;
+            this.time = time;
+            this.archiveName = archiveName;
+        }
+
+        public int compareTo(BatchDir other) {
+            // newest first
+            return time < other.time ? 1 : (time == other.time ? 0 : -1);
+        }
+    }
+
+}
@@ -0,0 +1,491 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Queue of uploaded batches in the batch upload dir.
+ * 
+ * Every upload is written to its own staging dir (sakora-csv-staging-{millis}), once the upload is complete
+ * a manifest (batch.manifest) listing the files with their sizes and SHA-1 hashes (and the sync overrides
+ * for that upload) is written and the dir is published with an atomic rename to sakora-csv-upload-{millis}.
+ * Only published (committed) batches are processed, oldest first, and only after the files have been
+ * verified against the manifest (batches which do not match are renamed with the invalid suffix).
+ * 
+ * Consecutive full snapshot batches at the head of the queue are coalesced since only the newest snapshot
+ * matters: the newest copy of each file is kept (older files which the newer batches do not include are
+ * carried forward) and the older batch dirs are archived (renamed with the superseded suffix).
+ * Delta feed batches (deltaFeed) are never coalesced, they are processed one at a time in upload order.
+ * 
+ * Manifest format (java properties):
+ * files=people.csv,sectionMembership.csv
+ * file.people.csv.size=1234
+ * file.people.csv.sha1={hex SHA-1}
+ * override.deltaFeed=true
+ */
+public class CsvBatchQueue {
+
+    private static final Log log = LogFactory.getLog(CsvBatchQueue.class);
+
+    public static final String UPLOAD_BATCH_DIR_BASE_NAME = "sakora-csv-upload";
+    public static final String STAGING_BATCH_DIR_BASE_NAME = "sakora-csv-staging";
+    public static final String MANIFEST_FILE_NAME = "batch.manifest";
+    public static final String SUPERSEDED_BATCH_DIR_SUFFIX = "-superseded";
+    public static final String INVALID_BATCH_DIR_SUFFIX = "-invalid";
+    public static final String DELTA_FEED_PROPERTY = "deltaFeed";
+
+    private static final String MANIFEST_FILES = "files";
+    private static final String MANIFEST_FILE_PREFIX = "file.";
+    private static final String MANIFEST_OVERRIDE_PREFIX = "override.";
+
+    private final File uploadDir;
+    // names of the queued batch dirs which have already been verified against their manifest
+    private final Set<String> verified = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * @param batchUploadDir the batch upload dir
+     */
+    public CsvBatchQueue(String batchUploadDir) {
+        this.uploadDir = new File(batchUploadDir);
+    }
+
+    /**
+     * Create a new staging dir for an upload, the uploaded files should be written to it
+     * and then it must be published with {@link #commit(File, Map)}
+     * 
+     * @return the new staging dir
+     * @throws IOException if the dir cannot be created
+     */
+    public File create() throws IOException {
+        int cnt = 0;
+        while ( cnt++ < 5 ) {
+            long now = System.currentTimeMillis();
+            File dir = new File(uploadDir, STAGING_BATCH_DIR_BASE_NAME + "-" + now);
+            if ( dir.exists() || new File(uploadDir, UPLOAD_BATCH_DIR_BASE_NAME + "-" + now).exists() ) {
+                try {
+                    Thread.sleep(5L);
+                } catch ( InterruptedException e) {}
+                continue;
+            }
+            if ( !(dir.mkdirs()) ) {
+                throw new IOException("Unable to create directory at [" + dir + "]");
+            }
+            return dir;
+        }
+        throw new IOException("Unable to create an upload staging directory after several tries.");
+    }
+
+    /**
+     * Commit an upload: writes the manifest for the files in the staging dir
+     * and then publishes the batch (atomic rename of the staging dir)
+     * 
+     * @param stagingDir the staging dir (from {@link #create()})
+     * @param properties the sync context overrides for this batch (may be null)
+     * @return the published batch dir
+     * @throws IOException if the manifest cannot be written or the batch cannot be published
+     */
+    public File commit(File stagingDir, Map<String, String> properties) throws IOException {
+        if ( stagingDir == null || !stagingDir.isDirectory() ) {
+            throw new IllegalArgumentException("Upload staging dir does not exist: " + stagingDir);
+        }
+        String prefix = STAGING_BATCH_DIR_BASE_NAME + "-";
+        if ( !stagingDir.getName().startsWith(prefix) ) {
+            throw new IllegalArgumentException("Not an upload staging dir: " + stagingDir);
+        }
+        Properties manifest = new Properties();
+        StringBuilder names = new StringBuilder();
+        File[] files = stagingDir.listFiles();
+        if ( files != null ) {
+            for (File file : files) {
+                if ( file.isDirectory() || MANIFEST_FILE_NAME.equals(file.getName()) ) {
+                    continue;
+                }
+                if ( names.length() > 0 ) {
+                    names.append(',');
+                }
+                names.append(file.getName());
+                manifest.setProperty(MANIFEST_FILE_PREFIX + file.getName() + ".size", String.valueOf(file.length()));
+                manifest.setProperty(MANIFEST_FILE_PREFIX + file.getName() + ".sha1", sha1(file));
+            }
+        }
+        manifest.setProperty(MANIFEST_FILES, names.toString());
+        if ( properties != null ) {
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                if ( entry.getValue() != null ) {
+                    manifest.setProperty(MANIFEST_OVERRIDE_PREFIX + entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(stagingDir, MANIFEST_FILE_NAME)));
+        try {
+            manifest.store(out, "SakoraCSV upload batch");
+        } finally {
+            out.close();
+        }
+        // publish, the batch only becomes visible to the sync once it is complete
+        File published = new File(uploadDir, UPLOAD_BATCH_DIR_BASE_NAME + "-" + stagingDir.getName().substring(prefix.length()));
+        if ( published.exists() || !stagingDir.renameTo(published) ) {
+            throw new IOException("Unable to publish upload batch [" + stagingDir + "] to [" + published + "]");
+        }
+        log.info("SakoraCSV committed upload batch " + published.getName() + " with files [" + names + "] " + properties);
+        return published;
+    }
+
+    /**
+     * Discard an upload which is not going to be committed (e.g. it was only planned),
+     * removes the staging dir and the files in it
+     * 
+     * @param stagingDir the staging dir (from {@link #create()})
+     * @throws IOException if the staging dir cannot be removed
+     */
+    public void discard(File stagingDir) throws IOException {
+        if ( stagingDir == null || !stagingDir.isDirectory() ) {
+            return;
+        }
+        if ( !stagingDir.getName().startsWith(STAGING_BATCH_DIR_BASE_NAME + "-") ) {
+            throw new IllegalArgumentException("Not an upload staging dir: " + stagingDir);
+        }
+        File[] files = stagingDir.listFiles();
+        if ( files != null ) {
+            for (File file : files) {
+                if ( !file.delete() ) {
+                    throw new IOException("Unable to delete [" + file + "] from upload staging dir");
+                }
+            }
+        }
+        if ( !stagingDir.delete() ) {
+            throw new IOException("Unable to delete upload staging dir [" + stagingDir + "]");
+        }
+    }
+
+    /**
+     * @return all committed batches in upload order (oldest first)
+     */
+    public List<QueuedBatch> getCommitted() {
+        List<QueuedBatch> batches = new ArrayList<QueuedBatch>();
+        File[] dirs = uploadDir.listFiles();
+        if ( dirs == null ) {
+            return batches;
+        }
+        String prefix = UPLOAD_BATCH_DIR_BASE_NAME + "-";
+        for (File dir : dirs) {
+            String name = dir.getName();
+            if ( !dir.isDirectory() || !name.startsWith(prefix) || name.endsWith(SUPERSEDED_BATCH_DIR_SUFFIX) ) {
+                continue;
+            }
+            if ( !new File(dir, MANIFEST_FILE_NAME).isFile() ) {
+                // not a published batch
+                continue;
+            }
+            long time;
+            try {
+                time = Long.parseLong(name.substring(prefix.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            batches.add(new QueuedBatch(dir, time));
+        }
+        Collections.sort(batches, new Comparator<QueuedBatch>() {
+            public int compare(QueuedBatch o1, QueuedBatch o2) {
+                return o1.time < o2.time ? -1 : (o1.time == o2.time ? 0 : 1);
+            }
+        });
+        return batches;
+    }
+
+    /**
+     * @return true if there is at least one committed batch waiting
+     */
+    public boolean hasCommitted() {
+        return !getCommitted().isEmpty();
+    }
+
+    /**
+     * Get the next batch to process, coalescing the full snapshot batches at the head of the queue
+     * 
+     * @param defaultDeltaFeed true if batches without a deltaFeed property are delta feeds
+     * @return the batch to process OR null if no committed batches are waiting
+     * @throws IOException if the batch properties cannot be read or the coalescing fails
+     */
+    public QueuedBatch next(boolean defaultDeltaFeed) throws IOException {
+        return next(defaultDeltaFeed, null);
+    }
+
+    /**
+     * Get the next batch to process for a handler subset (lane), only batches made up entirely of the
+     * given files are taken (and coalesced), a batch with other files stops the lane so the batches
+     * are still processed in upload order (the full run takes it)
+     * 
+     * @param defaultDeltaFeed true if batches without a deltaFeed property are delta feeds
+     * @param laneFiles the feed files the lane processes OR null for all files
+     * @return the batch to process OR null if no committed batches are waiting (or the next one is not for this lane)
+     * @throws IOException if the batch properties cannot be read or the coalescing fails
+     */
+    public QueuedBatch next(boolean defaultDeltaFeed, Set<String> laneFiles) throws IOException {
+        List<QueuedBatch> queue;
+        int snapshots;
+        boolean valid;
+        do {
+            queue = getCommitted();
+            Set<String> queued = new HashSet<String>();
+            for (QueuedBatch batch : queue) {
+                queued.add(batch.dir.getName());
+            }
+            verified.retainAll(queued);
+            if ( queue.isEmpty() ) {
+                return null;
+            }
+            if ( laneFiles != null && !laneFiles.containsAll(queue.get(0).getFileNames()) ) {
+                log.info("SakoraCSV queued batch " + queue.get(0).dir.getName() + " has files " + queue.get(0).getFileNames() 
+                        + " which are not all processed by this run (" + laneFiles + "), leaving the queue for a full run");
+                return null;
+            }
+            snapshots = 0;
+            while ( snapshots < queue.size() && !queue.get(snapshots).isDeltaFeed(defaultDeltaFeed) 
+                    && (laneFiles == null || laneFiles.containsAll(queue.get(snapshots).getFileNames())) ) {
+                snapshots++;
+            }
+            // only the batch (or coalesced batches) about to be processed are verified, an invalid one changes the queue
+            valid = true;
+            for (int i = 0; i < Math.max(snapshots, 1); i++) {
+                valid &= isVerified(queue.get(i));
+            }
+        } while ( !valid );
+        if ( snapshots < 2 ) {
+            return queue.get(0);
+        }
+        QueuedBatch newest = queue.get(snapshots - 1);
+        int carried = 0;
+        // newest first so the newest copy of each file wins
+        for (int i = snapshots - 2; i >= 0; i--) {
+            QueuedBatch older = queue.get(i);
+            File[] files = older.dir.listFiles();
+            if ( files != null ) {
+                for (File file : files) {
+                    if ( file.isDirectory() || MANIFEST_FILE_NAME.equals(file.getName()) ) {
+                        continue;
+                    }
+                    File target = new File(newest.dir, file.getName());
+                    if ( !target.exists() ) {
+                        if ( !file.renameTo(target) ) {
+                            throw new IOException("Unable to carry [" + file + "] forward to [" + target + "]");
+                        }
+                        carried++;
+                    }
+                }
+            }
+            File archived = new File(uploadDir, older.dir.getName() + SUPERSEDED_BATCH_DIR_SUFFIX);
+            if ( !older.dir.renameTo(archived) ) {
+                throw new IOException("Unable to archive superseded batch [" + older.dir + "] to [" + archived + "]");
+            }
+        }
+        log.info("SakoraCSV coalesced " + snapshots + " queued snapshot batches into " + newest.dir.getName() 
+                + " (" + carried + " files carried forward from older batches, " + (snapshots - 1) + " batches superseded)");
+        return newest;
+    }
+
+    /**
+     * Checks a batch against its manifest once (the files of a committed batch do not change),
+     * a batch which does not match is moved out of the queue (renamed with the invalid suffix)
+     * 
+     * @return true if the batch is valid
+     * @throws IOException if an invalid batch cannot be moved out of the queue
+     */
+    private boolean isVerified(QueuedBatch batch) throws IOException {
+        if ( verified.contains(batch.dir.getName()) ) {
+            return true;
+        }
+        String problem = batch.verify();
+        if ( problem == null ) {
+            verified.add(batch.dir.getName());
+            return true;
+        }
+        log.error("SakoraCSV queued batch " + batch.dir.getName() + " does not match its manifest and will not be processed: " + problem);
+        File invalid = new File(uploadDir, batch.dir.getName() + INVALID_BATCH_DIR_SUFFIX);
+        if ( !batch.dir.renameTo(invalid) ) {
+            throw new IOException("Unable to move invalid batch [" + batch.dir + "] out of the queue");
+        }
+        return false;
+    }
+
+    /**
+     * @return the hex SHA-1 hash of the file contents
+     */
+    static String sha1(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ( (read = in.read(buffer)) != -1 ) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A committed (published) upload batch
+     */
+    public static class QueuedBatch {
+        private final File dir;
+        private final long time;
+        private Properties manifest = null;
+        private Map<String, String> properties = null;
+
+        QueuedBatch(File dir, long time) {
+            this.dir = dir;
+            this.time = time;
+        }
+
+        public File getDir() {
+            return dir;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        private Properties getManifest() throws IOException {
+            if ( manifest == null ) {
+                Properties props = new Properties();
+                InputStream in = new BufferedInputStream(new FileInputStream(new File(dir, MANIFEST_FILE_NAME)));
+                try {
+                    props.load(in);
+                } finally {
+                    in.close();
+                }
+                manifest = props;
+            }
+            return manifest;
+        }
+
+        /**
+         * @return the sync overrides stored in the manifest
+         * @throws IOException if the manifest cannot be read
+         */
+        public Map<String, String> getProperties() throws IOException {
+            if ( properties == null ) {
+                Map<String, String> map = new HashMap<String, String>();
+                Properties props = getManifest();
+                for (String name : props.stringPropertyNames()) {
+                    if ( name.startsWith(MANIFEST_OVERRIDE_PREFIX) ) {
+                        map.put(name.substring(MANIFEST_OVERRIDE_PREFIX.length()), props.getProperty(name));
+                    }
+                }
+                properties = map;
+            }
+            return properties;
+        }
+
+        /**
+         * @return the names of the feed files in the batch (from the manifest)
+         * @throws IOException if the manifest cannot be read
+         */
+        public Set<String> getFileNames() throws IOException {
+            Set<String> names = new HashSet<String>();
+            String files = getManifest().getProperty(MANIFEST_FILES);
+            if ( files != null ) {
+                for (String name : files.split(",")) {
+                    if ( name.trim().length() > 0 ) {
+                        names.add(name.trim());
+                    }
+                }
+            }
+            return names;
+        }
+
+        /**
+         * Check the files in the batch against the manifest
+         * 
+         * @return null if the batch is complete and valid OR the problem
+         */
+        String verify() {
+            try {
+                Properties props = getManifest();
+                String files = props.getProperty(MANIFEST_FILES);
+                if ( files == null ) {
+                    return "manifest has no file list";
+                }
+                for (String name : files.split(",")) {
+                    name = name.trim();
+                    if ( name.length() == 0 ) {
+                        continue;
+                    }
+                    File file = new File(dir, name);
+                    if ( !file.isFile() ) {
+                        return "missing file " + name;
+                    }
+                    String size = props.getProperty(MANIFEST_FILE_PREFIX + name + ".size");
+                    if ( size != null && Long.parseLong(size) != file.length() ) {
+                        return "size of " + name + " is " + file.length() + " but the manifest has " + size;
+                    }
+                    String hash = props.getProperty(MANIFEST_FILE_PREFIX + name + ".sha1");
+                    if ( hash != null && !hash.equalsIgnoreCase(sha1(file)) ) {
+                        return "SHA-1 of " + name + " does not match the manifest";
+                    }
+                }
+            } catch (IOException e) {
+                return "unable to read the batch: " + e;
+            } catch (NumberFormatException e) {
+                return "invalid size in the manifest: " + e.getMessage();
+            }
+            return null;
+        }
+
+        boolean isDeltaFeed(boolean defaultDeltaFeed) throws IOException {
+            String deltaFeed = getProperties().get(DELTA_FEED_PROPERTY);
+            return deltaFeed == null ? defaultDeltaFeed : Boolean.parseBoolean(deltaFeed);
+        }
+    }
+
+}
@@ -25,6 +25,7 @@ import net.unicon.sakora.api.csv.CsvSyncContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.coursemanagement.api.CanonicalCourse;
+import org.sakaiproject.coursemanagement.api.exception.IdNotFoundException;
 
 /**
  * Reads in Canonical Courses from csv extracts, expected format is:
@@ -41,10 +42,15 @@ public class CsvCanonicalCourseHandler extends CsvHandlerBase {
         return "CanonicalCourse";
     }
 
+    @Override
+    protected int getMinFieldCount() {
+        return 3;
+    }
+
 	@Override
 	protected void readInputLine(CsvSyncContext context, String[] line) {
 
-		final int minFieldCount = 3;
+		final int minFieldCount = getMinFieldCount();
 
 		if (line != null && line.length >= minFieldCount) {
 			line = trimAll(line);
@@ -83,6 +89,26 @@ public class CsvCanonicalCourseHandler extends CsvHandlerBase {
 		}
 	}
 
+	/**
+	 * Removes the canonical course from CM, only explicit removals from a delta are applied
+	 */
+	@Override
+	protected void readDeleteLine(CsvSyncContext context, String[] line) {
+		if (line == null || line.length < 1 || line[0] == null || "".equals(line[0].trim())) {
+			log.error("Skipping removal line without an eid: [" + (line == null ? null : Arrays.toString(line)) + "]");
+			errors++;
+			return;
+		}
+		String eid = line[0].trim();
+		try {
+			cmAdmin.removeCanonicalCourse(eid);
+			deletes++;
+		} catch (IdNotFoundException idfe) {
+			// already gone
+			if (log.isDebugEnabled()) log.debug("Skipped removal of canonical course ("+eid+") which does not exist");
+		}
+	}
+
 	@Override
 	protected void processInternal(CsvSyncContext context) {
 		// TODO: support for removing canonical courses not in current extract?
@@ -18,16 +18,25 @@
  */
 package net.unicon.sakora.impl.csv;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.unicon.sakora.api.csv.CsvHandler;
 import net.unicon.sakora.api.csv.CsvSyncContext;
+import net.unicon.sakora.api.csv.CsvSyncService;
+import net.unicon.sakora.api.csv.model.SakoraRun;
+import net.unicon.sakora.api.csv.model.SakoraRunHandler;
+import net.unicon.sakora.impl.csv.dao.CsvSyncDao;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
@@ -35,8 +44,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.coursemanagement.api.AcademicSession;
 import org.sakaiproject.coursemanagement.api.CourseManagementAdministration;
 import org.sakaiproject.coursemanagement.api.CourseManagementService;
+import org.sakaiproject.coursemanagement.api.exception.IdNotFoundException;
 
 /**
  * Handled any common processing that needs to be chared between the CSV handlers
@@ -55,6 +66,9 @@ public class CsvCommonHandlerService {
     public static final String SYNC_VAR_HANDLER_STATS = "handler_stats";
     public static final String SYNC_VAR_STARTDATE = "start_date";
     public static final String SYNC_VAR_SUMMARY = "summary";
+    public static final String SYNC_VAR_CHECKPOINT = "checkpoint";
+    public static final String SYNC_VAR_RUN_HISTORY = "run_history";
+    public static final String SYNC_VAR_HANDLER_STARTED = "handler_started";
 
     public static final String SYNC_STATE_RUNNING = "running";
     public static final String SYNC_STATE_FAILED = "failed";
@@ -77,14 +91,26 @@ public class CsvCommonHandlerService {
     private static final String CURRENT_COURSE_OFFERING_EIDS = "currentCourseOfferingEids";
     private static final String CURRENT_SESSION_EIDS = "currentSessionEids";
 
-    private static final String IGNORE_MEMBERSHIP_REMOVALS = "ignoreMembershipRemovals";
-    private static final String IGNORE_MISSING_SESSIONS = "ignoreMissingSessions";
-    private static final String USER_REMOVAL_MODE = "userRemoveMode";
+    static final String IGNORE_MEMBERSHIP_REMOVALS = "ignoreMembershipRemovals";
+    static final String IGNORE_MISSING_SESSIONS = "ignoreMissingSessions";
+    static final String USER_REMOVAL_MODE = "userRemoveMode";
+    private static final String TRACKING_BULK_MODE = "trackingBulkMode";
+    private static final String TRACKING_COMPACTION = "trackingCompaction";
+    private static final String DIFF_MODE = "diffMode";
+    static final String DELTA_FEED = "deltaFeed";
+    private static final String DELTA_FEED_CM_CHECKS = "deltaFeedCmChecks";
+    private static final String SELECTED_HANDLERS = "selectedHandlers";
+    // run state which later handlers depend on, saved with the checkpoints
+    private static final String[] CHECKPOINT_RUN_STATE = {CURRENT_SESSION_EIDS, CURRENT_COURSE_OFFERING_EIDS, CURRENT_SECTION_EIDS, CURRENT_ENROLLMENT_SET_EIDS};
 
 
     protected ServerConfigurationService configurationService;
     protected CourseManagementAdministration cmAdmin;
     protected CourseManagementService cmService;
+    protected CsvSyncMetrics metrics = new CsvSyncMetrics();
+    protected CsvSyncProgress progress = new CsvSyncProgress();
+    protected CsvSyncTrace trace = new CsvSyncTrace();
+    protected CsvSyncDao dao;
 
     private volatile int runCounter = 0;
     private ConcurrentHashMap<String, Object> syncVars = new ConcurrentHashMap<String, Object>();
@@ -103,6 +129,57 @@ public class CsvCommonHandlerService {
         }
         setUserRemoveMode(configurationService.getString("net.unicon.sakora.csv.userRemovalMode", userRemoveMode));
         log.info("SakoraCSV userRemoveMode is set to "+userRemoveMode);
+        trackingBatchSize = configurationService.getInt("net.unicon.sakora.csv.trackingBatchSize", trackingBatchSize);
+        trackingFlushSize = configurationService.getInt("net.unicon.sakora.csv.trackingFlushSize", trackingFlushSize);
+        if (trackingBatchSize > 1) {
+            log.info("SakoraCSV tracking table writes will be committed in batches of "+trackingBatchSize+" (session flushed every "+trackingFlushSize+")");
+        } else {
+            log.info("SakoraCSV tracking table batching is disabled (trackingBatchSize="+trackingBatchSize+"): every tracking write is committed separately");
+        }
+        trackingBulkMode = configurationService.getBoolean("net.unicon.sakora.csv.trackingBulkMode", trackingBulkMode);
+        if (trackingBulkMode) {
+            log.info("SakoraCSV trackingBulkMode is enabled: tracking table writes will use hibernate stateless sessions");
+        }
+        sectionMembershipClustered = configurationService.getBoolean("net.unicon.sakora.csv.sectionMembershipClustered", sectionMembershipClustered);
+        sortMemoryCeilingMB = configurationService.getInt("net.unicon.sakora.csv.sortMemoryCeilingMB", sortMemoryCeilingMB);
+        if (sectionMembershipClustered) {
+            log.info("SakoraCSV sectionMembershipClustered is enabled: section memberships will be sorted and processed one section at a time");
+        }
+        trackingCompaction = configurationService.getBoolean("net.unicon.sakora.csv.trackingCompaction", trackingCompaction);
+        if (trackingCompaction) {
+            log.info("SakoraCSV trackingCompaction is enabled: tracking records will be removed once their removal has been applied");
+        }
+        diffMode = configurationService.getBoolean("net.unicon.sakora.csv.diffMode", diffMode);
+        if (diffMode) {
+            log.info("SakoraCSV diffMode is enabled: large feed files will be diffed against the previous finished batch and only the changes will be processed");
+        }
+        checkpointInterval = configurationService.getInt("net.unicon.sakora.csv.checkpointInterval", checkpointInterval);
+        log.info("SakoraCSV sync checkpoints will be saved after each handler"+(checkpointInterval > 0 ? " and every "+checkpointInterval+" input records" : ""));
+        deltaFeed = configurationService.getBoolean("net.unicon.sakora.csv.deltaFeed", deltaFeed);
+        if (deltaFeed) {
+            log.info("SakoraCSV deltaFeed is enabled: feed files are expected to contain only changes with an operation (A/U/D) as the first column");
+        }
+        runHistory = configurationService.getBoolean("net.unicon.sakora.csv.runHistory", runHistory);
+        if (!runHistory) {
+            log.info("SakoraCSV run history is disabled: runs will not be recorded in SAKORA_RUN and SAKORA_RUN_HANDLER");
+        }
+        threadAccounting = configurationService.getBoolean("net.unicon.sakora.csv.threadAccounting", threadAccounting);
+        if (threadAccounting) {
+            log.info("SakoraCSV thread accounting is enabled: CPU time "+(CsvThreadAccounting.isCpuSupported() ? "and" : "(not supported by this JVM) and")
+                    +" allocated bytes"+(CsvThreadAccounting.isAllocationSupported() ? "" : " (not supported by this JVM)")+" will be recorded per handler");
+        }
+        metrics.setEnabled(configurationService.getBoolean("net.unicon.sakora.csv.metrics", metrics.isEnabled()));
+        if (!metrics.isEnabled()) {
+            log.info("SakoraCSV sync latency metrics are disabled");
+        }
+        trace.setThreadNames(configurationService.getBoolean("net.unicon.sakora.csv.traceThreadNames", trace.isThreadNames()));
+        trace.setSlowRowMillis(configurationService.getInt("net.unicon.sakora.csv.slowRowMillis", (int) trace.getSlowRowMillis()));
+        trace.setMaxSlowRows(configurationService.getInt("net.unicon.sakora.csv.maxSlowRows", trace.getMaxSlowRows()));
+        metrics.setRowTracking(trace.isRowTracing() && metrics.isEnabled());
+        if (trace.isRowTracing()) {
+            log.info("SakoraCSV rows which take over "+trace.getSlowRowMillis()+" ms will be logged (at most "+trace.getMaxSlowRows()+" per handler)"
+                    +(metrics.isEnabled() ? " with their time breakdown" : ""));
+        }
     }
 
     public void destroy() {
@@ -126,6 +203,16 @@ public class CsvCommonHandlerService {
         syncVars.put(SYNC_VAR_STATUS, SYNC_STATE_RUNNING);
         syncVars.put(SYNC_VAR_CONTEXT, context);
         syncVars.put(SYNC_VAR_STARTDATE, new Date());
+        metrics.reset();
+        progress.runStarted(runId);
+        trace.runStarted(runId);
+        CsvSyncCheckpoint checkpoint = new CsvSyncCheckpoint();
+        for (Map.Entry<String, String> entry : context.getProperties().entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null && !entry.getKey().startsWith(CsvSyncService.SYNC_CONTEXT_PROPERTY_KEY_PREFIX)) {
+                checkpoint.getContextProperties().put(entry.getKey(), entry.getValue());
+            }
+        }
+        syncVars.put(SYNC_VAR_CHECKPOINT, checkpoint);
         // Do some logging
         log.info("SakoraCSV sync run ("+runId+") starting: "+context);
         // process context overrides
@@ -144,6 +231,47 @@ public class CsvCommonHandlerService {
             overrideUserRemoveMode(urm);
             log.info("SakoraCSV sync run ("+runId+") overriding "+USER_REMOVAL_MODE+": "+urm);
         }
+        if (context.getProperties().containsKey(TRACKING_BULK_MODE)) {
+            Boolean tbm = Boolean.parseBoolean(context.getProperties().get(TRACKING_BULK_MODE));
+            overrideTrackingBulkMode(tbm);
+            log.info("SakoraCSV sync run ("+runId+") overriding "+TRACKING_BULK_MODE+": "+tbm);
+        }
+        if (context.getProperties().containsKey(TRACKING_COMPACTION)) {
+            Boolean tc = Boolean.parseBoolean(context.getProperties().get(TRACKING_COMPACTION));
+            overrideTrackingCompaction(tc);
+            log.info("SakoraCSV sync run ("+runId+") overriding "+TRACKING_COMPACTION+": "+tc);
+        }
+        if (context.getProperties().containsKey(DIFF_MODE)) {
+            Boolean dm = Boolean.parseBoolean(context.getProperties().get(DIFF_MODE));
+            overrideDiffMode(dm);
+            log.info("SakoraCSV sync run ("+runId+") overriding "+DIFF_MODE+": "+dm);
+        }
+        if (context.getProperties().containsKey(DELTA_FEED)) {
+            Boolean df = Boolean.parseBoolean(context.getProperties().get(DELTA_FEED));
+            overrideDeltaFeed(df);
+            log.info("SakoraCSV sync run ("+runId+") overriding "+DELTA_FEED+": "+df);
+        }
+        String handlers = context.getProperties().get(CsvSyncServiceImpl.HANDLERS);
+        if (handlers != null && handlers.trim().length() > 0) {
+            Set<String> selected = new HashSet<String>();
+            for (String name : handlers.split(",")) {
+                if (name.trim().length() > 0) {
+                    selected.add(name.trim());
+                }
+            }
+            syncVars.put(SELECTED_HANDLERS, selected);
+            log.info("SakoraCSV sync run ("+runId+") only running handlers: "+selected);
+        }
+        if (runHistory && dao != null) {
+            try {
+                SakoraRun run = new SakoraRun(runId, configurationService.getServerId(),
+                        (handlers != null && handlers.trim().length() > 0 ? handlers.trim() : null), (Date) syncVars.get(SYNC_VAR_STARTDATE));
+                dao.create(run);
+                syncVars.put(SYNC_VAR_RUN_HISTORY, run);
+            } catch (RuntimeException e) {
+                log.warn("SakoraCSV sync run ("+runId+") could not be recorded in the run history (SAKORA_RUN): "+e);
+            }
+        }
         return runId;
     }
 
@@ -152,7 +280,30 @@ public class CsvCommonHandlerService {
         String runId = getCurrentSyncRunId();
         Date start = (Date) syncVars.get(SYNC_VAR_STARTDATE);
         log.info("SakoraCSV sync complete ("+(success?"success":"FAILED")+") for run ("+runId+") started on "+DateFormat.getDateTimeInstance().format(start));
+        progress.runDone(success);
+        trace.runDone(success);
         syncVars.put(SYNC_VAR_STATUS, success?SYNC_STATE_COMPLETE:SYNC_STATE_FAILED);
+        SakoraRun run = getCurrentSyncVar(SYNC_VAR_RUN_HISTORY, SakoraRun.class);
+        if (run != null) {
+            Date end = new Date();
+            run.setStatus(success?SYNC_STATE_COMPLETE:SYNC_STATE_FAILED);
+            run.setEndTime(end);
+            run.setSeconds((int) ((end.getTime() - run.getStartTime().getTime()) / 1000));
+            run.setRowsPerSecond(run.getSeconds() > 0 ? (double) run.getLines() / run.getSeconds() : run.getLines());
+            CsvSyncContext context = getCurrentSyncRunContext();
+            String batchDir = context == null ? null : context.getProperties().get(CsvSyncServiceImpl.BATCH_PROCESSING_DIR);
+            if (batchDir != null) {
+                run.setBatch(new File(batchDir).getName());
+            }
+            try {
+                dao.update(run);
+            } catch (RuntimeException e) {
+                log.warn("SakoraCSV sync run ("+runId+") could not be updated in the run history (SAKORA_RUN): "+e);
+            }
+        }
+        if (!success && log.isInfoEnabled()) {
+            log.info("SakoraCSV sync latency for failed run ("+runId+"):\n"+metrics.report());
+        }
         if (success) {
             StringBuilder sb = new StringBuilder();
             int total_lines = 0;
@@ -161,6 +312,8 @@ public class CsvCommonHandlerService {
             int total_updates = 0;
             int total_deletes = 0;
             int total_seconds = 0;
+            int total_cpu = 0;
+            long total_allocated = 0;
             // compile and output the stats data to the logs
             @SuppressWarnings("unchecked")
             Map<String, Map<String, Integer>> stats = getCurrentSyncVar(SYNC_VAR_HANDLER_STATS, Map.class);
@@ -173,6 +326,10 @@ public class CsvCommonHandlerService {
                 int updates = handlerStats.get("updates");
                 int deletes = handlerStats.get("deletes");
                 int seconds = handlerStats.get("seconds");
+                int cpu = handlerStats.containsKey("cpuMillis") ? handlerStats.get("cpuMillis") : -1;
+                int allocated = handlerStats.containsKey("allocatedKB") ? handlerStats.get("allocatedKB") : -1;
+                total_cpu += Math.max(cpu, 0);
+                total_allocated += Math.max(allocated, 0);
                 total_lines += lines;
                 total_errors += errors;
                 total_adds += adds;
@@ -193,7 +350,11 @@ public class CsvCommonHandlerService {
                 sb.append(String.format("%4d", updates));
                 sb.append(" updates, ");
                 sb.append(String.format("%4d", deletes));
-                sb.append(" deletes\n");
+                sb.append(" deletes");
+                if (threadAccounting) {
+                    appendUsage(sb, cpu, allocated, handlerStats.containsKey("allocatedBytesPerLine") ? handlerStats.get("allocatedBytesPerLine") : -1);
+                }
+                sb.append("\n");
             }
             // total summary (start, end, totals)
             sb.append("  --- TOTAL:         processed ");
@@ -208,12 +369,32 @@ public class CsvCommonHandlerService {
             sb.append(String.format("%5d", total_updates));
             sb.append(" updates, ");
             sb.append(String.format("%5d", total_deletes));
-            sb.append(" deletes\n");
+            sb.append(" deletes");
+            if (threadAccounting) {
+                appendUsage(sb, (CsvThreadAccounting.isCpuSupported() ? total_cpu : -1),
+                        (CsvThreadAccounting.isAllocationSupported() ? (int) Math.min(Integer.MAX_VALUE, total_allocated) : -1),
+                        (!CsvThreadAccounting.isAllocationSupported() ? -1 : (total_lines > 0 ? (int) Math.min(Integer.MAX_VALUE, total_allocated * 1024L / total_lines) : 0)));
+            }
+            sb.append("\n");
+            sb.append(metrics.report());
             syncVars.put(SYNC_VAR_SUMMARY, sb.toString());
             log.info("SakoraCSV sync statistics for run ("+runId+"):\n"+sb.toString());
         }
     }
 
+    /**
+     * Adds the thread accounting columns to a line of the run summary, -1 means it was not measured
+     */
+    private void appendUsage(StringBuilder sb, int cpuMillis, int allocatedKB, int bytesPerLine) {
+        sb.append(" (cpu ");
+        sb.append(cpuMillis < 0 ? "   n/a" : String.format("%6d", cpuMillis));
+        sb.append(" ms, allocated ");
+        sb.append(allocatedKB < 0 ? "     n/a" : String.format("%8d", allocatedKB / 1024));
+        sb.append(" MB, ");
+        sb.append(bytesPerLine < 0 ? "   n/a" : String.format("%6d", bytesPerLine));
+        sb.append(" bytes/line)");
+    }
+
     /**
      * Retrieve a variable stored for the current sync processing if it is set
      * 
@@ -275,11 +456,24 @@ public class CsvCommonHandlerService {
     public void setCurrentHandlerState(String state, CsvHandler handler) {
         /* Allows us to take actions when the state changes (like logging for example)
          */
+        String previousState = getCurrentSyncVar(SYNC_VAR_HANDLER_STATE, String.class);
         setCurrentSyncVar(SYNC_VAR_HANDLER_STATE, state);
         setCurrentSyncVar(SYNC_VAR_HANDLER, handler);
         String handlerName = handler.getName();
         log.info("SakoraCSV: Sync ("+getCurrentSyncRunId()+"): "+handlerName+" state is: "+state);
-        if (STATE_DONE.equals(state)) {
+        metrics.setHandler(STATE_DONE.equals(state) ? null : handlerName);
+        progress.handlerState(handlerName, state);
+        trace.handlerState(handlerName, state);
+        if (STATE_START.equals(state)) {
+            setCurrentSyncVar(SYNC_VAR_HANDLER_STARTED, handlerName);
+        } else if (STATE_DONE.equals(state)) {
+            boolean started = handlerName.equals(getCurrentSyncVar(SYNC_VAR_HANDLER_STARTED, String.class));
+            setCurrentSyncVar(SYNC_VAR_HANDLER_STARTED, null);
+            if (!started) {
+                // skipped (failed batch or stop request), the handler stats are still from its previous run
+                if (log.isDebugEnabled()) log.debug("SakoraCSV: Sync ("+getCurrentSyncRunId()+"): "+handlerName+" did not start, its stats are not recorded");
+                return;
+            }
             // store the stats in the overall set
             @SuppressWarnings("unchecked")
             Map<String, Map<String, Integer>> stats = getCurrentSyncVar(SYNC_VAR_HANDLER_STATS, Map.class);
@@ -288,6 +482,50 @@ public class CsvCommonHandlerService {
             }
             stats.put(handlerName, handler.getStats());
             setCurrentSyncVar(SYNC_VAR_HANDLER_STATS, stats);
+            recordHandlerHistory(handlerName, handler.getStats(), STATE_FAIL.equals(previousState));
+        }
+    }
+
+    /**
+     * Writes a completed (or failed) handler to the run history (SAKORA_RUN_HANDLER)
+     * and adds its counts to the run totals (written when the run completes)
+     */
+    private void recordHandlerHistory(String handlerName, Map<String, Integer> stats, boolean failed) {
+        SakoraRun run = getCurrentSyncVar(SYNC_VAR_RUN_HISTORY, SakoraRun.class);
+        if (run == null) {
+            return;
+        }
+        SakoraRunHandler history = new SakoraRunHandler(run.getId(), handlerName, failed ? SYNC_STATE_FAILED : SYNC_STATE_COMPLETE);
+        history.setStartTime(new Date(stats.get("start") * 1000L));
+        history.setEndTime(new Date(stats.get("end") * 1000L));
+        history.setSeconds(stats.get("seconds"));
+        history.setLines(stats.get("lines"));
+        history.setErrors(stats.get("errors"));
+        history.setAdds(stats.get("adds"));
+        history.setUpdates(stats.get("updates"));
+        history.setDeletes(stats.get("deletes"));
+        history.setCompacted(stats.get("compacted"));
+        if (stats.containsKey("trackingFailures")) {
+            history.setTrackingFailures(stats.get("trackingFailures"));
+        }
+        history.setBytes(progress.getBytesRead(handlerName));
+        history.setRowsPerSecond(history.getSeconds() > 0 ? (double) history.getLines() / history.getSeconds() : history.getLines());
+        if (stats.containsKey("cpuMillis")) {
+            history.setCpuMillis(stats.get("cpuMillis"));
+        }
+        if (stats.containsKey("allocatedKB") && stats.get("allocatedKB") >= 0) {
+            history.setAllocatedBytes(stats.get("allocatedKB") * 1024L);
+        }
+        run.setLines(run.getLines() + history.getLines());
+        run.setErrors(run.getErrors() + history.getErrors());
+        run.setAdds(run.getAdds() + history.getAdds());
+        run.setUpdates(run.getUpdates() + history.getUpdates());
+        run.setDeletes(run.getDeletes() + history.getDeletes());
+        run.setBytes(run.getBytes() + history.getBytes());
+        try {
+            dao.create(history);
+        } catch (RuntimeException e) {
+            log.warn("SakoraCSV handler "+handlerName+" could not be recorded in the run history (SAKORA_RUN_HANDLER): "+e);
         }
     }
 
@@ -401,6 +639,270 @@ public class CsvCommonHandlerService {
         return ignoreMissingSessions;
     }
 
+    /**
+     * TRACKING BATCH handling
+     * Number of tracking table writes (SAKORA_MEMBERSHIP, SAKORA_PERSON, SAKORA_SESSION) to group into a single transaction,
+     * 1 or less means every write is committed on its own (legacy)
+     * 
+     * controlled by net.unicon.sakora.csv.trackingBatchSize, Default: 500
+     */
+    protected int trackingBatchSize = 500;
+    public void setTrackingBatchSize(int trackingBatchSize) {
+        this.trackingBatchSize = trackingBatchSize;
+    }
+    public int getTrackingBatchSize() {
+        return trackingBatchSize;
+    }
+
+    /**
+     * Number of tracking table writes between hibernate session flush and clear calls
+     * inside a tracking batch transaction, should match hibernate.jdbc.batch_size
+     * 
+     * controlled by net.unicon.sakora.csv.trackingFlushSize, Default: 50
+     */
+    protected int trackingFlushSize = 50;
+    public void setTrackingFlushSize(int trackingFlushSize) {
+        this.trackingFlushSize = trackingFlushSize;
+    }
+    public int getTrackingFlushSize() {
+        return trackingFlushSize;
+    }
+
+    /**
+     * TRACKING BULK MODE handling
+     * If false (DEFAULT), tracking table writes go through the normal (stateful) hibernate session.
+     * If true, tracking table writes use hibernate stateless sessions (high volume mode, no caching or dirty checking)
+     * 
+     * controlled by net.unicon.sakora.csv.trackingBulkMode, Default: false
+     */
+    protected boolean trackingBulkMode = false;
+    public void setTrackingBulkMode(boolean trackingBulkMode) {
+        this.trackingBulkMode = trackingBulkMode;
+    }
+    public boolean isTrackingBulkMode() {
+        return trackingBulkMode;
+    }
+
+    /**
+     * CLUSTERED SECTION MEMBERSHIP handling
+     * If false (DEFAULT), section memberships are processed row by row in feed order (legacy).
+     * If true, the section membership feed is sorted by section and each section is processed as a unit
+     * 
+     * controlled by net.unicon.sakora.csv.sectionMembershipClustered, Default: false
+     */
+    protected boolean sectionMembershipClustered = false;
+    public void setSectionMembershipClustered(boolean sectionMembershipClustered) {
+        this.sectionMembershipClustered = sectionMembershipClustered;
+    }
+    public boolean isSectionMembershipClustered() {
+        return sectionMembershipClustered;
+    }
+
+    /**
+     * Number of input records between the sync checkpoints saved while a handler reads its file,
+     * checkpoints are always saved when a handler completes, 0 only saves those
+     * 
+     * controlled by net.unicon.sakora.csv.checkpointInterval, Default: 10000
+     */
+    protected int checkpointInterval = 10000;
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Records every run and its handlers (counts, duration, bytes and rows/sec) in SAKORA_RUN and SAKORA_RUN_HANDLER
+     * for trend analysis (see {@link CsvSyncService#getRunHistory(Date, int)})
+     * 
+     * controlled by net.unicon.sakora.csv.runHistory, Default: true
+     */
+    protected boolean runHistory = true;
+    public void setRunHistory(boolean runHistory) {
+        this.runHistory = runHistory;
+    }
+    public boolean isRunHistory() {
+        return runHistory;
+    }
+
+    /**
+     * Measures the CPU time and allocated bytes (per line) of each handler with the thread MXBean,
+     * these are added to the handler stats and the run summary (see {@link CsvThreadAccounting})
+     * 
+     * controlled by net.unicon.sakora.csv.threadAccounting, Default: true
+     */
+    protected boolean threadAccounting = true;
+    public void setThreadAccounting(boolean threadAccounting) {
+        this.threadAccounting = threadAccounting;
+    }
+    public boolean isThreadAccounting() {
+        return threadAccounting;
+    }
+
+    /**
+     * Memory ceiling (in MB) for the rows held in memory while sorting a feed file,
+     * rows beyond this are spilled to disk (batch processing dir) in sorted runs
+     * 
+     * controlled by net.unicon.sakora.csv.sortMemoryCeilingMB, Default: 64
+     */
+    protected int sortMemoryCeilingMB = 64;
+    public void setSortMemoryCeilingMB(int sortMemoryCeilingMB) {
+        this.sortMemoryCeilingMB = sortMemoryCeilingMB;
+    }
+    public int getSortMemoryCeilingMB() {
+        return sortMemoryCeilingMB;
+    }
+    public long getSortMemoryCeilingBytes() {
+        return (sortMemoryCeilingMB <= 0 ? 1 : sortMemoryCeilingMB) * 1024L * 1024L;
+    }
+
+    /**
+     * TRACKING COMPACTION handling
+     * If false (DEFAULT), tracking records (SAKORA_MEMBERSHIP, SAKORA_PERSON) are left in place after their removal
+     * is applied so they are selected and removed again on every later run (legacy).
+     * If true, tracking records are deleted once their removal has been applied
+     * 
+     * controlled by net.unicon.sakora.csv.trackingCompaction, Default: false
+     */
+    protected boolean trackingCompaction = false;
+    public void setTrackingCompaction(boolean trackingCompaction) {
+        this.trackingCompaction = trackingCompaction;
+    }
+    public boolean isTrackingCompaction() {
+        return trackingCompaction;
+    }
+    /**
+     * Allows the current setting to be overridden for the current sync run only
+     * @param tc null clears the override, see {@link #trackingCompaction}
+     */
+    public void overrideTrackingCompaction(Boolean tc) {
+        setCurrentSyncVar(TRACKING_COMPACTION, tc);
+        if (tc != null) {
+            log.info("Overriding the trackingCompaction value of "+trackingCompaction+" with "+tc.booleanValue()+" for current sync: "+getCurrentSyncRunId());
+        }
+    }
+    public boolean trackingCompaction() {
+        Boolean tc = getCurrentSyncVar(TRACKING_COMPACTION, Boolean.class);
+        if (tc != null) {
+            // override from the current run
+            return tc.booleanValue();
+        }
+        return trackingCompaction;
+    }
+
+    /**
+     * DIFF MODE handling
+     * If false (DEFAULT), every feed file is processed as a full snapshot.
+     * If true, the feed files of handlers with diff key columns (persons and memberships) are diffed
+     * against the same file in the previous finished batch and only the added, changed and removed rows
+     * are processed (removals are applied directly so the tracking table removal scans are skipped).
+     * If there is no previous finished batch containing the file then it is processed as a full snapshot.
+     * 
+     * controlled by net.unicon.sakora.csv.diffMode, Default: false
+     */
+    protected boolean diffMode = false;
+    public void setDiffMode(boolean diffMode) {
+        this.diffMode = diffMode;
+    }
+    public boolean isDiffMode() {
+        return diffMode;
+    }
+    /**
+     * Allows the current setting to be overridden for the current sync run only
+     * @param dm null clears the override, see {@link #diffMode}
+     */
+    public void overrideDiffMode(Boolean dm) {
+        setCurrentSyncVar(DIFF_MODE, dm);
+        if (dm != null) {
+            log.info("Overriding the diffMode value of "+diffMode+" with "+dm.booleanValue()+" for current sync: "+getCurrentSyncRunId());
+        }
+    }
+    public boolean diffMode() {
+        Boolean dm = getCurrentSyncVar(DIFF_MODE, Boolean.class);
+        if (dm != null) {
+            // override from the current run
+            return dm.booleanValue();
+        }
+        return diffMode;
+    }
+
+    /**
+     * DELTA FEED handling
+     * If false (DEFAULT), every feed file is a full snapshot and removals are calculated from the missing rows.
+     * If true, every feed file only contains changes and has the operation as the first column:
+     * A (add), U (update) or D (delete) followed by the normal row. The operations are applied directly,
+     * the snapshot removal processing is skipped and the current sessions are only changed by the rows in the feed.
+     * This is normally selected per batch (deltaFeed=true in the sync context / upload), e.g. for
+     * near-real-time enrollment changes between the nightly full snapshot runs.
+     * 
+     * controlled by net.unicon.sakora.csv.deltaFeed, Default: false
+     */
+    protected boolean deltaFeed = false;
+    public void setDeltaFeed(boolean deltaFeed) {
+        this.deltaFeed = deltaFeed;
+    }
+    public boolean isDeltaFeed() {
+        return deltaFeed;
+    }
+    /**
+     * Allows the current setting to be overridden for the current sync run only
+     * @param df null clears the override, see {@link #deltaFeed}
+     */
+    public void overrideDeltaFeed(Boolean df) {
+        setCurrentSyncVar(DELTA_FEED, df);
+        if (df != null) {
+            log.info("Overriding the deltaFeed value of "+deltaFeed+" with "+df.booleanValue()+" for current sync: "+getCurrentSyncRunId());
+        }
+    }
+    public boolean deltaFeed() {
+        Boolean df = getCurrentSyncVar(DELTA_FEED, Boolean.class);
+        if (df != null) {
+            // override from the current run
+            return df.booleanValue();
+        }
+        return deltaFeed;
+    }
+    /**
+     * Allows the current setting to be overridden for the current sync run only
+     * @param tbm null clears the override, see {@link #trackingBulkMode}
+     */
+    public void overrideTrackingBulkMode(Boolean tbm) {
+        setCurrentSyncVar(TRACKING_BULK_MODE, tbm);
+        if (tbm != null) {
+            log.info("Overriding the trackingBulkMode value of "+trackingBulkMode+" with "+tbm.booleanValue()+" for current sync: "+getCurrentSyncRunId());
+        }
+    }
+    public boolean trackingBulkMode() {
+        Boolean tbm = getCurrentSyncVar(TRACKING_BULK_MODE, Boolean.class);
+        if (tbm != null) {
+            // override from the current run
+            return tbm.booleanValue();
+        }
+        return trackingBulkMode;
+    }
+
+    /**
+     * @param handler the handler name
+     * @return true if the handler runs in the current sync run (all handlers run unless a subset was selected)
+     */
+    public boolean isHandlerSelected(String handler) {
+        @SuppressWarnings("unchecked")
+        Set<String> selected = getCurrentSyncVar(SELECTED_HANDLERS, Set.class);
+        return selected == null || selected.contains(handler);
+    }
+
+    /**
+     * The current containers are only complete when the handler which sets them ran as part of this
+     * (snapshot) run, otherwise (delta feeds and handler subsets) containers are checked in CM
+     * 
+     * @param handler the name of the handler which sets the current containers
+     * @return true if the containers which are not in the current set must be checked in CM
+     */
+    protected boolean checkCurrentInCM(String handler) {
+        return deltaFeed() || !isHandlerSelected(handler);
+    }
+
     // ACADEMIC SESSIONS
     protected int setCurrentAcademicSessions(String[] sessions) {
         HashSet<String> currentAcademicSessionEids;
@@ -423,8 +925,7 @@ public class CsvCommonHandlerService {
         boolean process;
         if (ignoreMissingSessions()) {
             // check the list of sessions which are current and if this is not in that set then false
-            @SuppressWarnings("unchecked")
-            Set<String> currentAcademicSessionEids = (Set<String>) getCurrentSyncVar(CURRENT_SESSION_EIDS, Set.class);
+            Set<String> currentAcademicSessionEids = getCurrentAcademicSessionEids();
             if (currentAcademicSessionEids != null && currentAcademicSessionEids.contains(academicSessionEid)) {
                 process = true;
             } else {
@@ -440,6 +941,18 @@ public class CsvCommonHandlerService {
     protected Set<String> getCurrentAcademicSessionEids() {
         @SuppressWarnings("unchecked")
         Set<String> currentSessionEids = (Set<String>) getCurrentSyncVar(CURRENT_SESSION_EIDS, Set.class);
+        if (currentSessionEids == null && checkCurrentInCM("AcademicSession")) {
+            // a delta feed only has the changed sessions (if any) and a handler subset may not include
+            // the sessions at all so start from the current sessions in CM
+            currentSessionEids = new HashSet<String>();
+            List<AcademicSession> sessions = cmService.getCurrentAcademicSessions();
+            if (sessions != null) {
+                for (AcademicSession session : sessions) {
+                    currentSessionEids.add(session.getEid());
+                }
+            }
+            setCurrentSyncVar(CURRENT_SESSION_EIDS, currentSessionEids);
+        }
         if (currentSessionEids == null) {
             currentSessionEids = new HashSet<String>(0);
         }
@@ -468,6 +981,9 @@ public class CsvCommonHandlerService {
             Set<String> currentCourseOfferingEids = (Set<String>) getCurrentSyncVar(CURRENT_COURSE_OFFERING_EIDS, Set.class);
             if (currentCourseOfferingEids != null && currentCourseOfferingEids.contains(courseOfferingEid)) {
                 process = true;
+            } else if (checkCurrentInCM("CourseOffering")) {
+                // a delta feed (or handler subset) does not include all the current containers so check CM
+                process = isCurrentInCM("course_offering", courseOfferingEid);
             } else {
                 process = false;
             }
@@ -509,6 +1025,9 @@ public class CsvCommonHandlerService {
             Set<String> currentSectionEids = (Set<String>) getCurrentSyncVar(CURRENT_SECTION_EIDS, Set.class);
             if (currentSectionEids != null && currentSectionEids.contains(sectionEid)) {
                 process = true;
+            } else if (checkCurrentInCM("Section")) {
+                // a delta feed (or handler subset) does not include all the current containers so check CM
+                process = isCurrentInCM("section", sectionEid);
             } else {
                 process = false;
             }
@@ -550,6 +1069,9 @@ public class CsvCommonHandlerService {
             Set<String> currentEnrollmentSetEids = (Set<String>) getCurrentSyncVar(CURRENT_ENROLLMENT_SET_EIDS, Set.class);
             if (currentEnrollmentSetEids != null && currentEnrollmentSetEids.contains(enrollmentSetEid)) {
                 process = true;
+            } else if (checkCurrentInCM("EnrollmentSet")) {
+                // a delta feed (or handler subset) does not include all the current containers so check CM
+                process = isCurrentInCM("enrollment_set", enrollmentSetEid);
             } else {
                 process = false;
             }
@@ -571,6 +1093,135 @@ public class CsvCommonHandlerService {
 
 
 
+    /**
+     * Checks if a course offering, section or enrollment set is in a current academic session using CM,
+     * only used for delta feeds and handler subsets (the result is cached for the current run)
+     * 
+     * @param type course_offering, section or enrollment_set
+     * @param eid the container EID
+     * @return true if the container exists and is part of a current academic session
+     */
+    private boolean isCurrentInCM(String type, String eid) {
+        @SuppressWarnings("unchecked")
+        Map<String, Boolean> checks = (Map<String, Boolean>) getCurrentSyncVar(DELTA_FEED_CM_CHECKS, Map.class);
+        if (checks == null) {
+            checks = new HashMap<String, Boolean>();
+            setCurrentSyncVar(DELTA_FEED_CM_CHECKS, checks);
+        }
+        String key = type + ":" + eid;
+        Boolean current = checks.get(key);
+        if (current == null) {
+            try {
+                String courseOfferingEid = eid;
+                if ("section".equals(type)) {
+                    courseOfferingEid = cmService.getSection(eid).getCourseOfferingEid();
+                } else if ("enrollment_set".equals(type)) {
+                    courseOfferingEid = cmService.getEnrollmentSet(eid).getCourseOfferingEid();
+                }
+                AcademicSession session = cmService.getCourseOffering(courseOfferingEid).getAcademicSession();
+                current = session != null && getCurrentAcademicSessionEids().contains(session.getEid());
+            } catch (IdNotFoundException e) {
+                current = false;
+            }
+            checks.put(key, current);
+        }
+        return current.booleanValue();
+    }
+
+    // CHECKPOINTS
+
+    /**
+     * Continues a failed run from its checkpoint (call right after {@link #initRun(CsvSyncContext)}),
+     * the completed handlers are skipped and the saved run state is restored
+     * 
+     * @param checkpoint the checkpoint saved by the failed run
+     */
+    public void resumeRun(CsvSyncCheckpoint checkpoint) {
+        for (Map.Entry<String, Serializable> entry : checkpoint.getRunState().entrySet()) {
+            setCurrentSyncVar(entry.getKey(), entry.getValue());
+        }
+        setCurrentSyncVar(SYNC_VAR_CHECKPOINT, checkpoint);
+        log.info("SakoraCSV sync run ("+getCurrentSyncRunId()+") resuming from checkpoint: "+checkpoint);
+    }
+
+    /**
+     * @param handler the handler name
+     * @return true if the handler already completed (this run is resuming a failed run)
+     */
+    public boolean isCheckpointCompleted(String handler) {
+        CsvSyncCheckpoint checkpoint = getCurrentSyncVar(SYNC_VAR_CHECKPOINT, CsvSyncCheckpoint.class);
+        return checkpoint != null && checkpoint.isCompleted(handler);
+    }
+
+    /**
+     * @param handler the handler name
+     * @return the input time the handler used before the checkpoint OR null if it was not running
+     */
+    public Date getCheckpointTime(String handler) {
+        CsvSyncCheckpoint checkpoint = getCurrentSyncVar(SYNC_VAR_CHECKPOINT, CsvSyncCheckpoint.class);
+        Long time = checkpoint == null ? null : checkpoint.getHandlerTime(handler);
+        return time == null ? null : new Date(time.longValue());
+    }
+
+    /**
+     * @param handler the handler name
+     * @return the number of input records the handler applied before the checkpoint (0 if it was not running)
+     */
+    public int getCheckpointLines(String handler) {
+        CsvSyncCheckpoint checkpoint = getCurrentSyncVar(SYNC_VAR_CHECKPOINT, CsvSyncCheckpoint.class);
+        return checkpoint == null ? 0 : checkpoint.getHandlerLines(handler);
+    }
+
+    /**
+     * Saves the progress of a handler, all the records up to this point must be fully applied
+     * (including their tracking writes)
+     * 
+     * @param handler the handler name
+     * @param time the input time of the handler
+     * @param lines the number of input records which are fully applied
+     */
+    public void checkpoint(String handler, Date time, int lines) {
+        CsvSyncCheckpoint checkpoint = getCurrentSyncVar(SYNC_VAR_CHECKPOINT, CsvSyncCheckpoint.class);
+        if (checkpoint != null) {
+            checkpoint.progress(handler, time.getTime(), lines);
+            saveCheckpoint(checkpoint);
+        }
+    }
+
+    /**
+     * Saves the completion of a handler (read and processed)
+     * 
+     * @param handler the handler name
+     */
+    public void checkpointCompleted(String handler) {
+        CsvSyncCheckpoint checkpoint = getCurrentSyncVar(SYNC_VAR_CHECKPOINT, CsvSyncCheckpoint.class);
+        if (checkpoint != null) {
+            checkpoint.complete(handler);
+            saveCheckpoint(checkpoint);
+        }
+    }
+
+    private void saveCheckpoint(CsvSyncCheckpoint checkpoint) {
+        CsvSyncContext context = getCurrentSyncRunContext();
+        String batchDir = context == null ? null : context.getProperties().get(CsvSyncServiceImpl.BATCH_PROCESSING_DIR);
+        if (batchDir == null) {
+            return;
+        }
+        checkpoint.getRunState().clear();
+        for (String name : CHECKPOINT_RUN_STATE) {
+            Object value = getCurrentSyncVar(name, Object.class);
+            if (value instanceof Set) {
+                checkpoint.getRunState().put(name, new HashSet<Object>((Set<?>) value));
+            }
+        }
+        try {
+            checkpoint.save(new File(batchDir));
+        } catch (IOException e) {
+            // the run can continue, it just cannot be resumed from here
+            log.warn("SakoraCSV unable to save the sync checkpoint in "+batchDir+": "+e);
+        }
+    }
+
     public void setConfigurationService(ServerConfigurationService configurationService) {
         this.configurationService = configurationService;
     }
@@ -583,4 +1234,41 @@ public class CsvCommonHandlerService {
         this.cmService = cmService;
     }
 
+    /**
+     * @return the latency metrics for the current (or last) run
+     */
+    public CsvSyncMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(CsvSyncMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the live progress of the current (or last) run
+     */
+    public CsvSyncProgress getProgress() {
+        return progress;
+    }
+
+    public void setProgress(CsvSyncProgress progress) {
+        this.progress = progress;
+    }
+
+    public void setDao(CsvSyncDao dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * @return the profiling context (thread names, phase events and slow rows) of the sync runs
+     */
+    public CsvSyncTrace getTrace() {
+        return trace;
+    }
+
+    public void setTrace(CsvSyncTrace trace) {
+        this.trace = trace;
+    }
+
 }
@@ -25,6 +25,7 @@ import net.unicon.sakora.api.csv.CsvSyncContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.coursemanagement.api.CourseSet;
+import org.sakaiproject.coursemanagement.api.exception.IdNotFoundException;
 
 /**
  * Reads in Course Set info from csv extracts. The expected csv format is:
@@ -44,10 +45,15 @@ public class CsvCourseSetHandler extends CsvHandlerBase {
         return "CourseSet";
     }
 
+    @Override
+    protected int getMinFieldCount() {
+        return 5;
+    }
+
 	@Override
 	protected void readInputLine(CsvSyncContext context, String[] line) {
 
-		final int minFieldCount = 5;
+		final int minFieldCount = getMinFieldCount();
 
 		if (line != null && line.length >= minFieldCount) {
 			line = trimAll(line);
@@ -85,6 +91,26 @@ public class CsvCourseSetHandler extends CsvHandlerBase {
 		}
 	}
 
+	/**
+	 * Removes the course set from CM, only explicit removals from a delta are applied
+	 */
+	@Override
+	protected void readDeleteLine(CsvSyncContext context, String[] line) {
+		if (line == null || line.length < 1 || line[0] == null || "".equals(line[0].trim())) {
+			log.error("Skipping removal line without an eid: [" + (line == null ? null : Arrays.toString(line)) + "]");
+			errors++;
+			return;
+		}
+		String eid = line[0].trim();
+		try {
+			cmAdmin.removeCourseSet(eid);
+			deletes++;
+		} catch (IdNotFoundException idfe) {
+			// already gone
+			if (log.isDebugEnabled()) log.debug("Skipped removal of course set ("+eid+") which does not exist");
+		}
+	}
+
 	@Override
 	protected void processInternal(CsvSyncContext context) {
 		// TODO: support for conditionally removing course sets not in current extract?
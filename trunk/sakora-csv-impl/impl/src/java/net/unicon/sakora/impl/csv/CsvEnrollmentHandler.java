@@ -18,13 +18,17 @@
  */
 package net.unicon.sakora.impl.csv;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
 import net.unicon.sakora.api.csv.CsvSyncContext;
 import net.unicon.sakora.api.csv.model.Membership;
 import net.unicon.sakora.api.csv.model.SakoraLog;
+import net.unicon.sakora.impl.csv.dao.CsvTrackingBatch;
+import net.unicon.sakora.impl.csv.dao.CsvTrackingDao;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -52,10 +56,15 @@ public class CsvEnrollmentHandler extends CsvHandlerBase {
         return "Enrollment";
     }
 
+    @Override
+    protected int getMinFieldCount() {
+        return 5;
+    }
+
 	@Override
 	protected void readInputLine(CsvSyncContext context, String[] line) {
 
-		final int minFieldCount = 5;
+		final int minFieldCount = getMinFieldCount();
 
 		if (line != null && line.length >= minFieldCount) {
 			line = trimAll(line);
@@ -78,8 +87,14 @@ public class CsvEnrollmentHandler extends CsvHandlerBase {
 			            dao.create(new SakoraLog(this.getClass().toString(), "Invalid EnrollmentSet Eid " + eid));
 			        } else {
 			            cmAdmin.addOrUpdateEnrollment(userEid, eid, status, credits, gradingScheme);
-			            // NOTE: this next line is likely to cause a hibernate exception
-			            dao.save( new Membership(userEid, eid, studentRole, "enrollment", time) );
+			            final String memberEid = userEid;
+			            final String enrollmentSetEid = eid;
+			            final Date memberTime = time;
+			            addTrackingWrite(new CsvTrackingBatch.TrackingWrite() {
+			                public void write(CsvTrackingDao dao) {
+			                    dao.saveMembership("enrollment", memberEid, enrollmentSetEid, studentRole, memberTime);
+			                }
+			            });
 			            adds++;
 			        }
 			    } else {
@@ -93,10 +108,42 @@ public class CsvEnrollmentHandler extends CsvHandlerBase {
 		}
 	}
 	
+	@Override
+	protected void readDeleteLine(CsvSyncContext context, String[] line) {
+		if (line == null || line.length < 2) {
+			log.error("Skipping short removal line (expected at least [2] fields): [" + (line == null ? null : Arrays.toString(line)) + "]");
+			errors++;
+			return;
+		}
+		if (commonHandlerService.ignoreMembershipRemovals()) {
+			return;
+		}
+		final String enrollmentSetEid = line[0] == null ? "" : line[0].trim();
+		final String memberEid = line[1] == null ? "" : line[1].trim();
+		if (!commonHandlerService.processEnrollmentSet(enrollmentSetEid)) {
+			if (log.isDebugEnabled()) log.debug("Skipped enrollment removal for user ("+memberEid+") in enrollment set ("+enrollmentSetEid+") which is part of an academic session which is being skipped");
+			return;
+		}
+		try {
+			cmAdmin.addOrUpdateEnrollment(memberEid, enrollmentSetEid, "dropped", "0", "");
+			deletes++;
+		} catch (IdNotFoundException idfe) {
+			dao.create(new SakoraLog(this.getClass().toString(), idfe.getLocalizedMessage()));
+			// the enrollment set is gone so there is nothing left to drop
+		}
+		addTrackingWrite(new CsvTrackingBatch.TrackingWrite() {
+			public void write(CsvTrackingDao dao) {
+				dao.removeMembership("enrollment", memberEid, enrollmentSetEid);
+			}
+		});
+	}
+
 	@Override
 	protected void processInternal(CsvSyncContext context) {
 	    if (commonHandlerService.ignoreMembershipRemovals()) {
 	        if (log.isDebugEnabled()) log.debug("SakoraCSV skipping enrollment membership processing, ignoreMembershipRemovals=true");
+	    } else if (isDeltaInput()) {
+	        if (log.isDebugEnabled()) log.debug("SakoraCSV skipping enrollment membership processing, removals were applied from the delta");
 	    } else {
 	        // do removal processing
 	        loginToSakai();
@@ -124,18 +171,24 @@ public class CsvEnrollmentHandler extends CsvHandlerBase {
 	        while (!done) {
 	            List<Membership> memberships = dao.findBySearch(Membership.class, search);
 	            if (log.isDebugEnabled()) log.debug("SakoraCSV processing "+memberships.size()+" enrollment membership removals");
+	            List<Long> removed = new ArrayList<Long>();
 	            for (Membership membership : memberships) {
 	                try {
 	                    cmAdmin.addOrUpdateEnrollment(membership.getUserEid(), membership.getContainerEid(), "dropped", "0", "");
+	                    removed.add(membership.getId());
 	                } catch (IdNotFoundException idfe) {
 	                    dao.create(new SakoraLog(this.getClass().toString(), idfe.getLocalizedMessage()));
+	                    // the enrollment set is gone so there is nothing left to drop
+	                    removed.add(membership.getId());
 	                }
 	            }
+	            int compactedCount = compactTracking(Membership.class, removed);
 
 	            if (memberships == null || memberships.size() == 0) {
 	                done = true;
 	            } else {
-	                search.setStart(search.getStart() + searchPageSize);
+	                // compacted records are gone so only skip over the ones which are left
+	                search.setStart(search.getStart() + memberships.size() - compactedCount);
 	            }
 	            // should we halt if a stop was requested via pleaseStop?
 	        }
@@ -25,6 +25,7 @@ import net.unicon.sakora.api.csv.CsvSyncContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.coursemanagement.api.EnrollmentSet;
+import org.sakaiproject.coursemanagement.api.exception.IdNotFoundException;
 
 /**
  * Reads in Enrollment Set data from csv extracts, expect format is:
@@ -45,10 +46,15 @@ public class CsvEnrollmentSetHandler extends CsvHandlerBase {
         return "EnrollmentSet";
     }
 
+    @Override
+    protected int getMinFieldCount() {
+        return 6;
+    }
+
 	@Override
 	protected void readInputLine(CsvSyncContext context, String[] line) {
 
-		final int minFieldCount = 6;
+		final int minFieldCount = getMinFieldCount();
 
 		if (line != null && line.length >= minFieldCount) {
 			line = trimAll(line);
@@ -92,6 +98,26 @@ public class CsvEnrollmentSetHandler extends CsvHandlerBase {
 		}
 	}
 
+	/**
+	 * Removes the enrollment set from CM, only explicit removals from a delta are applied
+	 */
+	@Override
+	protected void readDeleteLine(CsvSyncContext context, String[] line) {
+		if (line == null || line.length < 1 || line[0] == null || "".equals(line[0].trim())) {
+			log.error("Skipping removal line without an eid: [" + (line == null ? null : Arrays.toString(line)) + "]");
+			errors++;
+			return;
+		}
+		String eid = line[0].trim();
+		try {
+			cmAdmin.removeEnrollmentSet(eid);
+			deletes++;
+		} catch (IdNotFoundException idfe) {
+			// already gone
+			if (log.isDebugEnabled()) log.debug("Skipped removal of enrollment set ("+eid+") which does not exist");
+		}
+	}
+
 	@Override
 	protected void processInternal(CsvSyncContext context) {
 		// TODO: support for conditionally removing enrollment sets not in current extract?
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Sorted merge diff of a csv feed file against the same file from a previous batch,
+ * both files are sorted by the key columns (see {@link CsvFileSorter}) and then merged
+ * to produce a delta file which only contains the added, changed and removed rows.
+ * 
+ * The delta file has the operation as an extra first column ({@link #OP_ADD}, {@link #OP_UPDATE}
+ * or {@link #OP_DELETE}) followed by the row (the previous row for removals), rows are in key order.
+ * Rows are compared field by field ignoring surrounding whitespace and trailing empty fields.
+ */
+public class CsvFileDiffer {
+
+    private static final Log log = LogFactory.getLog(CsvFileDiffer.class);
+
+    public static final String OP_ADD = "A";
+    public static final String OP_UPDATE = "U";
+    public static final String OP_DELETE = "D";
+    public static final String OP_HEADER = "OP";
+
+    public static final String DELTA_SUFFIX = ".delta";
+
+    private final int[] keyColumns;
+    private final long maxMemoryBytes;
+    private int added = 0;
+    private int updated = 0;
+    private int removed = 0;
+    private int unchanged = 0;
+
+    /**
+     * @param keyColumns the (0 based) columns which identify a row
+     * @param maxMemoryBytes the memory ceiling for sorting (see {@link CsvFileSorter})
+     */
+    public CsvFileDiffer(int[] keyColumns, long maxMemoryBytes) {
+        this.keyColumns = keyColumns;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * Create the delta between the previous and current versions of a feed file
+     * 
+     * @param current the new feed file
+     * @param previous the same feed file from the previous batch
+     * @param hasHeader true if the files have a header row (the delta will have a header as well)
+     * @param tempDir the dir to write the temp files and delta file to
+     * @return the delta file (in the tempDir)
+     * @throws IOException if the files cannot be read or the delta cannot be written
+     */
+    public File diff(File current, File previous, boolean hasHeader, File tempDir) throws IOException {
+        long startTime = System.currentTimeMillis();
+        added = updated = removed = unchanged = 0;
+        CsvFileSorter sorter = new CsvFileSorter(keyColumns, maxMemoryBytes);
+        // both files have the same name (and so the same sorted name) so the previous one is sorted and moved aside first
+        File sortedPrevious = new File(tempDir, previous.getName() + ".previous" + CsvFileSorter.SORTED_SUFFIX);
+        File sorted = sorter.sort(previous, hasHeader, tempDir);
+        if (!sorted.renameTo(sortedPrevious)) {
+            sorted.delete();
+            throw new IOException("Unable to rename ["+sorted+"] to ["+sortedPrevious+"]");
+        }
+        File sortedCurrent = null;
+        File delta = new File(tempDir, current.getName() + DELTA_SUFFIX);
+        CSVReader curReader = null;
+        CSVReader prevReader = null;
+        CSVWriter writer = null;
+        try {
+            sortedCurrent = sorter.sort(current, hasHeader, tempDir);
+            curReader = new CSVReader(new BufferedReader(new FileReader(sortedCurrent)));
+            prevReader = new CSVReader(new BufferedReader(new FileReader(sortedPrevious)));
+            writer = new CSVWriter(new BufferedWriter(new FileWriter(delta)));
+            if (hasHeader) {
+                String[] header = curReader.readNext();
+                prevReader.readNext();
+                writer.writeNext(withOp(OP_HEADER, header == null ? new String[0] : header));
+            }
+            String[] cur = curReader.readNext();
+            String[] prev = prevReader.readNext();
+            while (cur != null || prev != null) {
+                int c;
+                if (cur == null) {
+                    c = 1;
+                } else if (prev == null) {
+                    c = -1;
+                } else {
+                    c = CsvFileSorter.compareKeys(cur, prev, keyColumns);
+                }
+                if (c < 0) {
+                    writer.writeNext(withOp(OP_ADD, cur));
+                    added++;
+                    cur = curReader.readNext();
+                } else if (c > 0) {
+                    writer.writeNext(withOp(OP_DELETE, prev));
+                    removed++;
+                    prev = prevReader.readNext();
+                } else {
+                    if (rowEquals(cur, prev)) {
+                        unchanged++;
+                    } else {
+                        writer.writeNext(withOp(OP_UPDATE, cur));
+                        updated++;
+                    }
+                    cur = curReader.readNext();
+                    prev = prevReader.readNext();
+                }
+            }
+        } finally {
+            close(curReader);
+            close(prevReader);
+            if (writer != null) {
+                writer.close();
+            }
+            if (sortedCurrent != null) {
+                sortedCurrent.delete();
+            }
+            sortedPrevious.delete();
+        }
+        log.info("SakoraCSV diff of "+current.getName()+" against ["+previous.getParentFile().getName()+"]: added="+added+", updated="+updated
+                +", removed="+removed+", unchanged="+unchanged+" in "+(System.currentTimeMillis() - startTime)+" ms");
+        return delta;
+    }
+
+    private static String[] withOp(String op, String[] row) {
+        String[] line = new String[row.length + 1];
+        line[0] = op;
+        System.arraycopy(row, 0, line, 1, row.length);
+        return line;
+    }
+
+    private static boolean rowEquals(String[] row1, String[] row2) {
+        int length = Math.max(row1.length, row2.length);
+        for (int i = 0; i < length; i++) {
+            String v1 = (i < row1.length && row1[i] != null) ? row1[i].trim() : "";
+            String v2 = (i < row2.length && row2[i] != null) ? row2[i].trim() : "";
+            if (!v1.equals(v2)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void close(CSVReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    public int getAdded() {
+        return added;
+    }
+
+    public int getUpdated() {
+        return updated;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+}
@@ -0,0 +1,323 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * External merge sort for csv feed files, sorts the rows by one or more key columns using bounded memory:
+ * the input is split into sorted runs which fit in the memory ceiling (estimated size of the buffered rows),
+ * the runs are written to temp files next to the output and then merged into the sorted output file.
+ * 
+ * The sort is stable (rows with the same keys stay in feed order), keys are compared as trimmed strings
+ * (missing columns sort first) and the header row (if any) is kept first.
+ */
+public class CsvFileSorter {
+
+    private static final Log log = LogFactory.getLog(CsvFileSorter.class);
+
+    public static final String SORTED_SUFFIX = ".sorted";
+    private static final String RUN_PREFIX = ".run";
+    // max number of runs merged at once (each needs an open file)
+    private static final int MAX_MERGE_RUNS = 64;
+
+    // rough per row and per field overhead (object headers, array slots, string fields)
+    private static final int ROW_OVERHEAD_BYTES = 32;
+    private static final int FIELD_OVERHEAD_BYTES = 48;
+
+    private final int[] keyColumns;
+    private final long maxMemoryBytes;
+    private int runs = 0;
+    private int maxRowsInRun = 0;
+
+    /**
+     * @param keyColumns the (0 based) columns to sort by, in order of precedence
+     * @param maxMemoryBytes the memory ceiling for the buffered rows (estimated), at least 1 row is always buffered
+     */
+    public CsvFileSorter(int[] keyColumns, long maxMemoryBytes) {
+        if (keyColumns == null || keyColumns.length == 0) {
+            throw new IllegalArgumentException("keyColumns must be set");
+        }
+        for (int keyColumn : keyColumns) {
+            if (keyColumn < 0) {
+                throw new IllegalArgumentException("keyColumns must be 0 or greater");
+            }
+        }
+        this.keyColumns = keyColumns.clone();
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * Sort a csv file
+     * 
+     * @param input the csv file to sort
+     * @param hasHeader true if the first row is a header (kept as the first row)
+     * @param tempDir the dir to write the temp runs and sorted output to
+     * @return the sorted file (in the tempDir)
+     * @throws IOException if the file cannot be read or the output cannot be written
+     */
+    public File sort(File input, boolean hasHeader, File tempDir) throws IOException {
+        long startTime = System.currentTimeMillis();
+        File output = new File(tempDir, input.getName() + SORTED_SUFFIX);
+        List<File> runs = new ArrayList<File>();
+        // every temp run file is tracked before it is written so a failed sort leaves nothing behind
+        List<File> temps = new ArrayList<File>();
+        boolean sorted = false;
+        String[] header = null;
+        int rows = 0;
+        long bufferBytes = 0;
+        int spilled = 0;
+        CSVReader reader = new CSVReader(new BufferedReader(new FileReader(input)));
+        try {
+            if (hasHeader) {
+                header = reader.readNext();
+            }
+            List<String[]> buffer = new ArrayList<String[]>();
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                buffer.add(row);
+                rows++;
+                bufferBytes += estimateSize(row);
+                if (bufferBytes >= maxMemoryBytes) {
+                    runs.add(writeRun(buffer, output, runs.size(), temps));
+                    buffer.clear();
+                    bufferBytes = 0;
+                }
+            }
+            if (runs.isEmpty()) {
+                // everything fit in memory
+                maxRowsInRun = buffer.size();
+                Collections.sort(buffer, rowComparator);
+                writeRows(output, header, buffer);
+            } else {
+                if (!buffer.isEmpty()) {
+                    runs.add(writeRun(buffer, output, runs.size(), temps));
+                }
+                buffer = null;
+                spilled = runs.size();
+                // merge consecutive runs (keeps the sort stable) until there are few enough to merge at once
+                int runNumber = runs.size();
+                while (runs.size() > MAX_MERGE_RUNS) {
+                    List<File> mergedRuns = new ArrayList<File>();
+                    for (int i = 0; i < runs.size(); i += MAX_MERGE_RUNS) {
+                        List<File> group = runs.subList(i, Math.min(i + MAX_MERGE_RUNS, runs.size()));
+                        File run = new File(output.getParentFile(), output.getName() + RUN_PREFIX + runNumber++);
+                        mergedRuns.add(run);
+                        temps.add(run);
+                        merge(group, null, run);
+                        for (File done : group) {
+                            done.delete();
+                        }
+                    }
+                    runs = mergedRuns;
+                }
+                merge(runs, header, output);
+            }
+            sorted = true;
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            for (File run : temps) {
+                if (run.exists() && !run.delete()) {
+                    run.deleteOnExit();
+                }
+            }
+            if (!sorted) {
+                // partial output
+                output.delete();
+            }
+        }
+        this.runs = spilled;
+        log.info("SakoraCSV sorted "+rows+" rows of "+input.getName()+" by columns "+Arrays.toString(keyColumns)+" in "
+                +(System.currentTimeMillis() - startTime)+" ms ("+spilled+" runs spilled to disk, max "+maxRowsInRun+" rows in memory)");
+        return output;
+    }
+
+    private File writeRun(List<String[]> buffer, File output, int runNumber, List<File> temps) throws IOException {
+        maxRowsInRun = Math.max(maxRowsInRun, buffer.size());
+        Collections.sort(buffer, rowComparator);
+        File run = new File(output.getParentFile(), output.getName() + RUN_PREFIX + runNumber);
+        temps.add(run);
+        writeRows(run, null, buffer);
+        return run;
+    }
+
+    private void writeRows(File file, String[] header, List<String[]> rows) throws IOException {
+        CSVWriter writer = new CSVWriter(new BufferedWriter(new FileWriter(file)));
+        try {
+            if (header != null) {
+                writer.writeNext(header);
+            }
+            for (String[] row : rows) {
+                writer.writeNext(row);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void merge(List<File> runs, String[] header, File output) throws IOException {
+        List<CSVReader> readers = new ArrayList<CSVReader>(runs.size());
+        CSVWriter writer = null;
+        try {
+            PriorityQueue<RunHead> heads = new PriorityQueue<RunHead>(runs.size());
+            for (int i = 0; i < runs.size(); i++) {
+                CSVReader reader = new CSVReader(new BufferedReader(new FileReader(runs.get(i))));
+                readers.add(reader);
+                String[] row = reader.readNext();
+                if (row != null) {
+                    heads.add(new RunHead(row, i));
+                }
+            }
+            writer = new CSVWriter(new BufferedWriter(new FileWriter(output)));
+            if (header != null) {
+                writer.writeNext(header);
+            }
+            while (!heads.isEmpty()) {
+                RunHead head = heads.poll();
+                writer.writeNext(head.row);
+                String[] next = readers.get(head.run).readNext();
+                if (next != null) {
+                    heads.add(new RunHead(next, head.run));
+                }
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+            for (CSVReader reader : readers) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static long estimateSize(String[] row) {
+        long size = ROW_OVERHEAD_BYTES;
+        for (String field : row) {
+            size += FIELD_OVERHEAD_BYTES + (field == null ? 0 : 2L * field.length());
+        }
+        return size;
+    }
+
+    private static String key(String[] row, int column) {
+        return (row.length > column && row[column] != null) ? row[column].trim() : "";
+    }
+
+    /**
+     * Compare 2 rows by the key columns (the same order the sorter uses)
+     * 
+     * @return negative, 0 or positive like {@link Comparator#compare(Object, Object)}
+     */
+    public static int compareKeys(String[] row1, String[] row2, int[] keyColumns) {
+        for (int column : keyColumns) {
+            int c = key(row1, column).compareTo(key(row2, column));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    private final Comparator<String[]> rowComparator = new Comparator<String[]>() {
+        public int compare(String[] o1, String[] o2) {
+            return compareKeys(o1, o2, keyColumns);
+        }
+    };
+
+    /**
+     * @return the number of sorted runs spilled to disk by the last sort (0 if it fit in memory)
+     */
+    public int getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return the max number of rows held in memory by the last sort
+     */
+    public int getMaxRowsInRun() {
+        return maxRowsInRun;
+    }
+
+    /**
+     * Parse a sort columns config value
+     * 
+     * @param value comma separated list of 0 based column numbers (e.g. "0,1"), blank for none
+     * @return the columns OR null if none are set
+     * @throws IllegalArgumentException if the value is invalid
+     */
+    public static int[] parseColumns(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        int[] columns = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                columns[i] = Integer.parseInt(parts[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid sort column ("+parts[i]+") in: "+value);
+            }
+            if (columns[i] < 0) {
+                throw new IllegalArgumentException("Invalid sort column ("+parts[i]+") in: "+value);
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * The current row of a sorted run, ties are broken by the run number to keep the sort stable
+     */
+    private class RunHead implements Comparable<RunHead> {
+        final String[] row;
+        final int run;
+        RunHead(String[] row, int run) {
+            this.row = row;
+            this.run = run;
+        }
+        public int compareTo(RunHead other) {
+            int c = rowComparator.compare(row, other.row);
+            return (c != 0 ? c : (run < other.run ? -1 : (run == other.run ? 0 : 1)));
+        }
+    }
+
+}
@@ -20,23 +20,27 @@ package net.unicon.sakora.impl.csv;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import net.unicon.sakora.api.csv.CsvHandler;
 import net.unicon.sakora.api.csv.CsvSyncContext;
 import net.unicon.sakora.api.csv.CsvSyncService;
 import net.unicon.sakora.api.csv.model.SakoraLog;
+import net.unicon.sakora.impl.csv.dao.CsvBulkSyncDao;
 import net.unicon.sakora.impl.csv.dao.CsvSyncDao;
+import net.unicon.sakora.impl.csv.dao.CsvTrackingBatch;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -55,6 +59,7 @@ import org.sakaiproject.exception.TypeException;
 import org.sakaiproject.tool.api.Session;
 import org.sakaiproject.tool.api.SessionManager;
 import org.sakaiproject.user.api.UserDirectoryService;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import au.com.bytecode.opencsv.CSVReader;
 
@@ -84,6 +89,9 @@ public abstract class CsvHandlerBase implements CsvHandler {
 	protected int searchPageSize = 1000;
 	protected Date time = null;
 	protected CsvSyncDao dao;
+	protected PlatformTransactionManager transactionManager;
+	protected CsvBulkSyncDao bulkDao;
+	protected CsvTrackingBatch trackingBatch = null;
 	protected boolean hasHeader = false;
 	protected File inputFile = null;
 	protected BufferedReader br = null;
@@ -93,15 +101,23 @@ public abstract class CsvHandlerBase implements CsvHandler {
 	protected int adds = 0;
 	protected int updates = 0;
 	protected int deletes = 0;
+	protected int compacted = 0;
+	protected int trackingFailures = 0;
 	protected int seconds = 0;
 	protected int start = 0;
 	protected int end = 0;
+	// CPU time and allocated bytes of the handler thread (and any worker threads) between before and after
+	protected final CsvThreadAccounting.Usage usage = new CsvThreadAccounting.Usage();
+	private long[] usageStart = null;
 	protected ContentHostingService contentHostingService = null;
 	protected ServerConfigurationService configurationService = null;
 	protected CsvCommonHandlerService commonHandlerService = null;
 
 	// By default date strings look like "2007-09-06", "2007-11-14"
 	protected String dateFormat = "yyyy-MM-dd";
+	protected String sortColumns = null;
+	protected String diffKeyColumns = null;
+	protected boolean deltaInput = false;
 
 	public void init() {}
 	
@@ -120,18 +136,38 @@ public abstract class CsvHandlerBase implements CsvHandler {
 	    adds = 0;
 	    updates = 0;
 	    deletes = 0;
+	    compacted = 0;
+	    trackingFailures = 0;
+	    // the handlers are singletons, only this run's input may make it a delta
+	    deltaInput = false;
+	    usage.reset();
+	    usageStart = commonHandlerService.isThreadAccounting() ? CsvThreadAccounting.snapshot() : null;
 
 	    time = new Date();
 	    start = (int) (time.getTime() / 1000);
+	    Date checkpointTime = commonHandlerService.getCheckpointTime(getName());
+	    if (checkpointTime != null) {
+	        // resuming, the tracking records already written by this handler have this input time
+	        time = checkpointTime;
+	    }
+	    trackingBatch = new CsvTrackingBatch(transactionManager, dao, 
+	            (commonHandlerService.trackingBulkMode() ? bulkDao : null),
+	            commonHandlerService.getTrackingBatchSize(), commonHandlerService.getTrackingFlushSize());
 	}
 
 	/* (non-Javadoc)
 	 * @see net.unicon.sakora.api.csv.CsvHandler#after(net.unicon.sakora.api.csv.CsvSyncContext)
 	 */
 	public void after(CsvSyncContext context) {
+	    // write out anything left over (normally already flushed at the end of readInput)
+	    flushTrackingWrites();
 	    // update stats
 	    end = (int) (new Date().getTime() / 1000);
 	    seconds = end - start;
+	    if (usageStart != null) {
+	        usage.addSince(usageStart);
+	        usageStart = null;
+	    }
 	    // helpful logging
 	    String handlerName = this.getClass().getSimpleName().replace("Handler", "").replace("Csv", "");
 	    if ("fail".equals(commonHandlerService.getCurrentSyncState())) {
@@ -145,6 +181,26 @@ public abstract class CsvHandlerBase implements CsvHandler {
 	        log.warn("SakoraCSV handler "+handlerName+" encountered "+errors+" errors while processing "+lines+" lines, please check and correct the feed");
 	    }
 	    log.info("SakoraCSV handler "+handlerName+" processing "+lines+" lines with "+errors+" errors: adds="+adds+", updates="+updates+", deletes="+deletes);
+	    if (trackingBatch != null && trackingBatch.getWrites() > 0) {
+	        log.info("SakoraCSV handler "+handlerName+" wrote "+trackingBatch.getWrites()+" tracking records in "+trackingBatch.getCommits()+" batch commits ("+trackingBatch.getFailures()+" failures)");
+	    }
+	    if (compacted > 0) {
+	        log.info("SakoraCSV handler "+handlerName+" compacted "+compacted+" tracking records for applied removals");
+	    }
+	    if (commonHandlerService.isThreadAccounting()) {
+	        log.info("SakoraCSV handler "+handlerName+" used "+usage.getCpuMillis()+" ms CPU and allocated "+usage.getAllocatedKB()
+	                +" KB ("+usage.getAllocatedBytesPerLine(lines)+" bytes per line)");
+	    }
+	}
+
+	/**
+	 * The CPU time and allocated bytes of this handler, a worker thread which does work for this handler
+	 * adds its own usage with {@link CsvThreadAccounting.Usage#addSince(long[])}
+	 * 
+	 * @return the usage for the current (or last) run of this handler
+	 */
+	public CsvThreadAccounting.Usage getUsage() {
+	    return usage;
 	}
 
 	/* (non-Javadoc)
@@ -162,9 +218,16 @@ public abstract class CsvHandlerBase implements CsvHandler {
 	    stats.put("adds", adds);
 	    stats.put("updates", updates);
 	    stats.put("deletes", deletes);
+	    stats.put("compacted", compacted);
+	    stats.put("trackingFailures", trackingFailures);
 	    stats.put("start", start);
 	    stats.put("seconds", seconds);
 	    stats.put("end", end);
+	    // -1 when not measured (turned off or not supported by the JVM)
+	    boolean accounting = commonHandlerService == null || commonHandlerService.isThreadAccounting();
+	    stats.put("cpuMillis", accounting ? usage.getCpuMillis() : -1);
+	    stats.put("allocatedKB", accounting ? usage.getAllocatedKB() : -1);
+	    stats.put("allocatedBytesPerLine", accounting ? usage.getAllocatedBytesPerLine(lines) : -1);
 	    return stats;
 	}
 
@@ -199,8 +262,8 @@ public abstract class CsvHandlerBase implements CsvHandler {
 					e.printStackTrace();
 				}
 			} else {
-				inputFile = new File(csvPath);
-				br = new BufferedReader(new FileReader(inputFile));
+				inputFile = prepareInputFile(context, new File(csvPath));
+				br = new BufferedReader(new InputStreamReader(commonHandlerService.getProgress().track(getName(), inputFile, new FileInputStream(inputFile))));
 			}
 
 			csvr = new CSVReader(br);
@@ -239,6 +302,13 @@ public abstract class CsvHandlerBase implements CsvHandler {
 				}
 			}
 		}
+		if (inputFile != null && (inputFile.getName().endsWith(CsvFileSorter.SORTED_SUFFIX)
+		        || inputFile.getName().endsWith(CsvFileDiffer.DELTA_SUFFIX))) {
+			// remove the temp sorted or delta copy of the input
+			if (!inputFile.delete() && log.isDebugEnabled()) {
+				log.debug("SakoraCSV Failed to remove temporary input file: " + inputFile);
+			}
+		}
 	}
 
 	public void readInput(CsvSyncContext context) {
@@ -254,17 +324,65 @@ public abstract class CsvHandlerBase implements CsvHandler {
 		    String[] line = null;
 		    try {
 		        int linesReadCnt = 0;
+		        int resumeLines = isResumable() ? commonHandlerService.getCheckpointLines(getName()) : 0;
+		        int checkpointInterval = isResumable() ? commonHandlerService.getCheckpointInterval() : 0;
+		        if (resumeLines > 0) {
+		            log.info("SakoraCSV "+getName()+" resuming after the "+resumeLines+" input records applied before the checkpoint");
+		        }
+		        CsvSyncMetrics metrics = commonHandlerService.getMetrics();
+		        CsvSyncProgress progress = commonHandlerService.getProgress();
+		        CsvSyncTrace trace = commonHandlerService.getTrace();
+		        boolean rowTracing = trace.isRowTracing();
+		        long parseStart = metrics.start();
 		        while (csvr != null && (line = csvr.readNext()) != null) {
+		            metrics.phase(CsvSyncMetrics.PHASE_PARSE, parseStart);
 		            if ( pleaseStop ) {
 		                throw new IllegalStateException("Handler received a stop request. Abandoning input read of [" + context.getProperties().get(BATCH_FILE_PATH) + "]. This exception is thrown to ensure proper cleanup of overall batch state.");
 		            }
+		            if (linesReadCnt < resumeLines) {
+		                // already applied by the failed run
+		                linesReadCnt++;
+		                parseStart = metrics.start();
+		                continue;
+		            }
 		            if ( log.isDebugEnabled() ) {
 		                log.debug("Handling line: " + Arrays.toString(line));
 		            }
-		            readInputLine(context, line);
+		            long lineStart = metrics.start();
+		            if (rowTracing) {
+		                metrics.rowStart();
+		                if (lineStart == 0L) {
+		                    lineStart = System.nanoTime();
+		                }
+		            }
+		            if (deltaInput) {
+		                readDeltaLine(context, line);
+		            } else {
+		                readInputLine(context, line);
+		            }
+		            if (rowTracing) {
+		                long rowNanos = System.nanoTime() - lineStart;
+		                if (trace.isSlow(rowNanos)) {
+		                    trace.row(getName(), getRowKey(deltaInput && line.length > 0 ? Arrays.copyOfRange(line, 1, line.length) : line),
+		                            rowNanos, metrics.rowBreakdown());
+		                }
+		            }
+		            metrics.phase(CsvSyncMetrics.PHASE_LINE, lineStart);
 		            lines++;
 		            linesReadCnt++;
+		            progress.lineProcessed(trackingBatch == null ? 0 : trackingBatch.getPendingCount());
+		            if (checkpointInterval > 0 && linesReadCnt % checkpointInterval == 0) {
+		                // the checkpoint must only cover records which are completely written
+		                if (flushTrackingWrites() > 0 || trackingFailures > 0) {
+		                    // lost tracking writes, a resume has to apply those rows again so the checkpoint stays before them
+		                    if (log.isDebugEnabled()) log.debug("SakoraCSV "+getName()+" not checkpointing at "+linesReadCnt+" input records after "+trackingFailures+" failed tracking writes");
+		                } else {
+		                    commonHandlerService.checkpoint(getName(), time, linesReadCnt - getUnappliedLines());
+		                }
+		            }
+		            parseStart = metrics.start();
 		        }
+		        readInputComplete(context);
 		        context.getProperties().put(READ_ALL_LINES, (linesReadCnt > 0 ? "true" : "false"));
 		    } catch ( IOException e ) {
 		        // this is very unlikely since the file read attempt was already made previously and would have died before getting here
@@ -276,6 +394,8 @@ public abstract class CsvHandlerBase implements CsvHandler {
 		        log.error(getClass().getSimpleName() + ":: " + ine.getLocalizedMessage(), ine);
 		    }
 		    finally {
+		        // tracking writes must be in the DB before processInternal looks for removals
+		        flushTrackingWrites();
 		        logoutFromSakai();
 		        dao.create(new SakoraLog(this.getClass().toString(),
 		                (pleaseStop ? "Aborted" : "Finished") + 
@@ -287,14 +407,249 @@ public abstract class CsvHandlerBase implements CsvHandler {
 	}
 	
 	protected abstract void readInputLine(CsvSyncContext context, String[] line);
+
+	/**
+	 * The key of an input row for the slow row trace (see {@link CsvSyncTrace}), by default the first column (the EID)
+	 * 
+	 * @param line the input row (without the delta operation column)
+	 * @return the row key
+	 */
+	protected String getRowKey(String[] line) {
+		return (line != null && line.length > 0) ? line[0] : null;
+	}
+
+	/**
+	 * The min number of fields in an input row (without the delta operation column), shorter rows are skipped as errors
+	 * 
+	 * @return the min field count
+	 */
+	protected int getMinFieldCount() {
+		return 1;
+	}
+
+	/**
+	 * Allows a handler to prepare (e.g. sort) the input file before it is read,
+	 * a delta feed (deltaFeed) or a diff against the previous batch (diffMode) makes the input a delta,
+	 * called from {@link #setup(CsvSyncContext)}
+	 * 
+	 * @param context the sync context
+	 * @param file the input file in the batch processing dir
+	 * @return the file to read (by default the input file)
+	 * @throws IOException if the file cannot be read or prepared (FileNotFoundException if it does not exist)
+	 */
+	protected File prepareInputFile(CsvSyncContext context, File file) throws IOException {
+	    deltaInput = false;
+	    if (commonHandlerService.deltaFeed()) {
+	        // native delta feed, the operation is already the first column
+	        deltaInput = true;
+	        int[] columns = getInputSortColumns();
+	        if (columns == null) {
+	            return file;
+	        }
+	        int[] shifted = new int[columns.length];
+	        for (int i = 0; i < columns.length; i++) {
+	            shifted[i] = columns[i] + 1;
+	        }
+	        // the sort is stable so operations on the same row stay in feed order
+	        CsvFileSorter sorter = new CsvFileSorter(shifted, commonHandlerService.getSortMemoryCeilingBytes());
+	        return sorter.sort(file, hasHeader, file.getParentFile());
+	    }
+	    int[] keyColumns = getInputDiffKeyColumns();
+	    if (keyColumns != null && commonHandlerService.diffMode()) {
+	        if (!file.exists()) {
+	            throw new FileNotFoundException(file.getPath() + " (No such file)");
+	        }
+	        File previous = CsvSyncServiceImpl.findPreviousBatchFile(context.getProperties().get(CsvSyncServiceImpl.BATCH_UPLOAD_DIR), file.getName());
+	        if (previous != null) {
+	            CsvFileDiffer differ = new CsvFileDiffer(keyColumns, commonHandlerService.getSortMemoryCeilingBytes());
+	            File delta = differ.diff(file, previous, hasHeader, file.getParentFile());
+	            deltaInput = true;
+	            dao.create(new SakoraLog(this.getClass().toString(), "Diffed [" + file.getName() + "] against [" + previous.getParentFile().getName()
+	                    + "]: added " + differ.getAdded() + ", updated " + differ.getUpdated() + ", removed " + differ.getRemoved() + ", unchanged " + differ.getUnchanged()));
+	            return delta;
+	        }
+	        log.info("SakoraCSV diffMode: no finished batch contains " + file.getName() + ", processing it as a full snapshot");
+	    }
+	    int[] columns = getInputSortColumns();
+	    if (columns == null) {
+	        return file;
+	    }
+	    CsvFileSorter sorter = new CsvFileSorter(columns, commonHandlerService.getSortMemoryCeilingBytes());
+	    // temp runs and the sorted file go in the batch processing dir
+	    return sorter.sort(file, hasHeader, file.getParentFile());
+	}
+
+	/**
+	 * The columns to sort the input file by before it is read (see sortColumns),
+	 * net.unicon.sakora.csv.sortColumns.{handler name} overrides the value from the spring config
+	 * 
+	 * @return the 0 based columns OR null to read the file in feed order
+	 */
+	protected int[] getInputSortColumns() {
+	    String value = configurationService.getString("net.unicon.sakora.csv.sortColumns." + getName(), sortColumns);
+	    try {
+	        return CsvFileSorter.parseColumns(value);
+	    } catch (IllegalArgumentException e) {
+	        log.error("SakoraCSV invalid sort columns for "+getName()+", the file will not be sorted: "+e.getMessage());
+	        return null;
+	    }
+	}
+
+	/**
+	 * The key columns used to diff the input file against the previous batch in diffMode (see diffKeyColumns),
+	 * net.unicon.sakora.csv.diffKeyColumns.{handler name} overrides the value from the spring config
+	 * 
+	 * @return the 0 based columns OR null if this handler always reads the full file
+	 */
+	protected int[] getInputDiffKeyColumns() {
+	    String value = configurationService.getString("net.unicon.sakora.csv.diffKeyColumns." + getName(), diffKeyColumns);
+	    try {
+	        return CsvFileSorter.parseColumns(value);
+	    } catch (IllegalArgumentException e) {
+	        log.error("SakoraCSV invalid diff key columns for "+getName()+", the file will not be diffed: "+e.getMessage());
+	        return null;
+	    }
+	}
+
+	/**
+	 * Handles a line of a delta input file (operation in the first column),
+	 * adds and updates go to {@link #readInputLine(CsvSyncContext, String[])}
+	 * and removals go to {@link #readDeleteLine(CsvSyncContext, String[])}
+	 * 
+	 * @param context the sync context
+	 * @param line the delta line (op followed by the row)
+	 */
+	protected void readDeltaLine(CsvSyncContext context, String[] line) {
+	    String op = (line != null && line.length > 0 && line[0] != null) ? line[0].trim().toUpperCase() : "";
+	    String[] row = (line != null && line.length > 0) ? Arrays.copyOfRange(line, 1, line.length) : new String[0];
+	    if (CsvFileDiffer.OP_DELETE.equals(op)) {
+	        readDeleteLine(context, row);
+	    } else if (CsvFileDiffer.OP_ADD.equals(op) || CsvFileDiffer.OP_UPDATE.equals(op)) {
+	        readInputLine(context, row);
+	    } else {
+	        log.error("SakoraCSV Skipping delta line with invalid operation ("+op+"): " + Arrays.toString(line));
+	        errors++;
+	    }
+	}
+
+	/**
+	 * Handles a removed row from a delta input file (D operation),
+	 * handlers which support delta input must apply the removal (and remove the tracking record)
+	 * 
+	 * @param context the sync context
+	 * @param line the removed row (same format as the feed file)
+	 */
+	protected void readDeleteLine(CsvSyncContext context, String[] line) {
+	    log.warn("SakoraCSV "+getName()+" does not support removals from delta input, skipping: " + Arrays.toString(line));
+	    errors++;
+	}
+
+	/**
+	 * @return true if the current input is a delta (only changed rows) instead of a full snapshot,
+	 * the removal processing has been done while reading in that case
+	 */
+	public boolean isDeltaInput() {
+	    return deltaInput;
+	}
+
+	/**
+	 * @return true if this handler can continue part way through its input when a failed batch is resumed,
+	 * handlers which only apply their input after reading all of it must return false (the input is read again)
+	 */
+	protected boolean isResumable() {
+	    return true;
+	}
+
+	/**
+	 * @return the number of records most recently passed to {@link #readInputLine(CsvSyncContext, String[])}
+	 * which are held by the handler and have not been applied yet (they are read again when resuming)
+	 */
+	protected int getUnappliedLines() {
+	    return 0;
+	}
+
+	/**
+	 * Called once all lines have been passed to {@link #readInputLine(CsvSyncContext, String[])}
+	 * (not called if the read fails), allows handlers which group lines to apply the last group
+	 * 
+	 * @param context the sync context
+	 */
+	protected void readInputComplete(CsvSyncContext context) {
+	    // nothing by default
+	}
+
+	/**
+	 * Queues a write to the tracking tables (SAKORA_MEMBERSHIP, SAKORA_PERSON, SAKORA_SESSION),
+	 * the writes are grouped into transactions of trackingBatchSize and are always
+	 * flushed before the end of {@link #readInput(CsvSyncContext)}
+	 * 
+	 * @param write the tracking write (only tracking DAO calls, no CM or user calls)
+	 */
+	protected void addTrackingWrite(CsvTrackingBatch.TrackingWrite write) {
+	    if (trackingBatch == null) {
+	        // before() was not called, just do the write now
+	        write.write(dao);
+	    } else {
+	        countTrackingFailures(trackingBatch.add(write));
+	    }
+	}
+
+	/**
+	 * Executes all currently queued tracking writes
+	 * 
+	 * @return the number of tracking writes which failed and were lost
+	 */
+	protected int flushTrackingWrites() {
+	    if (trackingBatch == null) {
+	        return 0;
+	    }
+	    long start = commonHandlerService.getMetrics().start();
+	    int lost = trackingBatch.flush();
+	    commonHandlerService.getMetrics().phase(CsvSyncMetrics.PHASE_TRACKING_FLUSH, start);
+	    countTrackingFailures(lost);
+	    return lost;
+	}
+
+	/**
+	 * A lost tracking write is an error, the CM or user change was applied but without its tracking record
+	 * the removal processing will never remove it
+	 */
+	private void countTrackingFailures(int lost) {
+	    if (lost > 0) {
+	        trackingFailures += lost;
+	        errors += lost;
+	    }
+	}
 	
+	/**
+	 * Removes the tracking records for removals which have been applied (or which can never be applied
+	 * because the container or user no longer exists) so they are not selected and removed again on every later run,
+	 * does nothing unless trackingCompaction is enabled
+	 * 
+	 * NOTE: callers which are paging through removals must only advance the page start by the number of records kept
+	 * 
+	 * @param type the tracking record type (Membership or Person)
+	 * @param ids the ids of the tracking records to remove
+	 * @return the number of tracking records removed
+	 */
+	protected <T> int compactTracking(Class<T> type, List<? extends Serializable> ids) {
+	    if (ids == null || ids.isEmpty() || !commonHandlerService.trackingCompaction()) {
+	        return 0;
+	    }
+	    dao.deleteSet(type, ids.toArray(new Serializable[ids.size()]));
+	    compacted += ids.size();
+	    return ids.size();
+	}
+
 	public void process(CsvSyncContext context) {
 		if ( pleaseStop ) {
 			throw new IllegalStateException("Handler received a stop request. Abandoning snapshot processing of [" + context.getProperties().get(BATCH_FILE_PATH) + "]. This exception is thrown to ensure proper cleanup of overall batch state.");
 		}
 		String readAllLines = context.getProperties().get(READ_ALL_LINES);
 		if ( readAllLines != null && Boolean.parseBoolean(readAllLines) ) {
+			long start = commonHandlerService.getMetrics().start();
 			processInternal(context);
+			commonHandlerService.getMetrics().phase(CsvSyncMetrics.PHASE_REMOVAL, start);
 		} else {
 		    dao.create(new SakoraLog(this.getClass().toString(), "Skipped post processing for "+getName()+" because we only partially processed the lines in CSV file [" + context.getProperties().get(BATCH_FILE_PATH) + "]"));
 		    if ( log.isDebugEnabled() ) {
@@ -315,6 +670,15 @@ public abstract class CsvHandlerBase implements CsvHandler {
 	 * @return if item is valid
 	 */
 	protected boolean isValid(Object item, String label, String eid) {
+		long start = commonHandlerService.getMetrics().start();
+		try {
+		    return checkValid(item, label, eid);
+		} finally {
+		    commonHandlerService.getMetrics().phase(CsvSyncMetrics.PHASE_VALIDATE, start);
+		}
+	}
+
+	private boolean checkValid(Object item, String label, String eid) {
 		if (eid == null) {
 			dao.create(new SakoraLog(this.getClass().toString(), "A valid Eid value is required"));
 			return false;
@@ -379,7 +743,21 @@ public abstract class CsvHandlerBase implements CsvHandler {
 		this.cmService = cmService;
 	}
 
+	protected CsvSyncRunSession runSession;
+	/**
+	 * Optional, if set then all the phases of a sync run share one Sakai session per thread
+	 * 
+	 * @param runSession the run scoped session (started and ended by the sync service)
+	 */
+	public void setRunSession(CsvSyncRunSession runSession) {
+		this.runSession = runSession;
+	}
+
 	protected void loginToSakai() {
+	    if (runSession != null && runSession.isRunning()) {
+	        runSession.enter();
+	        return;
+	    }
 	    Session sakaiSession = sessionManager.getCurrentSession();
 		sakaiSession.setUserId("admin");
 		sakaiSession.setUserEid("admin");
@@ -395,6 +773,10 @@ public abstract class CsvHandlerBase implements CsvHandler {
 	}
 
 	protected void logoutFromSakai() {
+	    if (runSession != null && runSession.isRunning()) {
+	        // the run session is invalidated once the run ends
+	        return;
+	    }
 	    Session sakaiSession = sessionManager.getCurrentSession();
 		sakaiSession.invalidate();
 
@@ -418,6 +800,32 @@ public abstract class CsvHandlerBase implements CsvHandler {
 		this.dao = dao;
 	}
 
+	public PlatformTransactionManager getTransactionManager() {
+		return transactionManager;
+	}
+
+	/**
+	 * Optional, if not set then all tracking table writes are committed separately
+	 * 
+	 * @param transactionManager the transaction manager for the tracking DAO
+	 */
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
+	public CsvBulkSyncDao getBulkDao() {
+		return bulkDao;
+	}
+
+	/**
+	 * Optional, only used when trackingBulkMode is enabled
+	 * 
+	 * @param bulkDao the stateless session tracking DAO
+	 */
+	public void setBulkDao(CsvBulkSyncDao bulkDao) {
+		this.bulkDao = bulkDao;
+	}
+
 	public boolean isHasHeader() {
 		return hasHeader;
 	}
@@ -456,6 +864,30 @@ public abstract class CsvHandlerBase implements CsvHandler {
 		this.dateFormat = dateFormat;
 	}
 
+	public String getSortColumns() {
+		return sortColumns;
+	}
+
+	/**
+	 * @param sortColumns comma separated list of 0 based columns to sort the input file by before it is read (e.g. "0,1"),
+	 * null or blank (DEFAULT) reads the file in feed order
+	 */
+	public void setSortColumns(String sortColumns) {
+		this.sortColumns = sortColumns;
+	}
+
+	public String getDiffKeyColumns() {
+		return diffKeyColumns;
+	}
+
+	/**
+	 * @param diffKeyColumns comma separated list of 0 based columns which identify a row (e.g. "0,1"),
+	 * enables diffing against the previous batch when diffMode is on (the handler must implement {@link #readDeleteLine(CsvSyncContext, String[])})
+	 */
+	public void setDiffKeyColumns(String diffKeyColumns) {
+		this.diffKeyColumns = diffKeyColumns;
+	}
+
 	public String getCsvFileName() {
 		return csvFileName;
 	}
@@ -20,6 +20,7 @@ package net.unicon.sakora.impl.csv;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -28,6 +29,8 @@ import java.util.Set;
 import net.unicon.sakora.api.csv.CsvSyncContext;
 import net.unicon.sakora.api.csv.model.Membership;
 import net.unicon.sakora.api.csv.model.SakoraLog;
+import net.unicon.sakora.impl.csv.dao.CsvTrackingBatch;
+import net.unicon.sakora.impl.csv.dao.CsvTrackingDao;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -65,10 +68,44 @@ public class CsvMembershipHandler extends CsvHandlerBase {
         return MODE_SECTION.equals(mode) ? "SectionMembership" : "CourseMembership";
     }
 
+    @Override
+    protected int getMinFieldCount() {
+        return 4;
+    }
+
+    // clustered section processing (see sectionMembershipClustered)
+    private boolean clustered = false;
+    private String groupEid = null;
+    private List<MembershipRow> groupRows = new ArrayList<MembershipRow>();
+
+    @Override
+    public void before(CsvSyncContext context) {
+        super.before(context);
+        clustered = MODE_SECTION.equals(mode) && commonHandlerService.isSectionMembershipClustered();
+        groupEid = null;
+        groupRows.clear();
+    }
+
+    @Override
+    protected int[] getInputSortColumns() {
+        int[] columns = super.getInputSortColumns();
+        if (clustered && (columns == null || columns[0] != 0)) {
+            // must be sorted by section EID so each section can be processed as a unit
+            columns = new int[] {0};
+        }
+        return columns;
+    }
+
+	@Override
+	protected String getRowKey(String[] line) {
+		// memberships are keyed by the container and the user
+		return (line != null && line.length > 1) ? line[0] + "/" + line[1] : super.getRowKey(line);
+	}
+
 	@Override
 	protected void readInputLine(CsvSyncContext context, String[] line) {
 		
-		final int minFieldCount = 4;
+		final int minFieldCount = getMinFieldCount();
 
 		if (line != null && line.length >= minFieldCount) {
 			line = trimAll(line);
@@ -86,6 +123,7 @@ public class CsvMembershipHandler extends CsvHandlerBase {
 			if (line.length > 5 && line[5] != null) {
 				gradingScheme = line[5];
 			}
+			MembershipRow row = new MembershipRow(eid, userEid, role, status, credits, gradingScheme);
 
 			try {
 				if (!isValid(userEid, "User Eid", eid)
@@ -93,37 +131,21 @@ public class CsvMembershipHandler extends CsvHandlerBase {
 						|| !isValid(status, "Status", eid)) {
 					log.error("Missing required parameter(s), skipping item " + eid);
 					errors++;
+				} else if (clustered) {
+				    // SECTION MEMBERSHIPS (clustered, the file is sorted by section)
+				    if (!eid.equals(groupEid)) {
+				        applySectionGroup();
+				        groupEid = eid;
+				    }
+				    groupRows.add(row);
+				    return; // tracked when the group is applied
 				} else if (MODE_SECTION.equals(mode)) {
 				    // SECTION MEMBERSHIPS
 				    if (commonHandlerService.processSection(eid)) {
 				        Section section = cmService.getSection(eid);
-				        EnrollmentSet enrolled = section.getEnrollmentSet();
-
-				        if (enrolled == null) {
-				            // no enrollment set yet - create one
-				            String esEid = section.getEid() + "_ES";
-
-				            if ( log.isDebugEnabled() ) {
-				                log.debug("Section [" + section.getEid() + "] has no enrollment set, creating one with eid [" + esEid + "]");
-				            }
-				            enrolled = cmAdmin.createEnrollmentSet(esEid, section.getTitle(), section.getDescription(),
-				                    (section.getCategory() == null ? defaultEnrollmentSetCategory : section.getCategory()), 
-				                    defaultCredits, section.getCourseOfferingEid(), null);
-				            section.setEnrollmentSet(enrolled);
-				            cmAdmin.updateSection(section);
-				        }
-				        if (role.equalsIgnoreCase(instructorRole)) {
-				            if (enrolled.getOfficialInstructors() == null) {
-				                enrolled.setOfficialInstructors(new HashSet<String>());
-				            }
-				            enrolled.getOfficialInstructors().add(userEid);
-				        }
-				        cmAdmin.addOrUpdateSectionMembership(userEid, role, eid, status);
-				        if (role.equalsIgnoreCase(studentRole)) {
-				            if (credits == null || defaultCredits.equals(credits)) {
-				                credits = enrolled.getDefaultEnrollmentCredits();
-				            }
-				            cmAdmin.addOrUpdateEnrollment(userEid, enrolled.getEid(), status, credits, gradingScheme);
+				        EnrollmentSet enrolled = getOrCreateEnrollmentSet(section);
+				        if (applySectionMembership(enrolled, row)) {
+				            cmAdmin.updateEnrollmentSet(enrolled);
 				        }
 				        updates++; // hard to say if it was an add or an update
 				    } else {
@@ -138,34 +160,7 @@ public class CsvMembershipHandler extends CsvHandlerBase {
 				        if (log.isDebugEnabled()) log.debug("Skipped processing membership for user ("+userEid+") in course offering ("+eid+") because it is part of an academic session which is being skipped");
 				    }
 				}
-
-				if (commonHandlerService.ignoreMembershipRemovals()) {
-				    if (log.isDebugEnabled()) log.debug("SakoraCSV skipping sakora membership table update for user ("+userEid+") and "+mode+" ("+eid+") because ignoreMembershipRemovals=true");
-				} else {
-				    // Update or add Sakora membership entry (used for tracking deltas)
-				    Search search = new Search();
-				    search.addRestriction(new Restriction("mode", mode, Restriction.EQUALS));
-				    search.addRestriction(new Restriction("userEid", userEid));
-				    search.addRestriction(new Restriction("containerEid", eid));
-				    List<Membership> existing = dao.findBySearch(Membership.class, search);
-				    if ( existing == null || existing.isEmpty() ) {
-				        dao.create( new Membership(userEid, eid, role, mode, time) );
-				    } else {
-				        for ( int i = 0 ; i < existing.size() ; i++ ) {
-				            // guard against dupl records, which can lead to inadvertent CM membership deletion
-				            if ( i == existing.size() - 1 ) {
-				                // only update the last one found
-				                existing.get(i).setInputTime(time);
-				                existing.get(i).setRole(role);
-				                dao.update(existing.get(i));
-				            } else {
-				                // Remove all duplicates
-				                // Not in transaction so can't use delete(Object).
-				                dao.delete(Membership.class, existing.get(i).getId());
-				            }
-				        }
-				    }
-				}
+				trackMembership(row);
 			} catch (IdNotFoundException idfe) {
 				dao.create(new SakoraLog(this.getClass().toString(), idfe.getLocalizedMessage()));
 			}
@@ -176,10 +171,155 @@ public class CsvMembershipHandler extends CsvHandlerBase {
 		}
 	}
 
+	@Override
+	protected void readInputComplete(CsvSyncContext context) {
+	    applySectionGroup();
+	}
+
+	@Override
+	protected int getUnappliedLines() {
+	    // the rows of the current section group are only applied when the next group starts
+	    return groupRows.size();
+	}
+
+	/**
+	 * Applies all the memberships for the current section group: the section is loaded once,
+	 * the enrollment set is created once (if needed) and the official instructors are saved once
+	 */
+	private void applySectionGroup() {
+	    if (groupEid == null || groupRows.isEmpty()) {
+	        return;
+	    }
+	    String eid = groupEid;
+	    List<MembershipRow> rows = new ArrayList<MembershipRow>(groupRows);
+	    groupEid = null;
+	    groupRows.clear();
+	    if (!commonHandlerService.processSection(eid)) {
+	        if (log.isDebugEnabled()) log.debug("Skipped processing "+rows.size()+" section memberships in section ("+eid+") because it is part of an academic session which is being skipped");
+	        // still tracked (same as unclustered processing)
+	        for (MembershipRow row : rows) {
+	            trackMembership(row);
+	        }
+	        return;
+	    }
+	    EnrollmentSet enrolled;
+	    try {
+	        Section section = cmService.getSection(eid);
+	        enrolled = getOrCreateEnrollmentSet(section);
+	    } catch (IdNotFoundException idfe) {
+	        dao.create(new SakoraLog(this.getClass().toString(), idfe.getLocalizedMessage()));
+	        return;
+	    }
+	    boolean instructorsChanged = false;
+	    for (MembershipRow row : rows) {
+	        try {
+	            if (applySectionMembership(enrolled, row)) {
+	                instructorsChanged = true;
+	            }
+	            updates++; // hard to say if it was an add or an update
+	            trackMembership(row);
+	        } catch (IdNotFoundException idfe) {
+	            dao.create(new SakoraLog(this.getClass().toString(), idfe.getLocalizedMessage()));
+	        }
+	    }
+	    if (instructorsChanged) {
+	        cmAdmin.updateEnrollmentSet(enrolled);
+	    }
+	}
+
+	/**
+	 * @return the enrollment set for the section, created if the section does not have one yet
+	 */
+	private EnrollmentSet getOrCreateEnrollmentSet(Section section) {
+	    EnrollmentSet enrolled = section.getEnrollmentSet();
+	    if (enrolled == null) {
+	        // no enrollment set yet - create one
+	        String esEid = section.getEid() + "_ES";
+
+	        if ( log.isDebugEnabled() ) {
+	            log.debug("Section [" + section.getEid() + "] has no enrollment set, creating one with eid [" + esEid + "]");
+	        }
+	        enrolled = cmAdmin.createEnrollmentSet(esEid, section.getTitle(), section.getDescription(),
+	                (section.getCategory() == null ? defaultEnrollmentSetCategory : section.getCategory()), 
+	                defaultCredits, section.getCourseOfferingEid(), null);
+	        section.setEnrollmentSet(enrolled);
+	        cmAdmin.updateSection(section);
+	    }
+	    return enrolled;
+	}
+
+	/**
+	 * Adds or updates the section membership (and enrollment for students),
+	 * instructors are added to the official instructors of the enrollment set but NOT saved
+	 * 
+	 * @return true if the official instructors were changed (the enrollment set needs to be updated)
+	 */
+	private boolean applySectionMembership(EnrollmentSet enrolled, MembershipRow row) {
+	    boolean instructorsChanged = false;
+	    if (row.role.equalsIgnoreCase(instructorRole)) {
+	        if (enrolled.getOfficialInstructors() == null) {
+	            enrolled.setOfficialInstructors(new HashSet<String>());
+	        }
+	        instructorsChanged = enrolled.getOfficialInstructors().add(row.userEid);
+	    }
+	    cmAdmin.addOrUpdateSectionMembership(row.userEid, row.role, row.eid, row.status);
+	    if (row.role.equalsIgnoreCase(studentRole)) {
+	        String credits = row.credits;
+	        if (credits == null || defaultCredits.equals(credits)) {
+	            credits = enrolled.getDefaultEnrollmentCredits();
+	        }
+	        cmAdmin.addOrUpdateEnrollment(row.userEid, enrolled.getEid(), row.status, credits, row.gradingScheme);
+	    }
+	    return instructorsChanged;
+	}
+
+	/**
+	 * Update or add the Sakora membership entry (used for tracking deltas)
+	 */
+	private void trackMembership(MembershipRow row) {
+	    if (commonHandlerService.ignoreMembershipRemovals()) {
+	        if (log.isDebugEnabled()) log.debug("SakoraCSV skipping sakora membership table update for user ("+row.userEid+") and "+mode+" ("+row.eid+") because ignoreMembershipRemovals=true");
+	    } else {
+	        final String memberEid = row.userEid;
+	        final String containerEid = row.eid;
+	        final String memberRole = row.role;
+	        final String memberMode = mode;
+	        final Date memberTime = time;
+	        addTrackingWrite(new CsvTrackingBatch.TrackingWrite() {
+	            public void write(CsvTrackingDao dao) {
+	                dao.saveMembership(memberMode, memberEid, containerEid, memberRole, memberTime);
+	            }
+	        });
+	    }
+	}
+
+	/**
+	 * One membership row from the feed
+	 */
+	static class MembershipRow {
+	    final String eid;
+	    final String userEid;
+	    final String role;
+	    final String status;
+	    final String credits;
+	    final String gradingScheme;
+
+	    MembershipRow(String eid, String userEid, String role, String status, String credits, String gradingScheme) {
+	        this.eid = eid;
+	        this.userEid = userEid;
+	        this.role = role;
+	        this.status = status;
+	        this.credits = credits;
+	        this.gradingScheme = gradingScheme;
+	    }
+	}
+
 	@Override
 	protected void processInternal(CsvSyncContext context) {
 	    if (commonHandlerService.ignoreMembershipRemovals()) {
 	        if (log.isDebugEnabled()) log.debug("SakoraCSV skipping "+mode+" membership processing, ignoreMembershipRemovals=true");
+	    } else if (isDeltaInput()) {
+	        if (log.isDebugEnabled()) log.debug("SakoraCSV skipping "+mode+" membership processing, removals were applied from the delta");
 	    } else {
 	        // do removal processing
 	        loginToSakai();
@@ -197,9 +337,14 @@ public class CsvMembershipHandler extends CsvHandlerBase {
 	        Search.copy(search, baseSearch);
 
 	        boolean done = false;
+	        // the containers handler is not part of this run (handler subset) so the current containers are checked in CM
+	        boolean checkContainersInCM = commonHandlerService.ignoreMissingSessions()
+	                && !commonHandlerService.isHandlerSelected(MODE_SECTION.equals(mode) ? "Section" : "CourseOffering");
 
 	        // filter out anything which is not part of the current set of offerings/sections
-	        if (commonHandlerService.ignoreMissingSessions()) {
+	        if (checkContainersInCM) {
+	            log.info("SakoraCSV limiting "+mode+" membership removals to the "+mode+" containers which are current in CM");
+	        } else if (commonHandlerService.ignoreMissingSessions()) {
 	            Set<String> enrollmentContainerEids;
 	            if (MODE_SECTION.equals(mode)) {
 	                enrollmentContainerEids = commonHandlerService.getCurrentSectionEids();
@@ -244,31 +389,23 @@ public class CsvMembershipHandler extends CsvHandlerBase {
 	        	while (!isDone) {
 					List<Membership> memberships = dao.findBySearch(Membership.class, s);					
 		            if (log.isDebugEnabled()) log.debug("SakoraCSV processing "+memberships.size()+" "+mode+" membership removals");
+		            List<Long> removed = new ArrayList<Long>();
 		            for (Membership membership : memberships) {
-		                try {
-		                    if (MODE_SECTION.equals(mode)) {
-		                        cmAdmin.removeSectionMembership(membership.getUserEid(), membership.getContainerEid());
-		                        Section section = cmService.getSection(membership.getContainerEid());
-		                        if (section != null) {
-		                            EnrollmentSet enrolled = section.getEnrollmentSet();
-		                            cmAdmin.removeEnrollment(membership.getUserEid(), enrolled.getEid());
-		                            if (log.isDebugEnabled()) log.debug("SakoraCSV removed "+mode+" membership for "+membership.getUserEid()+": "+membership);
-		                            deletes++;
-		                        }
-		                    } else {
-		                        cmAdmin.removeCourseOfferingMembership(membership.getUserEid(), membership.getContainerEid());
-		                        if (log.isDebugEnabled()) log.debug("SakoraCSV removed "+mode+" membership for "+membership.getUserEid()+": "+membership);
-		                        deletes++;
-		                    }
-		                } catch (IdNotFoundException idfe) {
-		                    dao.create(new SakoraLog(this.getClass().toString(), idfe.getLocalizedMessage()));
+		                if (checkContainersInCM && !(MODE_SECTION.equals(mode) 
+		                        ? commonHandlerService.processSection(membership.getContainerEid()) 
+		                        : commonHandlerService.processCourseOffering(membership.getContainerEid()))) {
+		                    continue;
 		                }
+		                removeMembership(membership.getUserEid(), membership.getContainerEid());
+		                removed.add(membership.getId());
 		            }
+		            int compactedCount = compactTracking(Membership.class, removed);
 
 		            if (memberships == null || memberships.size() == 0) {
 		                isDone = true;
 		            } else {
-		                s.setStart(s.getStart() + searchPageSize);
+		                // compacted records are gone so only skip over the ones which are left
+		                s.setStart(s.getStart() + memberships.size() - compactedCount);
 		            }
 		            // should we halt if a stop was requested via pleaseStop?
 		        }
@@ -282,6 +419,61 @@ public class CsvMembershipHandler extends CsvHandlerBase {
 	            "Finished processing input, added or updated " + updates + " items and removed " + deletes));
 	}
 
+	/**
+	 * Removes a membership (and the section enrollment) which is no longer in the feed
+	 * 
+	 * @param userEid the user EID
+	 * @param containerEid the section or course offering EID
+	 */
+	private void removeMembership(String userEid, String containerEid) {
+	    try {
+	        if (MODE_SECTION.equals(mode)) {
+	            cmAdmin.removeSectionMembership(userEid, containerEid);
+	            Section section = cmService.getSection(containerEid);
+	            if (section != null) {
+	                EnrollmentSet enrolled = section.getEnrollmentSet();
+	                cmAdmin.removeEnrollment(userEid, enrolled.getEid());
+	                if (log.isDebugEnabled()) log.debug("SakoraCSV removed "+mode+" membership for "+userEid+" in "+containerEid);
+	                deletes++;
+	            }
+	        } else {
+	            cmAdmin.removeCourseOfferingMembership(userEid, containerEid);
+	            if (log.isDebugEnabled()) log.debug("SakoraCSV removed "+mode+" membership for "+userEid+" in "+containerEid);
+	            deletes++;
+	        }
+	    } catch (IdNotFoundException idfe) {
+	        dao.create(new SakoraLog(this.getClass().toString(), idfe.getLocalizedMessage()));
+	        // the container is gone so there is nothing left to remove
+	    }
+	}
+
+	@Override
+	protected void readDeleteLine(CsvSyncContext context, String[] line) {
+	    if (line == null || line.length < 2) {
+	        log.error("Skipping short removal line (expected at least [2] fields): [" + (line == null ? null : Arrays.toString(line)) + "]");
+	        errors++;
+	        return;
+	    }
+	    if (commonHandlerService.ignoreMembershipRemovals()) {
+	        return;
+	    }
+	    final String containerEid = line[0] == null ? "" : line[0].trim();
+	    final String userEid = line[1] == null ? "" : line[1].trim();
+	    boolean current = MODE_SECTION.equals(mode) ? commonHandlerService.processSection(containerEid) : commonHandlerService.processCourseOffering(containerEid);
+	    if (!current) {
+	        // same as the snapshot removal processing, memberships in skipped sessions are left alone
+	        if (log.isDebugEnabled()) log.debug("Skipped "+mode+" membership removal for user ("+userEid+") in ("+containerEid+") which is part of an academic session which is being skipped");
+	        return;
+	    }
+	    removeMembership(userEid, containerEid);
+	    final String membershipMode = mode;
+	    addTrackingWrite(new CsvTrackingBatch.TrackingWrite() {
+	        public void write(CsvTrackingDao dao) {
+	            dao.removeMembership(membershipMode, userEid, containerEid);
+	        }
+	    });
+	}
+
 	public String getTaRole() {
 		return taRole;
 	}
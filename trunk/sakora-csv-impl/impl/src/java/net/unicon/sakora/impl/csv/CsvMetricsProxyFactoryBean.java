@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.springframework.beans.factory.FactoryBean;
+
+/**
+ * Wraps a service (CM, user directory, tracking DAO) in a dynamic proxy which records the latency
+ * of every call in {@link CsvSyncMetrics}, as a call (service.method) and as a phase of the current handler.
+ * Calls to methods with a write prefix (save, create, update, ...) use the writePhase (if set).
+ */
+public class CsvMetricsProxyFactoryBean implements FactoryBean {
+
+    private static final String[] WRITE_PREFIXES = {"save", "create", "update", "delete", "remove", "add", "set", "commit", "edit", "upsert"};
+
+    private Object target;
+    private Class<?> serviceInterface;
+    private String name;
+    private String phase;
+    private String writePhase;
+    private CsvSyncMetrics metrics;
+    private Object proxy;
+
+    public synchronized Object getObject() throws Exception {
+        if (proxy == null) {
+            if (target == null || serviceInterface == null || metrics == null) {
+                throw new IllegalStateException("target, serviceInterface and metrics must be set");
+            }
+            final String callPrefix = (name != null ? name : serviceInterface.getSimpleName()) + ".";
+            proxy = Proxy.newProxyInstance(serviceInterface.getClassLoader(), new Class<?>[] {serviceInterface}, new InvocationHandler() {
+                public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+                    if (method.getDeclaringClass() == Object.class) {
+                        if ("equals".equals(method.getName())) {
+                            return p == args[0];
+                        } else if ("hashCode".equals(method.getName())) {
+                            return System.identityHashCode(p);
+                        } else if ("toString".equals(method.getName())) {
+                            return "metrics proxy for " + target;
+                        }
+                    }
+                    long start = metrics.start();
+                    try {
+                        return method.invoke(target, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        if (start != 0L) {
+                            metrics.call(callPrefix + method.getName(), phaseFor(method.getName()), System.nanoTime() - start);
+                        }
+                    }
+                }
+            });
+        }
+        return proxy;
+    }
+
+    private String phaseFor(String method) {
+        if (writePhase != null) {
+            for (String prefix : WRITE_PREFIXES) {
+                if (method.startsWith(prefix)) {
+                    return writePhase;
+                }
+            }
+        }
+        return phase;
+    }
+
+    public Class<?> getObjectType() {
+        return serviceInterface;
+    }
+
+    public boolean isSingleton() {
+        return true;
+    }
+
+    public void setTarget(Object target) {
+        this.target = target;
+    }
+
+    public void setServiceInterface(Class<?> serviceInterface) {
+        this.serviceInterface = serviceInterface;
+    }
+
+    /**
+     * @param name the service name in the call metrics (defaults to the interface name)
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param phase the handler phase for the calls (e.g. cm read)
+     */
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    /**
+     * @param writePhase the handler phase for the write calls (optional, the phase is used if not set)
+     */
+    public void setWritePhase(String writePhase) {
+        this.writePhase = writePhase;
+    }
+
+    public void setMetrics(CsvSyncMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+}
@@ -20,6 +20,7 @@ package net.unicon.sakora.impl.csv;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,6 +28,8 @@ import java.util.Map;
 import net.unicon.sakora.api.csv.CsvSyncContext;
 import net.unicon.sakora.api.csv.model.Person;
 import net.unicon.sakora.api.csv.model.SakoraLog;
+import net.unicon.sakora.impl.csv.dao.CsvTrackingBatch;
+import net.unicon.sakora.impl.csv.dao.CsvTrackingDao;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -78,10 +81,15 @@ public class CsvPersonHandler extends CsvHandlerBase {
         return "Person";
     }
 
+    @Override
+    protected int getMinFieldCount() {
+        return 6;
+    }
+
 	@Override
 	protected void readInputLine(CsvSyncContext context, String[] line) {
 
-		final int minFieldCount = 6;
+		final int minFieldCount = getMinFieldCount();
 
 		if (line != null && line.length >= minFieldCount) {
 			line = trimAll(line);
@@ -211,14 +219,14 @@ public class CsvPersonHandler extends CsvHandlerBase {
 
 			// Log users read in for delta calculation, update existing and create new
 			// dao.save(new Person(eid, (existingId == null ? newId : existingId), time));
-			Person p = dao.findById(Person.class, eid);
-			if (p == null) {
-			    dao.create(new Person(eid, newId, time));
-			} else {
-			    p.setInputTime(time);
-			    p.setUserId( (existingId == null ? newId : existingId) );
-			    dao.update(p);
-			}
+			final String personEid = eid;
+			final String personId = (existingId == null ? newId : existingId);
+			final Date personTime = time;
+			addTrackingWrite(new CsvTrackingBatch.TrackingWrite() {
+			    public void write(CsvTrackingDao dao) {
+			        dao.savePerson(personEid, personId, personTime);
+			    }
+			});
 		} else {
 			log.error("Skipping short line (expected at least [" + minFieldCount + 
 					"] fields): [" + (line == null ? null : Arrays.toString(line)) + "]");
@@ -272,10 +280,39 @@ public class CsvPersonHandler extends CsvHandlerBase {
 		return namedFields;
 	}
 	
+	@Override
+	protected void readDeleteLine(CsvSyncContext context, String[] line) {
+	    if (line == null || line.length < 1 || StringUtils.isBlank(line[0])) {
+	        log.error("Skipping removal line without a user eid: [" + (line == null ? null : Arrays.toString(line)) + "]");
+	        errors++;
+	        return;
+	    }
+	    if (CsvCommonHandlerService.URM_IGNORE.equals(commonHandlerService.userRemoveMode())) {
+	        if (log.isDebugEnabled()) log.debug("SakoraCSV skipping user removal, userRemoveMode=ignore");
+	        return;
+	    }
+	    final String personEid = line[0].trim();
+	    String userId = null;
+	    try {
+	        userId = userDirService.getUserId(personEid);
+	    } catch (UserNotDefinedException unde) {
+	        // the user is gone so there is nothing left to remove
+	    }
+	    if (userId == null || removeUser(userId)) {
+	        addTrackingWrite(new CsvTrackingBatch.TrackingWrite() {
+	            public void write(CsvTrackingDao dao) {
+	                dao.removePerson(personEid);
+	            }
+	        });
+	    }
+	}
+
 	@Override
 	protected void processInternal(CsvSyncContext context) {
 	    if (CsvCommonHandlerService.URM_IGNORE.equals(commonHandlerService.userRemoveMode())) {
 	        if (log.isDebugEnabled()) log.debug("SakoraCSV skipping people (user removal) processing, userRemoveMode=ignore");
+	    } else if (isDeltaInput()) {
+	        if (log.isDebugEnabled()) log.debug("SakoraCSV skipping people (user removal) processing, removals were applied from the delta");
 	    } else {
 	        // process the removals
 	        loginToSakai();
@@ -289,40 +326,18 @@ public class CsvPersonHandler extends CsvHandlerBase {
 
 	        while (!done) {
 	            List<Person> people = dao.findBySearch(Person.class, search);
+	            List<String> removed = new ArrayList<String>();
 	            for (Person user : people) {
-	                try {
-	                    UserEdit target = userDirService.editUser(user.getUserId());
-	                    if (CsvCommonHandlerService.URM_DELETE.equals(commonHandlerService.userRemoveMode())) {
-	                        userDirService.removeUser(target);
-	                    } else {
-	                        // assume the default disable case (without checking)
-	                        target.setType(suspended);
-	                    }
-	                    // commit the changes
-	                    userDirService.commitEdit(target);
-	                    deletes++;
-	                }
-	                catch(UserNotDefinedException unde) {
-	                    dao.create(new SakoraLog(this.getClass().toString(), unde.getLocalizedMessage()));
-	                    log.error("CsvPersonHandler: " + unde.getMessage());
-	                }
-	                catch(UserAlreadyDefinedException uade) {
-	                    dao.create(new SakoraLog(this.getClass().toString(), uade.getLocalizedMessage()));
-	                    log.error("CsvPersonHandler: " + uade.getMessage());
-	                }
-	                catch(UserLockedException ule) {
-	                    dao.create(new SakoraLog(this.getClass().toString(), ule.getLocalizedMessage()));
-	                    log.error("CsvPersonHandler: " + ule.getMessage());
-	                }
-	                catch(UserPermissionException upe) {
-	                    dao.create(new SakoraLog(this.getClass().toString(), upe.getLocalizedMessage()));
-	                    log.error("CsvPersonHandler: " + upe.getMessage());
+	                if (removeUser(user.getUserId())) {
+	                    removed.add(user.getUserEid());
 	                }
 	            }
+	            int compactedCount = compactTracking(Person.class, removed);
 	            if (people == null || people.size() == 0) {
 	                done = true;
 	            } else {
-	                search.setStart(search.getStart() + searchPageSize);
+	                // compacted records are gone so only skip over the ones which are left
+	                search.setStart(search.getStart() + people.size() - compactedCount);
 	            }
 	            // should we halt if a stop was requested via pleaseStop?
 	        }
@@ -334,6 +349,47 @@ public class CsvPersonHandler extends CsvHandlerBase {
 	                    + updates + " items and removed " + deletes));
 	}
 
+	/**
+	 * Removes or disables (depending on the userRemoveMode) a user which is no longer in the feed
+	 * 
+	 * @param userId the sakai user id
+	 * @return true if the removal was applied (or the user no longer exists), false if it failed
+	 */
+	private boolean removeUser(String userId) {
+	    try {
+	        UserEdit target = userDirService.editUser(userId);
+	        if (CsvCommonHandlerService.URM_DELETE.equals(commonHandlerService.userRemoveMode())) {
+	            userDirService.removeUser(target);
+	        } else {
+	            // assume the default disable case (without checking)
+	            target.setType(suspended);
+	        }
+	        // commit the changes
+	        userDirService.commitEdit(target);
+	        deletes++;
+	        return true;
+	    }
+	    catch(UserNotDefinedException unde) {
+	        dao.create(new SakoraLog(this.getClass().toString(), unde.getLocalizedMessage()));
+	        log.error("CsvPersonHandler: " + unde.getMessage());
+	        // the user is gone so there is nothing left to remove
+	        return true;
+	    }
+	    catch(UserAlreadyDefinedException uade) {
+	        dao.create(new SakoraLog(this.getClass().toString(), uade.getLocalizedMessage()));
+	        log.error("CsvPersonHandler: " + uade.getMessage());
+	    }
+	    catch(UserLockedException ule) {
+	        dao.create(new SakoraLog(this.getClass().toString(), ule.getLocalizedMessage()));
+	        log.error("CsvPersonHandler: " + ule.getMessage());
+	    }
+	    catch(UserPermissionException upe) {
+	        dao.create(new SakoraLog(this.getClass().toString(), upe.getLocalizedMessage()));
+	        log.error("CsvPersonHandler: " + upe.getMessage());
+	    }
+	    return false;
+	}
+
 	public void setDeleteUsers(boolean deleteUsers) {
 	    log.warn("SakoraCSV: deleteUsers is no longer supported, use userRemoveMode option instead (see docs for details)");
 	}
@@ -27,6 +27,7 @@ import net.unicon.sakora.api.csv.CsvSyncContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.coursemanagement.api.Section;
+import org.sakaiproject.coursemanagement.api.exception.IdNotFoundException;
 
 /**
  * Reads in Section definitions from csv extracts, expected format is:
@@ -52,10 +53,15 @@ public class CsvSectionHandler extends CsvHandlerBase {
         return "Section";
     }
 
+    @Override
+    protected int getMinFieldCount() {
+        return 7;
+    }
+
 	@Override
 	protected void readInputLine(CsvSyncContext context, String[] line) {
 
-		final int minFieldCount = 7;
+		final int minFieldCount = getMinFieldCount();
 
 		if (line != null && line.length >= minFieldCount) {
 			line = trimAll(line);
@@ -126,6 +132,26 @@ public class CsvSectionHandler extends CsvHandlerBase {
 		}
 	}
 
+	/**
+	 * Removes the section from CM, only explicit removals from a delta are applied
+	 */
+	@Override
+	protected void readDeleteLine(CsvSyncContext context, String[] line) {
+		if (line == null || line.length < 1 || line[0] == null || "".equals(line[0].trim())) {
+			log.error("Skipping removal line without an eid: [" + (line == null ? null : Arrays.toString(line)) + "]");
+			errors++;
+			return;
+		}
+		String eid = line[0].trim();
+		try {
+			cmAdmin.removeSection(eid);
+			deletes++;
+		} catch (IdNotFoundException idfe) {
+			// already gone
+			if (log.isDebugEnabled()) log.debug("Skipped removal of section ("+eid+") which does not exist");
+		}
+	}
+
 	@Override
 	protected void processInternal(CsvSyncContext context) {
 		// TODO: support for conditionally removing sections not in current extract?
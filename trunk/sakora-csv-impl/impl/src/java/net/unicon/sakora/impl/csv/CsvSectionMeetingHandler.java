@@ -20,13 +20,23 @@ package net.unicon.sakora.impl.csv;
 
 import java.sql.Time;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 import net.unicon.sakora.api.csv.CsvSyncContext;
+import net.unicon.sakora.api.csv.model.SakoraLog;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.coursemanagement.api.Meeting;
 import org.sakaiproject.coursemanagement.api.Section;
+import org.sakaiproject.coursemanagement.api.exception.IdNotFoundException;
 
 /**
  * Processes section meeting times from csv exports
@@ -34,21 +44,81 @@ import org.sakaiproject.coursemanagement.api.Section;
  * Eid, location, notes, *startTime, *endTime
  * (times are optional)
  * 
+ * The rows are grouped by section while reading, then each section's meetings are
+ * replaced by the set in the feed (new meetings added, meetings no longer in the feed removed)
+ * with a single section update and only for sections where the meetings changed.
+ * Sections which are not in the feed are left alone.
+ * 
+ * For delta input the meetings are only added (A) or removed (D), the other meetings of the section are kept.
+ * Meetings have no identity other than their values so there is nothing for an update (U) to change,
+ * U rows are rejected (a changed meeting is sent as D with the old values and A with the new ones).
+ * 
  * @author Joshua Ryan
  *
  */
 public class CsvSectionMeetingHandler extends CsvHandlerBase {
 	static final Log log = LogFactory.getLog(CsvSectionMeetingHandler.class);
 
+	// section EID -> (meeting key -> meeting fields), in feed order
+	private Map<String, Map<String, MeetingFields>> sectionMeetings;
+	// delta input only: section EID -> keys of the meetings to remove
+	private Map<String, Set<String>> sectionMeetingRemovals;
+
     @Override
     public String getName() {
         return "SectionMeeting";
     }
 
+    @Override
+    protected int getMinFieldCount() {
+        return 3;
+    }
+
+    @Override
+    protected boolean isResumable() {
+        // meetings are collected for the whole file and only applied after the read
+        return false;
+    }
+
+    @Override
+    public void before(CsvSyncContext context) {
+        super.before(context);
+        sectionMeetings = new LinkedHashMap<String, Map<String, MeetingFields>>();
+        sectionMeetingRemovals = new LinkedHashMap<String, Set<String>>();
+    }
+
+    @Override
+    public void after(CsvSyncContext context) {
+        super.after(context);
+        sectionMeetings = null;
+        sectionMeetingRemovals = null;
+    }
+
 	@Override
 	protected void readInputLine(CsvSyncContext context, String[] line) {
+		readMeetingLine(line, false);
+	}
+
+	@Override
+	protected void readDeleteLine(CsvSyncContext context, String[] line) {
+		readMeetingLine(line, true);
+	}
+
+	@Override
+	protected void readDeltaLine(CsvSyncContext context, String[] line) {
+		if (line != null && line.length > 0 && line[0] != null && CsvFileDiffer.OP_UPDATE.equals(line[0].trim().toUpperCase())) {
+			// an update would add a second meeting and keep the old one
+			log.error("SakoraCSV Skipping section meeting update (U), send the change as a removal (D) of the old meeting and an add (A) of the new one: "
+					+ Arrays.toString(line));
+			errors++;
+			return;
+		}
+		super.readDeltaLine(context, line);
+	}
+
+	private void readMeetingLine(String[] line, boolean removal) {
 		
-		final int minFieldCount = 6;
+		final int minFieldCount = getMinFieldCount();
 
 		if (line != null && line.length >= minFieldCount) {
 			line = trimAll(line);
@@ -59,28 +129,45 @@ public class CsvSectionMeetingHandler extends CsvHandlerBase {
 			String notes = line[2];
 			Time startTime = null;
 			Time endTime = null;
-			if (line.length == 5) {
-				startTime = Time.valueOf(line[3]);
-				endTime = Time.valueOf(line[4]);
+			try {
+			    if (line.length > 3 && StringUtils.isNotBlank(line[3])) {
+			        startTime = Time.valueOf(line[3]);
+			    }
+			    if (line.length > 4 && StringUtils.isNotBlank(line[4])) {
+			        endTime = Time.valueOf(line[4]);
+			    }
+			} catch (IllegalArgumentException e) {
+			    log.error("Invalid meeting time (expected hh:mm:ss), skipping item " + eid + ": " + Arrays.toString(line));
+			    errors++;
+			    return;
 			}
 
-			if (!isValid(location, "Location", eid)
-					|| !isValid(startTime, "Start Time", eid)
-					|| !isValid(endTime, "End Time", eid)) {
+			if (!isValid(location, "Location", eid)) {
 				log.error("Missing required parameter(s), skipping item " + eid);
 				errors++;
 			} else {
 			    if (commonHandlerService.processSection(eid)) {
-			        if (cmService.isSectionDefined(eid)) {
-			            Section section = cmService.getSection(eid);
-			            Meeting meeting = cmAdmin.newSectionMeeting(eid, location, startTime, endTime, notes);
-			            if (!section.getMeetings().contains(meeting)) {
-			                section.getMeetings().add(meeting);
-			                adds++;
+			        MeetingFields fields = new MeetingFields(location, notes, startTime, endTime);
+			        if (removal) {
+			            Set<String> removals = sectionMeetingRemovals.get(eid);
+			            if (removals == null) {
+			                removals = new HashSet<String>();
+			                sectionMeetingRemovals.put(eid, removals);
+			            }
+			            removals.add(fields.key());
+			            if (sectionMeetings.containsKey(eid)) {
+			                sectionMeetings.get(eid).remove(fields.key());
 			            }
-			            cmAdmin.updateSection(section);
-			        } else {
-			            log.error("CsvSectionMeetingHandler :: can't add meeting to invalid section");
+			            return;
+			        }
+			        Map<String, MeetingFields> meetings = sectionMeetings.get(eid);
+			        if (meetings == null) {
+			            meetings = new LinkedHashMap<String, MeetingFields>();
+			            sectionMeetings.put(eid, meetings);
+			        }
+			        meetings.put(fields.key(), fields);
+			        if (sectionMeetingRemovals.containsKey(eid)) {
+			            sectionMeetingRemovals.get(eid).remove(fields.key());
 			        }
 			    } else {
 			        if (log.isDebugEnabled()) log.debug("Skipped processing course section meeting because it is in a section ("+eid+") which is part of an academic session which is being skipped");
@@ -95,6 +182,106 @@ public class CsvSectionMeetingHandler extends CsvHandlerBase {
 
 	@Override
 	protected void processInternal(CsvSyncContext context) {
-		// TODO: support for conditionally removing course offerings not in current extract?
+	    if (sectionMeetings == null || (sectionMeetings.isEmpty() && sectionMeetingRemovals.isEmpty())) {
+	        return;
+	    }
+	    boolean delta = isDeltaInput();
+	    Set<String> sectionEids = new LinkedHashSet<String>(sectionMeetings.keySet());
+	    sectionEids.addAll(sectionMeetingRemovals.keySet());
+	    loginToSakai();
+	    int sectionsUpdated = 0;
+	    for (String eid : sectionEids) {
+	        if ( pleaseStop ) {
+	            throw new IllegalStateException("Handler received a stop request. Abandoning section meeting processing. This exception is thrown to ensure proper cleanup of overall batch state.");
+	        }
+	        Map<String, MeetingFields> desired = sectionMeetings.get(eid);
+	        if (desired == null) {
+	            desired = new HashMap<String, MeetingFields>(0);
+	        }
+	        Set<String> removals = sectionMeetingRemovals.get(eid);
+	        try {
+	            if (!cmService.isSectionDefined(eid)) {
+	                log.error("CsvSectionMeetingHandler :: can't add meetings to invalid section: "+eid);
+	                errors++;
+	                continue;
+	            }
+	            Section section = cmService.getSection(eid);
+	            Set<Meeting> meetings = section.getMeetings();
+	            if (meetings == null) {
+	                meetings = new HashSet<Meeting>();
+	                section.setMeetings(meetings);
+	            }
+	            boolean changed = false;
+	            // remove the meetings which are no longer in the feed, keep track of the ones which are
+	            Map<String, Meeting> existing = new HashMap<String, Meeting>();
+	            for (Iterator<Meeting> it = meetings.iterator(); it.hasNext();) {
+	                Meeting meeting = it.next();
+	                String key = MeetingFields.key(meeting);
+	                if (delta && (removals == null || !removals.contains(key))) {
+	                    // delta input only removes the meetings which were explicitly removed
+	                    existing.put(key, meeting);
+	                } else if (!delta && desired.containsKey(key) && !existing.containsKey(key)) {
+	                    existing.put(key, meeting);
+	                } else {
+	                    it.remove();
+	                    deletes++;
+	                    changed = true;
+	                }
+	            }
+	            // add the new ones
+	            for (Map.Entry<String, MeetingFields> meeting : desired.entrySet()) {
+	                if (!existing.containsKey(meeting.getKey())) {
+	                    MeetingFields f = meeting.getValue();
+	                    meetings.add(cmAdmin.newSectionMeeting(eid, f.location, f.startTime, f.endTime, f.notes));
+	                    adds++;
+	                    changed = true;
+	                }
+	            }
+	            if (changed) {
+	                cmAdmin.updateSection(section);
+	                sectionsUpdated++;
+	            }
+	        } catch (IdNotFoundException idfe) {
+	            dao.create(new SakoraLog(this.getClass().toString(), idfe.getLocalizedMessage()));
+	        }
+	    }
+	    logoutFromSakai();
+	    dao.create(new SakoraLog(this.getClass().toString(),
+	            "Finished processing meetings for " + sectionEids.size() + " sections, updated " + sectionsUpdated 
+	            + " sections, added " + adds + " meetings and removed " + deletes));
 	}
+
+	/**
+	 * The meeting values from one feed row
+	 */
+	static class MeetingFields {
+	    final String location;
+	    final String notes;
+	    final Time startTime;
+	    final Time endTime;
+
+	    MeetingFields(String location, String notes, Time startTime, Time endTime) {
+	        this.location = location;
+	        this.notes = notes;
+	        this.startTime = startTime;
+	        this.endTime = endTime;
+	    }
+
+	    String key() {
+	        return key(location, notes, startTime, endTime);
+	    }
+
+	    static String key(Meeting meeting) {
+	        return key(meeting.getLocation(), meeting.getNotes(), meeting.getStartTime(), meeting.getFinishTime());
+	    }
+
+	    /**
+	     * @return the identity of a meeting for diffing (blank and null are the same)
+	     */
+	    static String key(String location, String notes, Time startTime, Time endTime) {
+	        return StringUtils.trimToEmpty(location) + "|" + StringUtils.trimToEmpty(notes) + "|" 
+	                + (startTime == null ? "" : startTime.toString()) + "|" + (endTime == null ? "" : endTime.toString());
+	    }
+	}
+
 }
@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Progress of a sync run over a batch, saved in the batch processing dir so a failed batch
+ * can be resumed: the handlers which completed, the handler which was running along with its
+ * input time (so the tracking records written before the failure are not treated as removed)
+ * and the number of input records which were fully applied, and the run state which the later handlers
+ * depend on (current sessions, offerings, sections and enrollment sets).
+ */
+public class CsvSyncCheckpoint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String CHECKPOINT_FILE_NAME = "sync.checkpoint";
+
+    private List<String> completedHandlers = new ArrayList<String>();
+    private String handler;
+    private long handlerTime;
+    private int handlerLines;
+    private HashMap<String, String> contextProperties = new HashMap<String, String>();
+    private HashMap<String, Serializable> runState = new HashMap<String, Serializable>();
+
+    /**
+     * Saves this checkpoint in the batch dir, replaces the previous one
+     * 
+     * @param batchDir the batch processing dir
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void save(File batchDir) throws IOException {
+        File tmp = new File(batchDir, CHECKPOINT_FILE_NAME + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeObject(this);
+        } finally {
+            out.close();
+        }
+        File file = new File(batchDir, CHECKPOINT_FILE_NAME);
+        if ( file.exists() && !file.delete() ) {
+            throw new IOException("Unable to replace sync checkpoint " + file);
+        }
+        if ( !tmp.renameTo(file) ) {
+            throw new IOException("Unable to rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * @param batchDir the batch processing dir
+     * @return the checkpoint saved in the batch dir OR null if there is none
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public static CsvSyncCheckpoint load(File batchDir) throws IOException {
+        File file = new File(batchDir, CHECKPOINT_FILE_NAME);
+        if ( !file.isFile() ) {
+            return null;
+        }
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return (CsvSyncCheckpoint) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Invalid sync checkpoint " + file + ": " + e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param batchDir the batch processing dir
+     * @return true if the batch dir has a checkpoint
+     */
+    public static boolean exists(File batchDir) {
+        return new File(batchDir, CHECKPOINT_FILE_NAME).isFile();
+    }
+
+    /**
+     * @param batchDir the batch processing dir
+     */
+    public static void remove(File batchDir) {
+        new File(batchDir, CHECKPOINT_FILE_NAME).delete();
+    }
+
+    /**
+     * Records the progress of the running handler
+     * 
+     * @param handler the handler name
+     * @param time the input time of the handler
+     * @param lines the number of input records which are fully applied
+     */
+    public void progress(String handler, long time, int lines) {
+        this.handler = handler;
+        this.handlerTime = time;
+        this.handlerLines = lines;
+    }
+
+    /**
+     * Records that a handler is complete (read and processed)
+     * 
+     * @param handler the handler name
+     */
+    public void complete(String handler) {
+        if ( !completedHandlers.contains(handler) ) {
+            completedHandlers.add(handler);
+        }
+        if ( handler.equals(this.handler) ) {
+            this.handler = null;
+            this.handlerTime = 0;
+            this.handlerLines = 0;
+        }
+    }
+
+    public boolean isCompleted(String handler) {
+        return completedHandlers.contains(handler);
+    }
+
+    /**
+     * @param handler the handler name
+     * @return the saved input time of the handler OR null if the handler was not running
+     */
+    public Long getHandlerTime(String handler) {
+        return handler.equals(this.handler) ? Long.valueOf(handlerTime) : null;
+    }
+
+    /**
+     * @param handler the handler name
+     * @return the number of input records which the handler already applied (0 if it was not running)
+     */
+    public int getHandlerLines(String handler) {
+        return handler.equals(this.handler) ? handlerLines : 0;
+    }
+
+    public List<String> getCompletedHandlers() {
+        return completedHandlers;
+    }
+
+    public String getHandler() {
+        return handler;
+    }
+
+    public Map<String, String> getContextProperties() {
+        return contextProperties;
+    }
+
+    public Map<String, Serializable> getRunState() {
+        return runState;
+    }
+
+    @Override
+    public String toString() {
+        return "completed=" + completedHandlers + (handler == null ? "" : ", " + handler + " at record " + handlerLines);
+    }
+
+}
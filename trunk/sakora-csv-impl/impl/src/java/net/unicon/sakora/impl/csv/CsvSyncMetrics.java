@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency metrics for a sync run: a histogram per handler and phase (parse, line, validate, CM read/write,
+ * user directory read/write, tracking read/write, removal) and a histogram per external call (the CM,
+ * user directory and tracking DAO calls are counted by {@link CsvMetricsProxyFactoryBean}).
+ * 
+ * Recording is lock free (atomic counters) so it can stay on in the hot paths, the report is added
+ * to the run summary built by {@link CsvCommonHandlerService#completeRun(boolean)}.
+ */
+public class CsvSyncMetrics {
+
+    public static final String PHASE_PARSE = "parse";
+    public static final String PHASE_LINE = "line";
+    public static final String PHASE_VALIDATE = "validate";
+    public static final String PHASE_REMOVAL = "removal";
+    public static final String PHASE_TRACKING_FLUSH = "tracking flush";
+
+    private static final String NO_HANDLER = "(none)";
+
+    private boolean enabled = true;
+    private volatile String handler = NO_HANDLER;
+    // handler -> phase -> latencies
+    private final ConcurrentMap<String, ConcurrentMap<String, Histogram>> phases = new ConcurrentHashMap<String, ConcurrentMap<String, Histogram>>();
+    // service.method -> latencies
+    private final ConcurrentMap<String, Histogram> calls = new ConcurrentHashMap<String, Histogram>();
+    // phase -> nanos for the row being read by this thread (only while row tracking is on)
+    private volatile boolean rowTracking = false;
+    private final ThreadLocal<Map<String, Long>> row = new ThreadLocal<Map<String, Long>>();
+
+    /**
+     * Clears the metrics for a new run
+     */
+    public void reset() {
+        phases.clear();
+        calls.clear();
+        handler = NO_HANDLER;
+    }
+
+    /**
+     * @param name the handler which is running now, the phases are recorded for it
+     */
+    public void setHandler(String name) {
+        handler = name == null ? NO_HANDLER : name;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return the start time for {@link #phase(String, long)} OR 0 if the metrics are disabled
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records a phase of the current handler
+     * 
+     * @param phase the phase name
+     * @param startNanos the value of {@link #start()} when the phase started
+     */
+    public void phase(String phase, long startNanos) {
+        if (enabled && startNanos != 0L) {
+            long nanos = System.nanoTime() - startNanos;
+            histogram(phases, handler, phase).record(nanos);
+            if (rowTracking && !PHASE_LINE.equals(phase)) {
+                rowAdd(phase, nanos);
+            }
+        }
+    }
+
+    /**
+     * Records an external call, also recorded as a phase of the current handler
+     * 
+     * @param call the call name (service.method)
+     * @param phase the phase for the call (e.g. cm read)
+     * @param nanos the call latency
+     */
+    public void call(String call, String phase, long nanos) {
+        if (enabled) {
+            Histogram histogram = calls.get(call);
+            if (histogram == null) {
+                calls.putIfAbsent(call, new Histogram());
+                histogram = calls.get(call);
+            }
+            histogram.record(nanos);
+            histogram(phases, handler, phase).record(nanos);
+            if (rowTracking) {
+                rowAdd(phase, nanos);
+            }
+        }
+    }
+
+    /**
+     * Starts the time breakdown of a row (see {@link CsvSyncTrace}), only while row tracking is on
+     */
+    public void rowStart() {
+        if (rowTracking) {
+            Map<String, Long> breakdown = row.get();
+            if (breakdown == null) {
+                row.set(new LinkedHashMap<String, Long>());
+            } else {
+                breakdown.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the time spent in each phase (nanos) since {@link #rowStart()} on this thread, null if row tracking is off
+     */
+    public Map<String, Long> rowBreakdown() {
+        return rowTracking ? row.get() : null;
+    }
+
+    private void rowAdd(String phase, long nanos) {
+        Map<String, Long> breakdown = row.get();
+        if (breakdown != null) {
+            Long total = breakdown.get(phase);
+            breakdown.put(phase, total == null ? nanos : total + nanos);
+        }
+    }
+
+    /**
+     * @param rowTracking true to keep the time breakdown of each row (for the slow row trace)
+     */
+    public void setRowTracking(boolean rowTracking) {
+        this.rowTracking = rowTracking;
+    }
+
+    private static Histogram histogram(ConcurrentMap<String, ConcurrentMap<String, Histogram>> map, String key, String name) {
+        ConcurrentMap<String, Histogram> histograms = map.get(key);
+        if (histograms == null) {
+            map.putIfAbsent(key, new ConcurrentHashMap<String, Histogram>());
+            histograms = map.get(key);
+        }
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the phase histograms (handler -> phase -> histogram)
+     */
+    public Map<String, ConcurrentMap<String, Histogram>> getPhases() {
+        return Collections.<String, ConcurrentMap<String, Histogram>>unmodifiableMap(phases);
+    }
+
+    /**
+     * @return the external call histograms (service.method -> histogram)
+     */
+    public Map<String, Histogram> getCalls() {
+        return Collections.<String, Histogram>unmodifiableMap(calls);
+    }
+
+    /**
+     * @return the report for the run summary, the external calls are ordered by total time (largest first)
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        if (phases.isEmpty() && calls.isEmpty()) {
+            return "";
+        }
+        sb.append("  --- LATENCY (ms):      count       total    mean     p50     p90     p99     max\n");
+        List<String> handlers = new ArrayList<String>(phases.keySet());
+        Collections.sort(handlers);
+        for (String name : handlers) {
+            for (Map.Entry<String, Histogram> entry : sorted(phases.get(name))) {
+                append(sb, name + " " + entry.getKey(), entry.getValue());
+            }
+        }
+        sb.append("  --- EXTERNAL CALLS (ms):\n");
+        for (Map.Entry<String, Histogram> entry : sorted(calls)) {
+            append(sb, entry.getKey(), entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static List<Map.Entry<String, Histogram>> sorted(Map<String, Histogram> histograms) {
+        List<Map.Entry<String, Histogram>> entries = new ArrayList<Map.Entry<String, Histogram>>(histograms.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Histogram>>() {
+            public int compare(Map.Entry<String, Histogram> o1, Map.Entry<String, Histogram> o2) {
+                long t1 = o1.getValue().getTotal();
+                long t2 = o2.getValue().getTotal();
+                return t1 > t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        return entries;
+    }
+
+    private static void append(StringBuilder sb, String name, Histogram histogram) {
+        sb.append("  - ");
+        sb.append(name.length() > 40 ? name : String.format("%-40s", name));
+        sb.append(String.format(" %9d %11.1f %7.3f %7.3f %7.3f %7.3f %7.3f\n", histogram.getCount(), millis(histogram.getTotal()),
+                millis(histogram.getMean()), millis(histogram.getPercentile(50)), millis(histogram.getPercentile(90)),
+                millis(histogram.getPercentile(99)), millis(histogram.getMax())));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0d;
+    }
+
+    /**
+     * Lock free log-linear latency histogram (HDR style): values below 16 have their own bucket and every
+     * power of 2 above that is split into 8 linear sub-buckets, so any value is within 12.5% of its bucket
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int LINEAR = 2 * SUB_BUCKETS;
+        private static final int BUCKETS = LINEAR + (62 - 4 + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        static int index(long value) {
+            if (value < LINEAR) {
+                return (int) Math.max(value, 0L);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value); // >= 4
+            int top = (int) (value >>> (exponent - 3)); // 8 to 15
+            return LINEAR + (exponent - 4) * SUB_BUCKETS + (top - SUB_BUCKETS);
+        }
+
+        /**
+         * @return the highest value which falls in the bucket
+         */
+        static long highest(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            int exponent = (index - LINEAR) / SUB_BUCKETS + 4;
+            long top = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((top + 1) << (exponent - 3)) - 1;
+        }
+
+        public void record(long value) {
+            counts.incrementAndGet(index(value));
+            count.incrementAndGet();
+            total.addAndGet(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotal() {
+            return total.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : total.get() / n;
+        }
+
+        /**
+         * @param percentile 0 to 100
+         * @return the value at the percentile (the upper bound of its bucket, never more than the max)
+         */
+        public long getPercentile(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * Math.min(Math.max(percentile, 0d), 100d) / 100d);
+            rank = Math.max(rank, 1);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highest(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * @return the bucket counts with their highest value (highest value -> count, only non empty buckets)
+         */
+        public long[][] getBuckets() {
+            List<long[]> buckets = new ArrayList<long[]>();
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = counts.get(i);
+                if (c > 0) {
+                    buckets.add(new long[] {highest(i), c});
+                }
+            }
+            return buckets.toArray(new long[buckets.size()][]);
+        }
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.unicon.sakora.api.csv.CsvSyncMetric;
+import net.unicon.sakora.api.csv.model.Membership;
+import net.unicon.sakora.api.csv.model.Person;
+import net.unicon.sakora.api.csv.model.SakoraLog;
+import net.unicon.sakora.api.csv.model.SakoraRun;
+import net.unicon.sakora.api.csv.model.SakoraRunHandler;
+import net.unicon.sakora.api.csv.model.Session;
+import net.unicon.sakora.impl.csv.dao.CsvSyncDao;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.genericdao.api.search.Order;
+import org.sakaiproject.genericdao.api.search.Restriction;
+import org.sakaiproject.genericdao.api.search.Search;
+
+/**
+ * Collects the sync metrics for monitoring (see {@link net.unicon.sakora.api.csv.CsvSyncService#getMetrics()}),
+ * the handler stats come from the run history (SAKORA_RUN_HANDLER) so they survive restarts, the latencies
+ * from {@link CsvSyncMetrics} (current or last run), the live rates from {@link CsvSyncProgress} and the upload
+ * counters are kept here (since startup).
+ * 
+ * The tracking table counts can be slow on large tables so they are cached for {@link #TABLE_COUNT_CACHE_MILLIS}.
+ */
+public class CsvSyncMetricsExporter {
+
+    private static final Log log = LogFactory.getLog(CsvSyncMetricsExporter.class);
+
+    static final long TABLE_COUNT_CACHE_MILLIS = 5 * 60 * 1000L;
+    private static final double[] QUANTILES = {0.5d, 0.9d, 0.99d};
+    private static final double NANOS_PER_SECOND = 1000000000d;
+
+    private final CsvCommonHandlerService commonHandlerService;
+    private final CsvSyncDao dao;
+
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong uploadBytes = new AtomicLong();
+    private final AtomicLong uploadMillis = new AtomicLong();
+    private volatile double lastUploadBytesPerSecond = 0d;
+
+    private volatile long tableCountsTime = 0L;
+    private volatile long[] tableCounts = null;
+
+    public CsvSyncMetricsExporter(CsvCommonHandlerService commonHandlerService, CsvSyncDao dao) {
+        this.commonHandlerService = commonHandlerService;
+        this.dao = dao;
+    }
+
+    /**
+     * Counts a committed upload, the upload took from the creation of the staging dir until now
+     * 
+     * @param batchDir the published batch dir (its name ends with the staging dir creation time in millis)
+     */
+    public void uploadCommitted(File batchDir) {
+        long bytes = 0L;
+        File[] files = batchDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && !CsvBatchQueue.MANIFEST_FILE_NAME.equals(file.getName())) {
+                    bytes += file.length();
+                }
+            }
+        }
+        long millis = 0L;
+        String name = batchDir.getName();
+        int dash = name.lastIndexOf('-');
+        if (dash > 0) {
+            try {
+                millis = Math.max(0L, System.currentTimeMillis() - Long.parseLong(name.substring(dash + 1)));
+            } catch (NumberFormatException e) {
+                // not a staging dir name, the duration is unknown
+            }
+        }
+        uploads.incrementAndGet();
+        uploadBytes.addAndGet(bytes);
+        uploadMillis.addAndGet(millis);
+        if (millis > 0L) {
+            lastUploadBytesPerSecond = bytes * 1000d / millis;
+        }
+    }
+
+    /**
+     * @param queuedBatches the committed batches waiting to be processed
+     * @return the metric samples
+     */
+    public List<CsvSyncMetric> getMetrics(int queuedBatches) {
+        List<CsvSyncMetric> metrics = new ArrayList<CsvSyncMetric>();
+        CsvSyncProgress progress = commonHandlerService.getProgress();
+        long now = System.currentTimeMillis();
+
+        metrics.add(new CsvSyncMetric("sakora_sync_running", CsvSyncMetric.TYPE_GAUGE,
+                "1 if a sync is running on this server", progress.isRunning() ? 1d : 0d));
+        metrics.add(new CsvSyncMetric("sakora_sync_queued_batches", CsvSyncMetric.TYPE_GAUGE,
+                "Committed batches waiting to be processed", queuedBatches));
+        if (progress.isRunning() && progress.getCurrentHandler() != null) {
+            metrics.add(new CsvSyncMetric("sakora_sync_current_rows_per_second", CsvSyncMetric.TYPE_GAUGE,
+                    "Input lines per second of the running handler over the last minute", progress.getRowsPerSecond())
+                    .label("handler", progress.getCurrentHandler()));
+            metrics.add(new CsvSyncMetric("sakora_sync_run_eta_seconds", CsvSyncMetric.TYPE_GAUGE,
+                    "Estimated seconds until the running sync completes (-1 if unknown)", progress.getRunEtaSeconds()));
+        }
+
+        // last run (handler stats), the run history survives restarts
+        long lastSuccess = progress.getLastSuccess();
+        if (commonHandlerService.isRunHistory()) {
+            try {
+                lastSuccess = Math.max(lastSuccess, addRunHistory(metrics));
+            } catch (RuntimeException e) {
+                log.warn("SakoraCSV metrics could not read the run history: "+e);
+            }
+        }
+        if (lastSuccess > 0L) {
+            metrics.add(new CsvSyncMetric("sakora_sync_last_success_timestamp_seconds", CsvSyncMetric.TYPE_GAUGE,
+                    "Time the last successful sync completed", lastSuccess / 1000d));
+            metrics.add(new CsvSyncMetric("sakora_sync_seconds_since_last_success", CsvSyncMetric.TYPE_GAUGE,
+                    "Seconds since the last successful sync completed", (now - lastSuccess) / 1000d));
+        }
+
+        // latencies of the current (or last) run
+        CsvSyncMetrics latency = commonHandlerService.getMetrics();
+        for (Map.Entry<String, ConcurrentMap<String, CsvSyncMetrics.Histogram>> handler : latency.getPhases().entrySet()) {
+            for (Map.Entry<String, CsvSyncMetrics.Histogram> phase : handler.getValue().entrySet()) {
+                addSummary(metrics, "sakora_sync_phase_latency_seconds", "Latency of the handler phases in the current or last sync run",
+                        phase.getValue(), "handler", handler.getKey(), "phase", phase.getKey());
+            }
+        }
+        for (Map.Entry<String, CsvSyncMetrics.Histogram> call : latency.getCalls().entrySet()) {
+            addSummary(metrics, "sakora_sync_call_latency_seconds", "Latency of the CM, user directory and tracking calls in the current or last sync run",
+                    call.getValue(), "call", call.getKey(), null, null);
+        }
+
+        // uploads since startup
+        metrics.add(new CsvSyncMetric("sakora_upload_batches_total", CsvSyncMetric.TYPE_COUNTER,
+                "Upload batches committed on this server", uploads.get()));
+        metrics.add(new CsvSyncMetric("sakora_upload_bytes_total", CsvSyncMetric.TYPE_COUNTER,
+                "Bytes of the upload batches committed on this server", uploadBytes.get()));
+        metrics.add(new CsvSyncMetric("sakora_upload_seconds_total", CsvSyncMetric.TYPE_COUNTER,
+                "Seconds spent uploading the committed batches", uploadMillis.get() / 1000d));
+        metrics.add(new CsvSyncMetric("sakora_upload_last_bytes_per_second", CsvSyncMetric.TYPE_GAUGE,
+                "Throughput of the last committed upload", lastUploadBytesPerSecond));
+
+        // tracking table sizes
+        long[] counts = getTableCounts(now);
+        if (counts != null) {
+            String[] tables = {"SAKORA_PERSON", "SAKORA_MEMBERSHIP", "SAKORA_SESSION", "SAKORA_LOG"};
+            for (int i = 0; i < tables.length; i++) {
+                metrics.add(new CsvSyncMetric("sakora_tracking_rows", CsvSyncMetric.TYPE_GAUGE,
+                        "Rows in the tracking tables (cached for "+(TABLE_COUNT_CACHE_MILLIS / 1000)+" seconds)", counts[i])
+                        .label("table", tables[i]));
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Adds the handler stats of the last run
+     * 
+     * @return the time the last successful run completed (millis), 0 if there is none
+     */
+    private long addRunHistory(List<CsvSyncMetric> metrics) {
+        Search search = new Search();
+        search.addOrder(new Order("startTime", false));
+        search.setLimit(1);
+        List<SakoraRun> runs = dao.findBySearch(SakoraRun.class, search);
+        if (!runs.isEmpty()) {
+            SakoraRun run = runs.get(0);
+            metrics.add(new CsvSyncMetric("sakora_sync_last_run_seconds", CsvSyncMetric.TYPE_GAUGE,
+                    "Duration of the last sync run (0 while it is running)", run.getSeconds()));
+            metrics.add(new CsvSyncMetric("sakora_sync_last_run_success", CsvSyncMetric.TYPE_GAUGE,
+                    "1 if the last sync run completed, 0 if it failed or is running", CsvCommonHandlerService.SYNC_STATE_COMPLETE.equals(run.getStatus()) ? 1d : 0d));
+            Search handlerSearch = new Search("runId", run.getId());
+            handlerSearch.addOrder(new Order("id"));
+            for (SakoraRunHandler handler : dao.findBySearch(SakoraRunHandler.class, handlerSearch)) {
+                String name = handler.getHandler();
+                metrics.add(new CsvSyncMetric("sakora_sync_handler_rows_per_second", CsvSyncMetric.TYPE_GAUGE,
+                        "Input lines per second of each handler in the last run", handler.getRowsPerSecond()).label("handler", name));
+                metrics.add(new CsvSyncMetric("sakora_sync_handler_seconds", CsvSyncMetric.TYPE_GAUGE,
+                        "Duration of each handler in the last run", handler.getSeconds()).label("handler", name));
+                metrics.add(new CsvSyncMetric("sakora_sync_handler_bytes", CsvSyncMetric.TYPE_GAUGE,
+                        "Input bytes read by each handler in the last run", handler.getBytes()).label("handler", name));
+                metrics.add(new CsvSyncMetric("sakora_sync_handler_lines", CsvSyncMetric.TYPE_GAUGE,
+                        "Input lines processed by each handler in the last run", handler.getLines()).label("handler", name));
+                metrics.add(new CsvSyncMetric("sakora_sync_handler_errors", CsvSyncMetric.TYPE_GAUGE,
+                        "Invalid input lines of each handler in the last run", handler.getErrors()).label("handler", name));
+                metrics.add(new CsvSyncMetric("sakora_sync_handler_tracking_failures", CsvSyncMetric.TYPE_GAUGE,
+                        "Tracking writes of each handler which failed in the last run (the changes were applied without tracking records)",
+                        handler.getTrackingFailures()).label("handler", name));
+                metrics.add(new CsvSyncMetric("sakora_sync_handler_changes", CsvSyncMetric.TYPE_GAUGE,
+                        "Changes made by each handler in the last run", handler.getAdds()).label("handler", name).label("change", "add"));
+                metrics.add(new CsvSyncMetric("sakora_sync_handler_changes", CsvSyncMetric.TYPE_GAUGE,
+                        "Changes made by each handler in the last run", handler.getUpdates()).label("handler", name).label("change", "update"));
+                metrics.add(new CsvSyncMetric("sakora_sync_handler_changes", CsvSyncMetric.TYPE_GAUGE,
+                        "Changes made by each handler in the last run", handler.getDeletes()).label("handler", name).label("change", "delete"));
+                if (handler.getCpuMillis() >= 0) {
+                    metrics.add(new CsvSyncMetric("sakora_sync_handler_cpu_seconds", CsvSyncMetric.TYPE_GAUGE,
+                            "CPU time used by each handler in the last run", handler.getCpuMillis() / 1000d).label("handler", name));
+                }
+                if (handler.getAllocatedBytes() >= 0) {
+                    metrics.add(new CsvSyncMetric("sakora_sync_handler_allocated_bytes", CsvSyncMetric.TYPE_GAUGE,
+                            "Bytes allocated by each handler in the last run", handler.getAllocatedBytes()).label("handler", name));
+                }
+            }
+        }
+        Search successSearch = new Search("status", CsvCommonHandlerService.SYNC_STATE_COMPLETE);
+        successSearch.addRestriction(new Restriction("endTime", null, Restriction.NOT_NULL));
+        successSearch.addOrder(new Order("endTime", false));
+        successSearch.setLimit(1);
+        List<SakoraRun> successes = dao.findBySearch(SakoraRun.class, successSearch);
+        return successes.isEmpty() ? 0L : successes.get(0).getEndTime().getTime();
+    }
+
+    private void addSummary(List<CsvSyncMetric> metrics, String name, String help, CsvSyncMetrics.Histogram histogram,
+            String label1, String value1, String label2, String value2) {
+        for (double quantile : QUANTILES) {
+            CsvSyncMetric metric = new CsvSyncMetric(name, CsvSyncMetric.TYPE_SUMMARY, help,
+                    histogram.getPercentile(quantile * 100d) / NANOS_PER_SECOND).label(label1, value1);
+            if (label2 != null) {
+                metric.label(label2, value2);
+            }
+            metrics.add(metric.label("quantile", String.valueOf(quantile)));
+        }
+        CsvSyncMetric sum = new CsvSyncMetric(name + "_sum", CsvSyncMetric.TYPE_SUMMARY, help, histogram.getTotal() / NANOS_PER_SECOND).label(label1, value1);
+        CsvSyncMetric count = new CsvSyncMetric(name + "_count", CsvSyncMetric.TYPE_SUMMARY, help, histogram.getCount()).label(label1, value1);
+        if (label2 != null) {
+            sum.label(label2, value2);
+            count.label(label2, value2);
+        }
+        metrics.add(sum);
+        metrics.add(count);
+    }
+
+    private long[] getTableCounts(long now) {
+        if (tableCounts == null || now - tableCountsTime > TABLE_COUNT_CACHE_MILLIS) {
+            try {
+                tableCounts = new long[] {
+                        dao.countBySearch(Person.class, new Search()),
+                        dao.countBySearch(Membership.class, new Search()),
+                        dao.countBySearch(Session.class, new Search()),
+                        dao.countBySearch(SakoraLog.class, new Search())
+                };
+                tableCountsTime = now;
+            } catch (RuntimeException e) {
+                log.warn("SakoraCSV metrics could not count the tracking tables: "+e);
+            }
+        }
+        return tableCounts;
+    }
+
+}
@@ -0,0 +1,702 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.unicon.sakora.api.csv.model.Membership;
+import net.unicon.sakora.api.csv.model.Person;
+import net.unicon.sakora.api.csv.model.Session;
+import net.unicon.sakora.impl.csv.dao.CsvSyncDao;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.coursemanagement.api.AcademicSession;
+import org.sakaiproject.genericdao.api.search.Order;
+import org.sakaiproject.genericdao.api.search.Restriction;
+import org.sakaiproject.genericdao.api.search.Search;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Computes what a batch would change without changing anything (plan mode): the feed files are read
+ * in parallel, the current sessions, offerings and sections are worked out the same way the handlers do
+ * and the people, memberships and sessions are compared against the tracking tables (read only) to count
+ * the adds, updates and especially the removals the snapshot processing would apply.
+ * 
+ * Only the tracking tables are used (no CM or user directory lookups) so the other handlers only report
+ * the rows which would be processed or skipped. A diffMode run applies the same changes as the snapshot.
+ * 
+ * The people and membership keys are not held in memory: the keys of the feed and of the tracking table
+ * are written to temp files, sorted (see {@link CsvFileSorter}) and merged. The caller must make sure
+ * no sync changes the tracking tables while the plan pages through them.
+ */
+public class CsvSyncPlanner {
+
+    private static final Log log = LogFactory.getLog(CsvSyncPlanner.class);
+
+    private static final String KEYS_SUFFIX = ".keys";
+    private static final String TRACKED_SUFFIX = ".tracked";
+
+    /**
+     * Sync context properties key (job parameter). If true then the next batch is planned (report in the log)
+     * instead of being processed, the batch is left in place. Removed once used.
+     */
+    public static final String PLAN = "plan";
+
+    private final CsvCommonHandlerService commonHandlerService;
+    private final CsvSyncDao dao;
+    private int searchPageSize = 1000;
+    private int threads = 4;
+    private int removalWarnPercent = 10;
+
+    public CsvSyncPlanner(CsvCommonHandlerService commonHandlerService, CsvSyncDao dao) {
+        this.commonHandlerService = commonHandlerService;
+        this.dao = dao;
+    }
+
+    /**
+     * Plans a batch
+     * 
+     * @param batchDir the dir which holds the feed files
+     * @param handlers the handlers in processing order
+     * @param properties the sync overrides for the batch (may be null)
+     * @return the plan
+     * @throws IOException if the sorted key files cannot be written
+     * @throws InterruptedException if the planning is interrupted
+     */
+    public Plan plan(File batchDir, List<CsvHandlerBase> handlers, Map<String, String> properties) throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        if (properties == null) {
+            properties = new HashMap<String, String>(0);
+        }
+        final boolean deltaFeed = getBoolean(properties, CsvCommonHandlerService.DELTA_FEED, commonHandlerService.isDeltaFeed());
+        final boolean ignoreMissingSessions = getBoolean(properties, CsvCommonHandlerService.IGNORE_MISSING_SESSIONS, commonHandlerService.isIgnoreMissingSessions());
+        final boolean ignoreMembershipRemovals = getBoolean(properties, CsvCommonHandlerService.IGNORE_MEMBERSHIP_REMOVALS, commonHandlerService.isIgnoreMembershipRemovals());
+        String urm = properties.get(CsvCommonHandlerService.USER_REMOVAL_MODE);
+        if (urm == null) {
+            // the name used by the upload servlet
+            urm = properties.get("userRemovalMode");
+        }
+        final String userRemoveMode = urm != null ? urm : commonHandlerService.getUserRemoveMode();
+
+        Plan plan = new Plan(batchDir, "deltaFeed=" + deltaFeed + ", ignoreMissingSessions=" + ignoreMissingSessions
+                + ", ignoreMembershipRemovals=" + ignoreMembershipRemovals + ", userRemoveMode=" + userRemoveMode);
+        // the sorted key files, removed once the plan is done
+        final File tempDir = createTempDir();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            // read all the feed files
+            Map<CsvHandlerBase, Future<Feed>> reads = new LinkedHashMap<CsvHandlerBase, Future<Feed>>();
+            for (final CsvHandlerBase handler : handlers) {
+                final File file = new File(batchDir, handler.getCsvFileName());
+                reads.put(handler, executor.submit(new Callable<Feed>() {
+                    public Feed call() throws IOException {
+                        return readFeed(handler, file, deltaFeed, tempDir);
+                    }
+                }));
+            }
+            final Map<CsvHandlerBase, Feed> feeds = new LinkedHashMap<CsvHandlerBase, Feed>();
+            for (Map.Entry<CsvHandlerBase, Future<Feed>> entry : reads.entrySet()) {
+                feeds.put(entry.getKey(), get(entry.getValue()));
+            }
+
+            // work out the current containers the same way the handlers do
+            Set<String> currentSessions = new HashSet<String>();
+            Set<String> currentOfferings = new HashSet<String>();
+            Set<String> currentSections = new HashSet<String>();
+            if (deltaFeed) {
+                List<AcademicSession> sessions = commonHandlerService.cmService.getCurrentAcademicSessions();
+                if (sessions != null) {
+                    for (AcademicSession session : sessions) {
+                        currentSessions.add(session.getEid());
+                    }
+                }
+            }
+            for (Map.Entry<CsvHandlerBase, Feed> entry : feeds.entrySet()) {
+                if (entry.getKey() instanceof CsvAcademicSessionHandler) {
+                    currentSessions.addAll(entry.getValue().keys.keySet());
+                    currentSessions.removeAll(entry.getValue().removedKeys);
+                }
+            }
+            currentOfferings.addAll(filterCurrent(feeds, CsvCourseOfferingHandler.class, currentSessions, ignoreMissingSessions));
+            filterCurrent(feeds, CsvEnrollmentSetHandler.class, currentOfferings, ignoreMissingSessions);
+            currentSections.addAll(filterCurrent(feeds, CsvSectionHandler.class, currentOfferings, ignoreMissingSessions));
+
+            // compare with the tracking tables
+            final Set<String> sessions = currentSessions;
+            Map<CsvHandlerBase, Future<HandlerPlan>> compares = new LinkedHashMap<CsvHandlerBase, Future<HandlerPlan>>();
+            for (final Map.Entry<CsvHandlerBase, Feed> entry : feeds.entrySet()) {
+                final CsvHandlerBase handler = entry.getKey();
+                final Feed feed = entry.getValue();
+                final Set<String> containers;
+                if (handler instanceof CsvMembershipHandler) {
+                    boolean section = CsvMembershipHandler.MODE_SECTION.equals(((CsvMembershipHandler) handler).getMode());
+                    containers = ignoreMissingSessions ? (section ? currentSections : currentOfferings) : null;
+                } else {
+                    containers = null;
+                }
+                compares.put(handler, executor.submit(new Callable<HandlerPlan>() {
+                    public HandlerPlan call() throws IOException {
+                        if (!feed.present) {
+                            return feed.toPlan(handler.getName());
+                        } else if (handler instanceof CsvMembershipHandler) {
+                            return planMemberships(handler.getName(), ((CsvMembershipHandler) handler).getMode(), feed, containers, !ignoreMembershipRemovals, tempDir);
+                        } else if (feed.delta) {
+                            return feed.toPlan(handler.getName());
+                        } else if (handler instanceof CsvPersonHandler) {
+                            return planPeople(handler.getName(), feed, !CsvCommonHandlerService.URM_IGNORE.equals(userRemoveMode), tempDir);
+                        } else if (handler instanceof CsvAcademicSessionHandler) {
+                            return planSessions(handler.getName(), feed, sessions);
+                        }
+                        return feed.toPlan(handler.getName());
+                    }
+                }));
+            }
+            for (Map.Entry<CsvHandlerBase, Future<HandlerPlan>> entry : compares.entrySet()) {
+                HandlerPlan handlerPlan = get(entry.getValue());
+                plan.handlers.add(handlerPlan);
+                if (handlerPlan.tracked > 0 && handlerPlan.removals > 0
+                        && (handlerPlan.removals * 100L) / handlerPlan.tracked >= removalWarnPercent) {
+                    plan.warnings.add(handlerPlan.name + " would remove " + handlerPlan.removals + " of " + handlerPlan.tracked
+                            + " tracked records (" + ((handlerPlan.removals * 100L) / handlerPlan.tracked) + "%)");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            deleteTempDir(tempDir);
+        }
+        plan.millis = System.currentTimeMillis() - startTime;
+        return plan;
+    }
+
+    private Set<String> filterCurrent(Map<CsvHandlerBase, Feed> feeds, Class<?> type, Set<String> parents, boolean ignoreMissingSessions) {
+        Set<String> current = new HashSet<String>();
+        for (Map.Entry<CsvHandlerBase, Feed> entry : feeds.entrySet()) {
+            if (type.isInstance(entry.getKey())) {
+                Feed feed = entry.getValue();
+                for (Map.Entry<String, String> row : feed.keys.entrySet()) {
+                    if (!ignoreMissingSessions || parents.contains(row.getValue())) {
+                        current.add(row.getKey());
+                    } else {
+                        feed.skipped++;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    private HandlerPlan planPeople(String name, Feed feed, final boolean removals, File tempDir) throws IOException {
+        final HandlerPlan plan = feed.toPlan(name);
+        File tracked = new File(tempDir, name + TRACKED_SUFFIX);
+        CSVWriter writer = new CSVWriter(new BufferedWriter(new FileWriter(tracked)));
+        try {
+            Search search = new Search();
+            // offset paging needs a stable order (by the primary key) or pages can skip or repeat rows
+            search.addOrder(new Order("userEid"));
+            search.setLimit(searchPageSize);
+            boolean done = false;
+            while (!done) {
+                List<Person> people = dao.findBySearch(Person.class, search);
+                for (Person person : people) {
+                    writer.writeNext(new String[] {person.getUserEid()});
+                }
+                done = people.size() < searchPageSize;
+                search.setStart(search.getStart() + people.size());
+            }
+        } finally {
+            writer.close();
+        }
+        final int[] counts = new int[2]; // matched, adds
+        merge(feed.keyFile, sortKeys(tracked, feed.keyColumns, tempDir), feed.keyColumns, new KeyMerge() {
+            public void feedOnly(String[] key) {
+                counts[1]++;
+            }
+            public void tracked(String[] key, boolean inFeed) {
+                plan.tracked++;
+                if (inFeed) {
+                    counts[0]++;
+                } else if (removals) {
+                    plan.removals++;
+                }
+            }
+        });
+        plan.updates = counts[0];
+        plan.adds = counts[1];
+        return plan;
+    }
+
+    private HandlerPlan planMemberships(String name, String mode, Feed feed, final Set<String> containers, final boolean removals, File tempDir) throws IOException {
+        final HandlerPlan plan = feed.toPlan(name);
+        File tracked = null;
+        if (!feed.delta) {
+            tracked = new File(tempDir, name + TRACKED_SUFFIX);
+            CSVWriter writer = new CSVWriter(new BufferedWriter(new FileWriter(tracked)));
+            try {
+                Search search = new Search();
+                search.addOrder(new Order("id"));
+                search.addRestriction(new Restriction("mode", mode, Restriction.EQUALS));
+                search.setLimit(searchPageSize);
+                boolean done = false;
+                while (!done) {
+                    List<Membership> memberships = dao.findBySearch(Membership.class, search);
+                    for (Membership membership : memberships) {
+                        writer.writeNext(new String[] {membership.getContainerEid(), membership.getUserEid()});
+                    }
+                    done = memberships.size() < searchPageSize;
+                    search.setStart(search.getStart() + memberships.size());
+                }
+            } finally {
+                writer.close();
+            }
+            tracked = sortKeys(tracked, feed.keyColumns, tempDir);
+        }
+        // a delta feed is only checked for the rows in containers which are not current
+        final boolean snapshot = !feed.delta;
+        final int[] counts = new int[2]; // matched, adds
+        plan.skipped = 0;
+        merge(feed.keyFile, tracked, feed.keyColumns, new KeyMerge() {
+            public void feedOnly(String[] key) {
+                if (containers != null && !containers.contains(key[0])) {
+                    plan.skipped++;
+                } else {
+                    counts[1]++;
+                }
+            }
+            public void tracked(String[] key, boolean inFeed) {
+                plan.tracked++;
+                boolean current = containers == null || containers.contains(key[0]);
+                if (inFeed) {
+                    if (current) {
+                        counts[0]++;
+                    } else {
+                        plan.skipped++;
+                    }
+                } else if (removals && current) {
+                    plan.removals++;
+                }
+            }
+        });
+        if (snapshot) {
+            plan.updates = counts[0];
+            plan.adds = counts[1];
+        }
+        return plan;
+    }
+
+    private HandlerPlan planSessions(String name, Feed feed, Set<String> currentSessions) {
+        HandlerPlan plan = feed.toPlan(name);
+        Search search = new Search();
+        search.addOrder(new Order("eid"));
+        search.setLimit(searchPageSize);
+        int matched = 0;
+        boolean done = false;
+        while (!done) {
+            List<Session> sessions = dao.findBySearch(Session.class, search);
+            for (Session session : sessions) {
+                if (feed.keys.containsKey(session.getEid())) {
+                    matched++;
+                }
+            }
+            done = sessions.size() < searchPageSize;
+            search.setStart(search.getStart() + sessions.size());
+        }
+        plan.updates = matched;
+        plan.adds = feed.keys.size() - matched;
+        // the sessions which are current now but not in the feed stop being current
+        List<AcademicSession> current = commonHandlerService.cmService.getCurrentAcademicSessions();
+        if (current != null) {
+            plan.tracked = current.size();
+            for (AcademicSession session : current) {
+                if (!currentSessions.contains(session.getEid())) {
+                    plan.removals++;
+                }
+            }
+        }
+        return plan;
+    }
+
+    private Feed readFeed(CsvHandlerBase handler, File file, boolean delta, File tempDir) throws IOException {
+        Feed feed = new Feed();
+        feed.delta = delta;
+        if (!file.isFile()) {
+            return feed;
+        }
+        feed.present = true;
+        // key column and parent (container) column, -1 if none
+        int keyColumn = 0;
+        int parentColumn = -1;
+        boolean membership = false;
+        if (handler instanceof CsvMembershipHandler) {
+            membership = true;
+            feed.keyColumns = new int[] {0, 1};
+        } else if (handler instanceof CsvPersonHandler) {
+            // the keys are only needed to compare a snapshot with the tracking table
+            feed.keyColumns = delta ? null : new int[] {0};
+        } else if (handler instanceof CsvCourseOfferingHandler) {
+            parentColumn = 1;
+        } else if (handler instanceof CsvEnrollmentSetHandler) {
+            parentColumn = 4;
+        } else if (handler instanceof CsvSectionHandler) {
+            parentColumn = 6;
+        } else if (!(handler instanceof CsvAcademicSessionHandler)) {
+            // rows only
+            keyColumn = -1;
+        }
+        // the same rows the handler skips as too short
+        int minFields = handler.getMinFieldCount();
+        File keys = null;
+        CSVWriter writer = null;
+        if (feed.keyColumns != null) {
+            keys = new File(tempDir, handler.getName() + KEYS_SUFFIX);
+            writer = new CSVWriter(new BufferedWriter(new FileWriter(keys)));
+        }
+        CSVReader reader = new CSVReader(new BufferedReader(new FileReader(file)));
+        try {
+            if (handler.isHasHeader()) {
+                reader.readNext();
+            }
+            String[] line;
+            while ((line = reader.readNext()) != null) {
+                feed.rows++;
+                String op = null;
+                if (delta) {
+                    op = line.length > 0 && line[0] != null ? line[0].trim().toUpperCase() : "";
+                    String[] row = new String[Math.max(line.length - 1, 0)];
+                    System.arraycopy(line, Math.min(1, line.length), row, 0, row.length);
+                    line = row;
+                    if (CsvFileDiffer.OP_ADD.equals(op)) {
+                        feed.adds++;
+                    } else if (CsvFileDiffer.OP_UPDATE.equals(op)) {
+                        feed.updates++;
+                    } else if (CsvFileDiffer.OP_DELETE.equals(op)) {
+                        feed.removals++;
+                    } else {
+                        feed.errors++;
+                        continue;
+                    }
+                }
+                if (line.length < minFields || line[0] == null || line[0].trim().length() == 0) {
+                    feed.errors++;
+                    continue;
+                }
+                if (writer != null) {
+                    if (!CsvFileDiffer.OP_DELETE.equals(op)) {
+                        writer.writeNext(membership ? new String[] {trim(line[0]), trim(line[1])} : new String[] {trim(line[0])});
+                    }
+                    continue;
+                }
+                if (keyColumn < 0) {
+                    continue;
+                }
+                String key = trim(line[keyColumn]);
+                String parent = parentColumn < 0 ? null : trim(line[parentColumn]);
+                if (CsvFileDiffer.OP_DELETE.equals(op)) {
+                    feed.removedKeys.add(key);
+                } else {
+                    feed.keys.put(key, parent);
+                }
+            }
+        } finally {
+            reader.close();
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        if (keys != null) {
+            feed.keyFile = sortKeys(keys, feed.keyColumns, tempDir);
+        }
+        return feed;
+    }
+
+    private File sortKeys(File keys, int[] keyColumns, File tempDir) throws IOException {
+        CsvFileSorter sorter = new CsvFileSorter(keyColumns, commonHandlerService.getSortMemoryCeilingBytes());
+        try {
+            return sorter.sort(keys, false, tempDir);
+        } finally {
+            keys.delete();
+        }
+    }
+
+    /**
+     * Merges the sorted feed keys with the sorted tracked keys, duplicate feed keys are only visited once
+     * 
+     * @param feedKeys the sorted feed keys
+     * @param trackedKeys the sorted tracked keys, null for none
+     * @param keyColumns the key columns both files are sorted by
+     * @param visitor called for every feed key which is not tracked and for every tracked key
+     */
+    private void merge(File feedKeys, File trackedKeys, int[] keyColumns, KeyMerge visitor) throws IOException {
+        CSVReader feedReader = new CSVReader(new BufferedReader(new FileReader(feedKeys)));
+        CSVReader trackedReader = trackedKeys == null ? null : new CSVReader(new BufferedReader(new FileReader(trackedKeys)));
+        try {
+            String[] feed = nextKey(feedReader, null, keyColumns);
+            // true once the current feed key matched a tracked key
+            boolean matched = false;
+            String[] tracked = trackedReader == null ? null : trackedReader.readNext();
+            while (tracked != null) {
+                int c = feed == null ? 1 : CsvFileSorter.compareKeys(feed, tracked, keyColumns);
+                if (c < 0) {
+                    if (!matched) {
+                        visitor.feedOnly(feed);
+                    }
+                    feed = nextKey(feedReader, feed, keyColumns);
+                    matched = false;
+                } else {
+                    matched = matched || c == 0;
+                    visitor.tracked(tracked, c == 0);
+                    tracked = trackedReader.readNext();
+                }
+            }
+            while (feed != null) {
+                if (!matched) {
+                    visitor.feedOnly(feed);
+                }
+                feed = nextKey(feedReader, feed, keyColumns);
+                matched = false;
+            }
+        } finally {
+            feedReader.close();
+            if (trackedReader != null) {
+                trackedReader.close();
+            }
+        }
+    }
+
+    private static String[] nextKey(CSVReader reader, String[] previous, int[] keyColumns) throws IOException {
+        String[] key;
+        while ((key = reader.readNext()) != null) {
+            if (previous == null || CsvFileSorter.compareKeys(key, previous, keyColumns) != 0) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("sakora-plan", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create the plan temp dir [" + dir + "]");
+        }
+        return dir;
+    }
+
+    private static void deleteTempDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        if (!dir.delete()) {
+            log.warn("SakoraCSV unable to remove the plan temp dir [" + dir + "]");
+        }
+    }
+
+    private static String trim(String value) {
+        return value == null ? null : value.trim();
+    }
+
+    private static boolean getBoolean(Map<String, String> properties, String key, boolean defaultValue) {
+        String value = properties.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    private static <T> T get(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("SakoraCSV plan failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    public void setSearchPageSize(int searchPageSize) {
+        this.searchPageSize = searchPageSize;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setRemovalWarnPercent(int removalWarnPercent) {
+        this.removalWarnPercent = removalWarnPercent;
+    }
+
+    /**
+     * Visits the keys of a feed merged with the keys of a tracking table
+     */
+    private interface KeyMerge {
+        void feedOnly(String[] key);
+        void tracked(String[] key, boolean inFeed);
+    }
+
+    /**
+     * The rows read from one feed file
+     */
+    private static class Feed {
+        boolean present = false;
+        boolean delta = false;
+        int rows = 0;
+        int errors = 0;
+        int skipped = 0;
+        int adds = 0;
+        int updates = 0;
+        int removals = 0;
+        // key -> parent (container) key, except the people and memberships
+        Map<String, String> keys = new HashMap<String, String>();
+        Set<String> removedKeys = new HashSet<String>();
+        // the sorted people and membership keys (A and U rows only for a delta), null for the other feeds
+        File keyFile;
+        int[] keyColumns;
+
+        HandlerPlan toPlan(String name) {
+            HandlerPlan plan = new HandlerPlan(name);
+            plan.present = present;
+            plan.rows = rows;
+            plan.errors = errors;
+            plan.skipped = skipped;
+            plan.adds = adds;
+            plan.updates = updates;
+            plan.removals = removals;
+            return plan;
+        }
+    }
+
+    /**
+     * The changes one handler would make, adds and updates are only split for the tracked data
+     * (people, memberships and sessions) or a delta feed
+     */
+    public static class HandlerPlan {
+        private final String name;
+        private boolean present;
+        private int rows;
+        private int errors;
+        private int skipped;
+        private int adds;
+        private int updates;
+        private int removals;
+        private int tracked;
+
+        HandlerPlan(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isPresent() {
+            return present;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public int getAdds() {
+            return adds;
+        }
+
+        public int getUpdates() {
+            return updates;
+        }
+
+        public int getRemovals() {
+            return removals;
+        }
+
+        public int getTracked() {
+            return tracked;
+        }
+
+        @Override
+        public String toString() {
+            if (!present) {
+                return name + ": no file (nothing changes)";
+            }
+            return name + ": rows=" + rows + ", adds=" + adds + ", updates=" + updates + ", removals=" + removals
+                    + (tracked > 0 ? " (of " + tracked + " tracked)" : "") + ", skipped=" + skipped + ", errors=" + errors;
+        }
+    }
+
+    /**
+     * The change set for a batch
+     */
+    public static class Plan {
+        private final File batchDir;
+        private final String settings;
+        private final List<HandlerPlan> handlers = new ArrayList<HandlerPlan>();
+        private final List<String> warnings = new ArrayList<String>();
+        private long millis;
+
+        Plan(File batchDir, String settings) {
+            this.batchDir = batchDir;
+            this.settings = settings;
+        }
+
+        public List<HandlerPlan> getHandlers() {
+            return handlers;
+        }
+
+        public List<String> getWarnings() {
+            return warnings;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("SakoraCSV plan for [").append(batchDir).append("] (").append(settings).append(") in ").append(millis).append(" ms\n");
+            for (HandlerPlan handler : handlers) {
+                sb.append("  ").append(handler).append('\n');
+            }
+            for (String warning : warnings) {
+                sb.append("  WARNING: ").append(warning).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+}
@@ -0,0 +1,428 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Live progress of the running sync for ops (JMX, see {@link CsvSyncProgressMBean}): the bytes read
+ * against the input file size, the lines processed, rows/sec over a sliding window and the ETAs.
+ * 
+ * The sync thread updates the counters (volatile and atomic fields only, nothing is locked in the
+ * line loop), the JMX thread works out the rates and ETAs when the attributes are read.
+ * The run ETA assumes the input files which are left are read at the average throughput of the
+ * run so far (which includes the removal processing).
+ */
+public class CsvSyncProgress implements CsvSyncProgressMBean {
+
+    public static final String OBJECT_NAME = "net.unicon.sakora:type=CsvSync,name=Progress";
+
+    private static final long WINDOW_MILLIS = 60 * 1000L;
+    private static final long SAMPLE_MILLIS = 1000L;
+
+    private volatile String runId = null;
+    private volatile boolean running = false;
+    private volatile long runStart = 0L;
+    private volatile File batchDir = null;
+    private volatile HandlerProgress current = null;
+    private volatile int pendingTrackingWrites = 0;
+    private volatile long lastSuccess = 0L;
+    private CsvBatchQueue batchQueue;
+    // handler name -> progress, in processing order (guarded by this)
+    private final Map<String, HandlerProgress> handlers = new LinkedHashMap<String, HandlerProgress>();
+
+    /**
+     * Clears the progress for a new run
+     * 
+     * @param runId the sync run id
+     */
+    public synchronized void runStarted(String runId) {
+        this.runId = runId;
+        this.runStart = System.currentTimeMillis();
+        this.running = true;
+        this.batchDir = null;
+        this.current = null;
+        this.pendingTrackingWrites = 0;
+        handlers.clear();
+    }
+
+    /**
+     * Adds a handler which the run is going to process (so the run ETA includes its input file)
+     * 
+     * @param name the handler name
+     * @param csvFileName the handler's input file name
+     */
+    public synchronized void handlerPlanned(String name, String csvFileName) {
+        if (!handlers.containsKey(name)) {
+            handlers.put(name, new HandlerProgress(name, csvFileName));
+        }
+    }
+
+    /**
+     * @param name the handler name
+     * @param state the handler state (see {@link CsvCommonHandlerService#setCurrentHandlerState(String, net.unicon.sakora.api.csv.CsvHandler)})
+     */
+    public void handlerState(String name, String state) {
+        HandlerProgress handler;
+        synchronized (this) {
+            handler = handlers.get(name);
+            if (handler == null) {
+                handler = new HandlerProgress(name, null);
+                handlers.put(name, handler);
+            }
+        }
+        if (handler.start == 0L) {
+            handler.start = System.currentTimeMillis();
+        }
+        handler.state = state;
+        if (CsvCommonHandlerService.STATE_DONE.equals(state)) {
+            handler.end = System.currentTimeMillis();
+            if (current == handler) {
+                current = null;
+            }
+        } else {
+            current = handler;
+        }
+    }
+
+    /**
+     * Counts the bytes read from a handler's input file
+     * 
+     * @param name the handler name
+     * @param file the input file (its size is the total for the handler)
+     * @param in the input file stream
+     * @return the stream to read the input from
+     */
+    public InputStream track(String name, File file, InputStream in) {
+        final HandlerProgress handler;
+        synchronized (this) {
+            HandlerProgress hp = handlers.get(name);
+            if (hp == null) {
+                hp = new HandlerProgress(name, file.getName());
+                handlers.put(name, hp);
+            }
+            handler = hp;
+        }
+        handler.bytesTotal = file.length();
+        handler.bytesRead.set(0L);
+        handler.sample(System.currentTimeMillis());
+        batchDir = file.getParentFile();
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    handler.bytesRead.incrementAndGet();
+                }
+                return b;
+            }
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    handler.bytesRead.addAndGet(n);
+                }
+                return n;
+            }
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                if (skipped > 0) {
+                    handler.bytesRead.addAndGet(skipped);
+                }
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * Counts an input line processed by the current handler (called from the line loop)
+     * 
+     * @param pendingTrackingWrites the tracking writes waiting for the next batch commit
+     */
+    public void lineProcessed(int pendingTrackingWrites) {
+        this.pendingTrackingWrites = pendingTrackingWrites;
+        HandlerProgress handler = current;
+        if (handler != null) {
+            handler.lines++;
+            if ((handler.lines & 0xFF) == 0) {
+                handler.sample(System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * @param success true if the run completed
+     */
+    public void runDone(boolean success) {
+        if (success) {
+            lastSuccess = System.currentTimeMillis();
+        }
+        running = false;
+        current = null;
+        pendingTrackingWrites = 0;
+    }
+
+    /**
+     * @param name the handler name
+     * @return the bytes the handler read from its input file in the current (or last) run
+     */
+    public long getBytesRead(String name) {
+        HandlerProgress handler;
+        synchronized (this) {
+            handler = handlers.get(name);
+        }
+        return handler == null ? 0L : handler.bytesRead.get();
+    }
+
+    /**
+     * @return the time the last successful run on this server completed (millis), 0 if none since startup
+     */
+    public long getLastSuccess() {
+        return lastSuccess;
+    }
+
+    public void setBatchQueue(CsvBatchQueue batchQueue) {
+        this.batchQueue = batchQueue;
+    }
+
+    // MBEAN
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public String getCurrentHandler() {
+        HandlerProgress handler = current;
+        return handler == null ? null : handler.name;
+    }
+
+    public String getCurrentState() {
+        HandlerProgress handler = current;
+        return handler == null ? (running ? null : "idle") : handler.state;
+    }
+
+    public long getElapsedSeconds() {
+        return runStart == 0L ? 0L : (System.currentTimeMillis() - runStart) / 1000;
+    }
+
+    public long getBytesRead() {
+        HandlerProgress handler = current;
+        return handler == null ? 0L : handler.bytesRead.get();
+    }
+
+    public long getBytesTotal() {
+        HandlerProgress handler = current;
+        return handler == null ? 0L : handler.bytesTotal;
+    }
+
+    public int getPercentRead() {
+        HandlerProgress handler = current;
+        return handler == null ? 0 : handler.percentRead();
+    }
+
+    public long getLinesProcessed() {
+        HandlerProgress handler = current;
+        return handler == null ? 0L : handler.lines;
+    }
+
+    public double getRowsPerSecond() {
+        HandlerProgress handler = current;
+        return handler == null ? 0d : handler.rates(System.currentTimeMillis())[0];
+    }
+
+    public double getBytesPerSecond() {
+        HandlerProgress handler = current;
+        return handler == null ? 0d : handler.rates(System.currentTimeMillis())[1];
+    }
+
+    public long getHandlerEtaSeconds() {
+        HandlerProgress handler = current;
+        return handler == null ? -1L : handler.etaSeconds(System.currentTimeMillis());
+    }
+
+    public long getRunEtaSeconds() {
+        if (!running || runStart == 0L) {
+            return -1L;
+        }
+        long elapsed = System.currentTimeMillis() - runStart;
+        long read = 0L;
+        long remaining = 0L;
+        File dir = batchDir;
+        for (HandlerProgress handler : getHandlerList()) {
+            long handlerRead = handler.bytesRead.get();
+            read += handlerRead;
+            if (handler.end != 0L) {
+                continue;
+            }
+            if (handler.bytesTotal > 0L) {
+                remaining += Math.max(0L, handler.bytesTotal - handlerRead);
+            } else if (handler.start == 0L && dir != null && handler.csvFileName != null) {
+                // not started yet, the file is only there if it was part of the batch
+                File file = new File(dir, handler.csvFileName);
+                if (file.isFile()) {
+                    remaining += file.length();
+                }
+            }
+        }
+        if (remaining == 0L) {
+            return 0L;
+        }
+        if (read == 0L || elapsed <= 0L) {
+            return -1L;
+        }
+        double bytesPerMilli = (double) read / elapsed;
+        return (long) (remaining / bytesPerMilli / 1000d);
+    }
+
+    public String getEstimatedCompletion() {
+        long eta = getRunEtaSeconds();
+        if (eta < 0L) {
+            return null;
+        }
+        return DateFormat.getDateTimeInstance().format(new Date(System.currentTimeMillis() + eta * 1000));
+    }
+
+    public int getQueuedBatches() {
+        return batchQueue == null ? 0 : batchQueue.getCommitted().size();
+    }
+
+    public int getPendingTrackingWrites() {
+        return current == null ? 0 : pendingTrackingWrites;
+    }
+
+    public String[] getHandlers() {
+        long now = System.currentTimeMillis();
+        List<String> lines = new ArrayList<String>();
+        for (HandlerProgress handler : getHandlerList()) {
+            lines.add(handler.describe(now));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    private synchronized List<HandlerProgress> getHandlerList() {
+        return new ArrayList<HandlerProgress>(handlers.values());
+    }
+
+    @Override
+    public String toString() {
+        return "run=" + runId + ", running=" + running + ", handler=" + getCurrentHandler() + ", state=" + getCurrentState()
+                + ", read=" + getBytesRead() + "/" + getBytesTotal() + ", lines=" + getLinesProcessed()
+                + ", runEta=" + getRunEtaSeconds() + "s";
+    }
+
+    /**
+     * Progress of one handler, the samples (taken by the sync thread every 256 lines, at most once a second)
+     * are the sliding window for the rates
+     */
+    static class HandlerProgress {
+        final String name;
+        final String csvFileName;
+        volatile String state = "planned";
+        volatile long start = 0L;
+        volatile long end = 0L;
+        volatile long bytesTotal = 0L;
+        final AtomicLong bytesRead = new AtomicLong();
+        volatile long lines = 0L;
+        private final AtomicReferenceArray<long[]> samples = new AtomicReferenceArray<long[]>((int) (WINDOW_MILLIS / SAMPLE_MILLIS) + 1);
+        private volatile int nextSample = 0;
+        private volatile long lastSample = 0L;
+
+        HandlerProgress(String name, String csvFileName) {
+            this.name = name;
+            this.csvFileName = csvFileName;
+        }
+
+        void sample(long now) {
+            if (now - lastSample < SAMPLE_MILLIS) {
+                return;
+            }
+            lastSample = now;
+            int i = nextSample;
+            samples.set(i, new long[] {now, lines, bytesRead.get()});
+            nextSample = (i + 1) % samples.length();
+        }
+
+        /**
+         * @return rows/sec and bytes/sec over the sliding window
+         */
+        double[] rates(long now) {
+            long[] oldest = null;
+            for (int i = 0; i < samples.length(); i++) {
+                long[] sample = samples.get(i);
+                if (sample != null && now - sample[0] <= WINDOW_MILLIS && (oldest == null || sample[0] < oldest[0])) {
+                    oldest = sample;
+                }
+            }
+            if (oldest == null || now - oldest[0] <= 0L) {
+                return new double[] {0d, 0d};
+            }
+            double seconds = (now - oldest[0]) / 1000d;
+            return new double[] {(lines - oldest[1]) / seconds, (bytesRead.get() - oldest[2]) / seconds};
+        }
+
+        int percentRead() {
+            return bytesTotal <= 0L ? 0 : (int) Math.min(100L, bytesRead.get() * 100 / bytesTotal);
+        }
+
+        long etaSeconds(long now) {
+            if (end != 0L || (bytesTotal > 0L && bytesRead.get() >= bytesTotal)) {
+                return 0L;
+            }
+            double bytesPerSecond = rates(now)[1];
+            if (bytesTotal <= 0L || bytesPerSecond <= 0d) {
+                return -1L;
+            }
+            return (long) ((bytesTotal - bytesRead.get()) / bytesPerSecond);
+        }
+
+        String describe(long now) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(name).append(": ").append(state);
+            if (start != 0L) {
+                sb.append(", read ").append(bytesRead.get()).append(" of ").append(bytesTotal).append(" bytes (")
+                    .append(percentRead()).append("%), ").append(lines).append(" lines");
+                if (end != 0L) {
+                    sb.append(", took ").append((end - start) / 1000).append("s");
+                } else {
+                    sb.append(", ").append(Math.round(rates(now)[0])).append(" rows/sec, ETA ");
+                    long eta = etaSeconds(now);
+                    sb.append(eta < 0L ? "unknown" : eta + "s");
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+}
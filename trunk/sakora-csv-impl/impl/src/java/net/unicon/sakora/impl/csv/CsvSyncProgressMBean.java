@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+/**
+ * JMX view of the progress of the running sync (see {@link CsvSyncProgress}),
+ * registered by {@link CsvSyncServiceImpl} as {@link CsvSyncProgress#OBJECT_NAME}
+ */
+public interface CsvSyncProgressMBean {
+
+    /**
+     * @return true if a sync run is in progress
+     */
+    public boolean isRunning();
+
+    /**
+     * @return the id of the current (or last) run
+     */
+    public String getRunId();
+
+    /**
+     * @return the current handler (null if no handler is running)
+     */
+    public String getCurrentHandler();
+
+    /**
+     * @return the state of the current handler (start, move, read, process, done)
+     */
+    public String getCurrentState();
+
+    /**
+     * @return the seconds since the run started
+     */
+    public long getElapsedSeconds();
+
+    /**
+     * @return the bytes of the current handler's input file read so far
+     */
+    public long getBytesRead();
+
+    /**
+     * @return the size of the current handler's input file
+     */
+    public long getBytesTotal();
+
+    /**
+     * @return the percentage of the current handler's input file read so far
+     */
+    public int getPercentRead();
+
+    /**
+     * @return the input lines processed by the current handler
+     */
+    public long getLinesProcessed();
+
+    /**
+     * @return the input lines processed per second over the sliding window
+     */
+    public double getRowsPerSecond();
+
+    /**
+     * @return the input bytes read per second over the sliding window
+     */
+    public double getBytesPerSecond();
+
+    /**
+     * @return the estimated seconds until the current handler has read its input, -1 if unknown
+     */
+    public long getHandlerEtaSeconds();
+
+    /**
+     * @return the estimated seconds until the run completes, -1 if unknown
+     */
+    public long getRunEtaSeconds();
+
+    /**
+     * @return the estimated completion time of the run, null if unknown
+     */
+    public String getEstimatedCompletion();
+
+    /**
+     * @return the committed batches which are waiting to be processed
+     */
+    public int getQueuedBatches();
+
+    /**
+     * @return the tracking table writes of the current handler which are waiting for the next batch commit
+     */
+    public int getPendingTrackingWrites();
+
+    /**
+     * @return one line per handler of the current run (state, bytes, lines, rows/sec, duration or ETA)
+     */
+    public String[] getHandlers();
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.event.api.UsageSessionService;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+
+/**
+ * The Sakai (admin) session for a sync run. The run is started and ended by the sync service,
+ * the first handler phase on each thread which needs to be logged in sets up the session for that
+ * thread (usage session, realm refresh and login event) and the later phases reuse it,
+ * all the sessions are invalidated once when the run ends.
+ * 
+ * Outside of a run (e.g. a handler used on its own) {@link CsvHandlerBase} logs in and out for every phase.
+ * 
+ * The login and logout events of the run sessions can be turned off with net.unicon.sakora.csv.runSessionEvents
+ * (the events CM and the user directory post for the changes are not affected).
+ */
+public class CsvSyncRunSession {
+
+    private static final Log log = LogFactory.getLog(CsvSyncRunSession.class);
+
+    private static final String ADMIN = "admin";
+
+    private SessionManager sessionManager;
+    private UsageSessionService usageSessionService;
+    private AuthzGroupService authzGroupService;
+    private EventTrackingService eventTrackingService;
+    private ServerConfigurationService configurationService;
+    private boolean runSessionEvents = true;
+
+    // every session set up during the run (one per thread)
+    private final Map<Thread, Session> sessions = new HashMap<Thread, Session>();
+    private volatile boolean running = false;
+    private int reused = 0;
+
+    public void init() {
+        if (configurationService != null) {
+            runSessionEvents = configurationService.getBoolean("net.unicon.sakora.csv.runSessionEvents", runSessionEvents);
+        }
+        if (!runSessionEvents) {
+            log.info("SakoraCSV sync run session login and logout events are disabled");
+        }
+    }
+
+    /**
+     * Starts a run, sessions are only set up when a handler first needs one
+     */
+    public synchronized void begin() {
+        sessions.clear();
+        reused = 0;
+        running = true;
+    }
+
+    /**
+     * @return true if a run is active (handlers should use {@link #enter()} instead of logging in and out)
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Makes sure the current thread is logged in as admin for the run, sets up the session
+     * the first time it is called on a thread
+     */
+    public void enter() {
+        Session current = sessionManager.getCurrentSession();
+        synchronized (this) {
+            if (sessions.get(Thread.currentThread()) == current) {
+                reused++;
+                return;
+            }
+        }
+        current.setUserId(ADMIN);
+        current.setUserEid(ADMIN);
+
+        // establish the user's session
+        usageSessionService.startSession(ADMIN, "127.0.0.1", "SakoraLoader");
+
+        // update the user's externally provided realm definitions
+        authzGroupService.refreshUser(ADMIN);
+
+        // post the login event
+        if (runSessionEvents) {
+            eventTrackingService.post(eventTrackingService.newEvent(UsageSessionService.EVENT_LOGIN, null, true));
+        }
+        synchronized (this) {
+            sessions.put(Thread.currentThread(), current);
+        }
+    }
+
+    /**
+     * Ends the run, invalidates every session which was set up for it
+     */
+    public synchronized void end() {
+        running = false;
+        for (Session session : sessions.values()) {
+            try {
+                // post the logout event while the session is still valid
+                if (runSessionEvents) {
+                    eventTrackingService.post(eventTrackingService.newEvent(UsageSessionService.EVENT_LOGOUT, null, true));
+                }
+                session.invalidate();
+            } catch (Exception e) {
+                log.warn("SakoraCSV unable to invalidate the sync run session: " + e);
+            }
+        }
+        if (log.isInfoEnabled() && !sessions.isEmpty()) {
+            log.info("SakoraCSV sync run used " + sessions.size() + " Sakai session(s), reused " + reused + " times");
+        }
+        sessions.clear();
+    }
+
+    public void setSessionManager(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    public void setUsageSessionService(UsageSessionService usageSessionService) {
+        this.usageSessionService = usageSessionService;
+    }
+
+    public void setAuthzGroupService(AuthzGroupService authzGroupService) {
+        this.authzGroupService = authzGroupService;
+    }
+
+    public void setEventTrackingService(EventTrackingService eventTrackingService) {
+        this.eventTrackingService = eventTrackingService;
+    }
+
+    public void setConfigurationService(ServerConfigurationService configurationService) {
+        this.configurationService = configurationService;
+    }
+
+    /**
+     * @param runSessionEvents false to skip the login and logout events of the run sessions
+     */
+    public void setRunSessionEvents(boolean runSessionEvents) {
+        this.runSessionEvents = runSessionEvents;
+    }
+
+}
@@ -20,18 +20,35 @@ package net.unicon.sakora.impl.csv;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import net.unicon.sakora.api.csv.CsvHandler;
 import net.unicon.sakora.api.csv.CsvSyncContext;
+import net.unicon.sakora.api.csv.CsvSyncMetric;
 import net.unicon.sakora.api.csv.CsvSyncService;
 import net.unicon.sakora.api.csv.model.SakoraLog;
+import net.unicon.sakora.api.csv.model.SakoraRun;
+import net.unicon.sakora.api.csv.model.SakoraRunHandler;
 import net.unicon.sakora.impl.csv.dao.CsvSyncDao;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.genericdao.api.search.Order;
+import org.sakaiproject.genericdao.api.search.Restriction;
+import org.sakaiproject.genericdao.api.search.Search;
 
 /**
  * CSV based CourseManagement Sync service
@@ -65,6 +82,12 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 	 * evaluated as a boolean. Handle nulls as false.
 	 */
 	static final String IS_FINAL_ACTION = CsvSyncService.SYNC_CONTEXT_PROPERTY_KEY_PREFIX + "is-final-action";
+
+	/**
+	 * Sync context properties key. Points to a String representing the path of the
+	 * queued upload batch which is being processed (not set for legacy uploads directly into the upload dir).
+	 */
+	static final String QUEUED_BATCH_DIR = CsvSyncService.SYNC_CONTEXT_PROPERTY_KEY_PREFIX + "queued-batch-dir";
 	
 	/**
 	 * @deprecated please use {@link #BATCH_UPLOAD_DIR_SAKAI_PROPERTY} instead.
@@ -81,6 +104,43 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 	
 	public static final String BATCH_PROCESSING_DIR_BASE_NAME = "sakora-csv-batch";
 
+	// marks a finished batch which was a delta feed, its files are not snapshots so diffMode never diffs against them
+	public static final String DELTA_FEED_MARKER_FILE_NAME = "delta.feed";
+
+	public static final String COMMITTED_BATCHES_ONLY_SAKAI_PROPERTY = "net.unicon.sakora.csv.committedBatchesOnly";
+
+	/**
+	 * Sync context properties key (job parameter). If true then the newest failed batch
+	 * is resumed from its checkpoint instead of processing new batches, removed once used.
+	 */
+	public static final String RESUME = "resume";
+
+	/**
+	 * Sync context properties key (job parameter). Comma separated handler names (e.g. CourseMembership,SectionMembership),
+	 * only these handlers run (a lane), all handlers run if it is not set.
+	 */
+	public static final String HANDLERS = "handlers";
+
+	/**
+	 * The handlers which set the current containers (or create the CM data) a handler uses,
+	 * a handler subset without them checks the current containers in CM instead
+	 */
+	private static final Map<String, String[]> HANDLER_DEPENDENCIES = new HashMap<String, String[]>();
+	static {
+		HANDLER_DEPENDENCIES.put("CourseOffering", new String[] {"AcademicSession", "CourseSet", "CanonicalCourse"});
+		HANDLER_DEPENDENCIES.put("EnrollmentSet", new String[] {"CourseOffering"});
+		HANDLER_DEPENDENCIES.put("Section", new String[] {"CourseOffering", "EnrollmentSet"});
+		HANDLER_DEPENDENCIES.put("SectionMeeting", new String[] {"Section"});
+		HANDLER_DEPENDENCIES.put("CourseMembership", new String[] {"CourseOffering", "Person"});
+		HANDLER_DEPENDENCIES.put("SectionMembership", new String[] {"Section", "Person"});
+	}
+
+	public static final String ARCHIVE_AFTER_SYNC_SAKAI_PROPERTY = "net.unicon.sakora.csv.archiveAfterSync";
+	/**
+	 * Sakai property which turns the JMX sync progress MBean ({@link CsvSyncProgress#OBJECT_NAME}) off (default true)
+	 */
+	public static final String JMX_SAKAI_PROPERTY = "net.unicon.sakora.csv.jmx";
+
 	private CsvAcademicSessionHandler accademicSessionHandler;
 	private CsvCanonicalCourseHandler canonicalCourseHandler;
 	private CsvCourseOfferingHandler courseOfferingHandler;
@@ -97,6 +157,21 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 
 	private boolean cleanupData = true;
 	private String batchUploadDir;
+	private CsvBatchQueue batchQueue;
+	/**
+	 * if true then files copied directly into the batch upload dir are ignored,
+	 * only committed (published with a manifest) upload batches are processed
+	 */
+	private boolean committedBatchesOnly = false;
+	private CsvBatchArchiver batchArchiver;
+	/**
+	 * if true then the old batch dirs are moved into the archive tree at the end of every sync
+	 */
+	private boolean archiveAfterSync = false;
+	private CsvSyncPlanner planner;
+	private CsvSyncRunSession runSession;
+	private ObjectName progressMBeanName;
+	private CsvSyncMetricsExporter metricsExporter;
 
 	private volatile boolean pleaseStop;
 	/*
@@ -132,13 +207,27 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 			return;
 		}
 		
-		try {
-			String isBatchOk = syncContext.getProperties().get(IS_BATCH_OK);
-			if ( isBatchOk != null && !(Boolean.parseBoolean(isBatchOk)) ) {
-				log.warn("Batch marked as being in error, skipping action [" + action + "]");
-				return;
+		if ( commonHandlerService.isCheckpointCompleted(handler.getName()) ) {
+			log.info("SakoraCSV resumed batch, skipping action [" + action + "] which completed before the checkpoint");
+			String isFinalAction = syncContext.getProperties().get(IS_FINAL_ACTION);
+			if ( isFinalAction != null && Boolean.parseBoolean(isFinalAction) ) {
+				markBatchFinished(syncContext);
 			}
-			
+			return;
+		}
+
+		String isBatchOk = syncContext.getProperties().get(IS_BATCH_OK);
+		if ( isBatchOk != null && !(Boolean.parseBoolean(isBatchOk)) ) {
+			// the handler never starts so it is not done either (no stats or run history for it)
+			log.warn("Batch marked as being in error, skipping action [" + action + "]");
+			String isFinalAction = syncContext.getProperties().get(IS_FINAL_ACTION);
+			if ( isFinalAction != null && Boolean.parseBoolean(isFinalAction) ) {
+				markBatchFinished(syncContext);
+			}
+			return;
+		}
+
+		try {
 			if ( pleaseStop ) {
 				throw new IllegalStateException("CSV sync service received a stop request. Abandoning input read. This exception is thrown to ensure proper cleanup of overall batch state.");
 			}
@@ -170,6 +259,7 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 			}
 			commonHandlerService.setCurrentHandlerState(CsvCommonHandlerService.STATE_PROCESS, handler);
 			handler.process(syncContext);
+			commonHandlerService.checkpointCompleted(handler.getName());
 
 			if (cleanupData) {
 				if (log.isDebugEnabled()) {
@@ -181,10 +271,8 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 		} catch ( Exception e ) {
 			// Since batches have snapshot semantics and generally need
 			// to be handled in their entirety, if handling fails
-			// there's probably no sense in retrying that batch unless we
-			// were to write logic to attempt to pick up where we left off.
-			// It's much, much easier to just skip the rest of this batch
-			// and upload a new one.
+			// the rest of this batch is skipped. The batch can be resumed
+			// from its last checkpoint (see RESUME) or a new one uploaded.
 		    commonHandlerService.setCurrentHandlerState(CsvCommonHandlerService.STATE_FAIL, handler);
 			syncContext.getProperties().put(IS_BATCH_OK, "false");
 			String msg = "Failed to process batch at [" + 
@@ -216,26 +304,235 @@ public class CsvSyncServiceImpl implements CsvSyncService {
             dbLog.create(new SakoraLog(this.getClass().toString(), msg));
             throw new IllegalArgumentException(msg);
 	    }
+		String plan = context.getProperties().remove(CsvSyncPlanner.PLAN);
+		if ( plan != null && Boolean.parseBoolean(plan) ) {
+			// dry run, the batch is left in place
+			try {
+				plan(null, context.getProperties());
+			} catch (IOException e) {
+				String msg = "Unable to plan the next batch in [" + batchUploadDir + "]: " + e;
+				log.error(msg, e);
+				dbLog.create(new SakoraLog(this.getClass().toString(), msg));
+			}
+			return;
+		}
+		String resume = context.getProperties().remove(RESUME);
+		if ( resume != null && Boolean.parseBoolean(resume) ) {
+			if ( !startRunning() ) {
+				String msg = "A CSV sync started while this one was starting, the failed batch can be resumed later";
+				log.error(msg);
+				dbLog.create(new SakoraLog(this.getClass().toString(), msg));
+				throw new IllegalArgumentException(msg);
+			}
+			beginRunSession();
+			try {
+				resumeFailedBatch(context);
+			} finally {
+				endRunSession();
+				running = false;
+			}
+			return;
+		}
+		Set<String> laneFiles = null;
+		try {
+			List<CsvHandlerBase> selected = selectHandlers(context.getProperties().get(HANDLERS));
+			if ( selected != null ) {
+				laneFiles = new HashSet<String>();
+				StringBuilder names = new StringBuilder();
+				for ( CsvHandlerBase handler : selected ) {
+					laneFiles.add(handler.getCsvFileName());
+					names.append(names.length() > 0 ? "," : "").append(handler.getName());
+				}
+				// normalized (names and processing order)
+				context.getProperties().put(HANDLERS, names.toString());
+			}
+		} catch (IllegalArgumentException e) {
+			log.error(e.getMessage());
+			dbLog.create(new SakoraLog(this.getClass().toString(), e.getMessage()));
+			throw e;
+		}
 		if ( !(isBatchUploaded()) ) {
 			String msg = "No batch found in upload dir [" + batchUploadDir + "]. Skipping all processing.";
 			log.info(msg);
 			dbLog.create(new SakoraLog(this.getClass().toString(), msg));
 			return;
 		}
-		running = true;
+		if ( !startRunning() ) {
+			String msg = "A CSV sync started while this one was starting, aborting this sync attempt...";
+			log.error(msg);
+			dbLog.create(new SakoraLog(this.getClass().toString(), msg));
+			throw new IllegalArgumentException(msg);
+		}
+		beginRunSession();
+		try {
+		    String lastBatchDir = null;
+		    do {
+		        CsvBatchQueue.QueuedBatch queued = null;
+		        Map<String, String> replaced = new HashMap<String, String>();
+		        try {
+		            queued = batchQueue.next(isDeltaFeed(context), laneFiles);
+		        } catch (IOException e) {
+		            String msg = "Unable to read the queued upload batches in [" + batchUploadDir + "]: " + e;
+		            log.error(msg, e);
+		            dbLog.create(new SakoraLog(this.getClass().toString(), msg));
+		            return;
+		        }
+		        if (queued != null) {
+		            if (queued.getDir().getPath().equals(lastBatchDir)) {
+		                log.error("SakoraCSV queued batch " + queued.getDir().getName() + " was not picked up, stopping queue processing");
+		                return;
+		            }
+		            lastBatchDir = queued.getDir().getPath();
+		            context.getProperties().put(QUEUED_BATCH_DIR, lastBatchDir);
+		            // the overrides from the upload of this batch apply to this run only
+		            try {
+		                for (Entry<String, String> entry : queued.getProperties().entrySet()) {
+		                    replaced.put(entry.getKey(), context.getProperties().get(entry.getKey()));
+		                    context.getProperties().put(entry.getKey(), entry.getValue());
+		                }
+		            } catch (IOException e) {
+		                log.warn("SakoraCSV unable to read the properties of queued batch " + queued.getDir().getName() + ", processing it without overrides: " + e);
+		            }
+		            log.info("SakoraCSV processing queued batch " + queued.getDir().getName());
+		        }
+		        if (queued == null && committedBatchesOnly) {
+		            log.info("SakoraCSV no valid committed batches to process (committedBatchesOnly=true)");
+		            return;
+		        }
+		        if (queued == null && laneFiles != null && !isLaneUploaded(laneFiles)) {
+		            log.info("SakoraCSV no batches to process for handlers " + context.getProperties().get(HANDLERS));
+		            return;
+		        }
+		        try {
+		            syncBatch(context);
+		        } finally {
+		            for (Entry<String, String> entry : replaced.entrySet()) {
+		                if (entry.getValue() == null) {
+		                    context.getProperties().remove(entry.getKey());
+		                } else {
+		                    context.getProperties().put(entry.getKey(), entry.getValue());
+		                }
+		            }
+		            context.getProperties().remove(QUEUED_BATCH_DIR);
+		            if (queued != null && queued.getDir().exists()) {
+		                // never moved for processing (the run failed before the move), take it out of the queue
+		                File failed = new File(queued.getDir().getParentFile(), queued.getDir().getName() + FAILED_BATCH_PROCESSING_DIR_SUFFIX);
+		                if (!queued.getDir().renameTo(failed)) {
+		                    log.error("SakoraCSV unable to remove failed batch " + queued.getDir() + " from the queue");
+		                }
+		            }
+		        }
+		        // keep going while there are more committed batches in the queue
+		    } while (!pleaseStop && batchQueue.hasCommitted());
+		} finally {
+		    if (archiveAfterSync) {
+		        try {
+		            batchArchiver.archive();
+		        } catch (Exception e) {
+		            log.error("SakoraCSV failed to archive old batch dirs in [" + batchUploadDir + "]: " + e, e);
+		        }
+		    }
+		    endRunSession();
+		    running = false;
+		}
+	}
+
+	/**
+	 * Continues the newest failed batch from its checkpoint
+	 */
+	private void resumeFailedBatch(CsvSyncContext context) {
+		File failed = findResumableBatch(batchUploadDir);
+		if ( failed == null ) {
+			String msg = "No failed batch with a checkpoint to resume in [" + batchUploadDir + "] (the batches processed after a failed batch replace it). Skipping all processing.";
+			log.warn(msg);
+			dbLog.create(new SakoraLog(this.getClass().toString(), msg));
+			return;
+		}
+		CsvSyncCheckpoint checkpoint;
+		try {
+			checkpoint = CsvSyncCheckpoint.load(failed);
+		} catch (IOException e) {
+			String msg = "Unable to read the checkpoint of failed batch [" + failed + "]: " + e;
+			log.error(msg, e);
+			dbLog.create(new SakoraLog(this.getClass().toString(), msg));
+			return;
+		}
+		String name = failed.getName();
+		File batchDir = new File(failed.getParentFile(), name.substring(0, name.length() - FAILED_BATCH_PROCESSING_DIR_SUFFIX.length()));
+		if ( !(failed.renameTo(batchDir)) ) {
+			String msg = "Unable to rename failed batch [" + failed + "] to [" + batchDir + "] to resume it";
+			log.error(msg);
+			dbLog.create(new SakoraLog(this.getClass().toString(), msg));
+			return;
+		}
+		// temp copies of the input left by the failed handler are created again
+		File[] files = batchDir.listFiles();
+		if ( files != null ) {
+			for ( File file : files ) {
+				if ( file.getName().endsWith(CsvFileSorter.SORTED_SUFFIX) || file.getName().endsWith(CsvFileDiffer.DELTA_SUFFIX) ) {
+					file.delete();
+				}
+			}
+		}
+		String msg = "Resuming failed batch [" + batchDir + "] from checkpoint: " + checkpoint;
+		log.info(msg);
+		dbLog.create(new SakoraLog(this.getClass().toString(), msg));
+		// the overrides of the failed run apply to this run only
+		Map<String, String> replaced = new HashMap<String, String>();
+		for ( Entry<String, String> entry : checkpoint.getContextProperties().entrySet() ) {
+			replaced.put(entry.getKey(), context.getProperties().get(entry.getKey()));
+			context.getProperties().put(entry.getKey(), entry.getValue());
+		}
+		context.getProperties().put(BATCH_UPLOAD_DIR, batchUploadDir);
+		context.getProperties().put(BATCH_PROCESSING_DIR, batchDir.getPath());
+		try {
+			syncBatch(context, checkpoint);
+		} finally {
+			for ( Entry<String, String> entry : replaced.entrySet() ) {
+				if ( entry.getValue() == null ) {
+					context.getProperties().remove(entry.getKey());
+				} else {
+					context.getProperties().put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Process a single batch with all the handlers
+	 */
+	private void syncBatch(CsvSyncContext context) {
+		syncBatch(context, null);
+	}
+
+	/**
+	 * Process a single batch with all the handlers
+	 * 
+	 * @param checkpoint the checkpoint to continue from (resuming a failed batch) OR null
+	 */
+	private void syncBatch(CsvSyncContext context, CsvSyncCheckpoint checkpoint) {
 		commonHandlerService.initRun(context);
+		if ( checkpoint != null ) {
+			commonHandlerService.resumeRun(checkpoint);
+		}
 		try {
-    		handleAction(accademicSessionHandler, "Sessions", context);
-    		handleAction(courseSetHandler, "Course Sets", context);
-    		handleAction(canonicalCourseHandler, "Canonical Courses", context);
-    		handleAction(courseOfferingHandler, "Course Offerings", context);
-    		handleAction(enrollmentSetHandler, "Enrollment Sets", context);
-    		handleAction(sectionHandler, "Sections", context);
-    		handleAction(sectionMeetingHandler, "Section Meetings", context);
-    		handleAction(personHandler, "Users", context);
-    		handleAction(courseMembershipHandler, "Course Membership", context);
-    		context.getProperties().put(IS_FINAL_ACTION, "true");
-    		handleAction(sectionMembershipHandler, "Section Membership", context);
+			CsvHandlerBase[] handlers = getHandlers();
+			int last = -1;
+			for ( int i = 0; i < handlers.length; i++ ) {
+				if ( handlers[i] != null && commonHandlerService.isHandlerSelected(handlers[i].getName()) ) {
+					last = i;
+					commonHandlerService.getProgress().handlerPlanned(handlers[i].getName(), handlers[i].getCsvFileName());
+				}
+			}
+			for ( int i = 0; i < handlers.length; i++ ) {
+				if ( handlers[i] != null && !commonHandlerService.isHandlerSelected(handlers[i].getName()) ) {
+					continue;
+				}
+				if ( i == last ) {
+					context.getProperties().put(IS_FINAL_ACTION, "true");
+				}
+				handleAction(handlers[i], HANDLER_ACTIONS[i], context);
+			}
 		} finally {
 		    boolean success = true;
 		    String isBatchOk = context.getProperties().get(IS_BATCH_OK);
@@ -243,10 +540,216 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 		        success = false;
 		    }
 		    commonHandlerService.completeRun(success);
-		    running = false;
+		}
+	}
+
+	private static final String[] HANDLER_ACTIONS = {"Sessions", "Course Sets", "Canonical Courses", "Course Offerings",
+		"Enrollment Sets", "Sections", "Section Meetings", "Users", "Course Membership", "Section Membership"};
+
+	/**
+	 * @return all the handlers in processing order (matches {@link #HANDLER_ACTIONS}), null if a handler is not configured
+	 */
+	private CsvHandlerBase[] getHandlers() {
+		return new CsvHandlerBase[] { accademicSessionHandler, courseSetHandler, canonicalCourseHandler, courseOfferingHandler,
+				enrollmentSetHandler, sectionHandler, sectionMeetingHandler, personHandler, courseMembershipHandler, sectionMembershipHandler };
+	}
+
+	/**
+	 * Validates a handler selection (see {@link #HANDLERS}), the names are not case sensitive,
+	 * the dependencies which are not selected are logged (their current containers are checked in CM)
+	 * 
+	 * @param handlerNames comma separated handler names OR null/empty for all handlers
+	 * @return the selected handlers in processing order OR null if all handlers run
+	 * @throws IllegalArgumentException if a name does not match a configured handler
+	 */
+	List<CsvHandlerBase> selectHandlers(String handlerNames) {
+		if ( handlerNames == null || handlerNames.trim().length() == 0 ) {
+			return null;
+		}
+		Map<String, CsvHandlerBase> byName = new HashMap<String, CsvHandlerBase>();
+		for ( CsvHandlerBase handler : getHandlers() ) {
+			if ( handler != null ) {
+				byName.put(handler.getName().toLowerCase(), handler);
+			}
+		}
+		Set<CsvHandlerBase> selected = new HashSet<CsvHandlerBase>();
+		Set<String> selectedNames = new HashSet<String>();
+		for ( String name : handlerNames.split(",") ) {
+			name = name.trim();
+			if ( name.length() == 0 ) {
+				continue;
+			}
+			CsvHandlerBase handler = byName.get(name.toLowerCase());
+			if ( handler == null ) {
+				throw new IllegalArgumentException("Invalid " + HANDLERS + " [" + handlerNames + "], unknown handler [" + name 
+						+ "] (valid handlers: AcademicSession, CourseSet, CanonicalCourse, CourseOffering, EnrollmentSet, Section, "
+						+ "SectionMeeting, Person, CourseMembership, SectionMembership), aborting this sync attempt...");
+			}
+			selected.add(handler);
+			selectedNames.add(handler.getName());
+		}
+		if ( selected.isEmpty() ) {
+			return null;
+		}
+		List<CsvHandlerBase> ordered = new ArrayList<CsvHandlerBase>();
+		for ( CsvHandlerBase handler : getHandlers() ) {
+			if ( handler != null && selected.contains(handler) ) {
+				ordered.add(handler);
+				String[] dependencies = HANDLER_DEPENDENCIES.get(handler.getName());
+				if ( dependencies != null ) {
+					for ( String dependency : dependencies ) {
+						if ( !selectedNames.contains(dependency) ) {
+							log.info("SakoraCSV handler " + handler.getName() + " runs without " + dependency 
+									+ ", its data must already be in CM (the current containers are checked in CM)");
+						}
+					}
+				}
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * @return true if batches without their own deltaFeed setting are delta feeds (job override or config)
+	 */
+	private boolean isDeltaFeed(CsvSyncContext context) {
+		String deltaFeed = context.getProperties().get(CsvBatchQueue.DELTA_FEED_PROPERTY);
+		return deltaFeed == null ? commonHandlerService.isDeltaFeed() : Boolean.parseBoolean(deltaFeed);
+	}
+
+	public String createUploadBatch() throws IOException {
+		return batchQueue.create().getPath();
+	}
+
+	public void commitUploadBatch(String uploadBatchDir, Map<String, String> properties) throws IOException {
+		File published = batchQueue.commit(new File(uploadBatchDir), properties);
+		if ( metricsExporter != null ) {
+			metricsExporter.uploadCommitted(published);
 		}
 	}
 	
+	public void discardUploadBatch(String uploadBatchDir) throws IOException {
+		batchQueue.discard(new File(uploadBatchDir));
+	}
+
+	public String plan(String batchDir, Map<String, String> properties) throws IOException {
+		Map<String, String> planProperties = new HashMap<String, String>();
+		if ( properties != null ) {
+			planProperties.putAll(properties);
+		}
+		File dir;
+		if ( batchDir != null ) {
+			dir = new File(batchDir);
+		} else {
+			// the head of the queue (no coalescing) OR the files copied directly into the upload dir
+			List<CsvBatchQueue.QueuedBatch> committed = batchQueue.getCommitted();
+			if ( !committed.isEmpty() ) {
+				dir = committed.get(0).getDir();
+				// the overrides stored with the batch apply to its run
+				planProperties.putAll(committed.get(0).getProperties());
+			} else if ( committedBatchesOnly ) {
+				return "SakoraCSV plan: no committed batches to plan (committedBatchesOnly=true)";
+			} else {
+				dir = new File(batchUploadDir);
+			}
+		}
+		if ( !dir.isDirectory() ) {
+			throw new IOException("Batch dir [" + dir + "] does not exist");
+		}
+		List<CsvHandlerBase> handlers = selectHandlers(planProperties.get(HANDLERS));
+		if ( handlers == null ) {
+			handlers = new ArrayList<CsvHandlerBase>();
+			for (CsvHandlerBase handler : getHandlers()) {
+				if ( handler != null ) {
+					handlers.add(handler);
+				}
+			}
+		}
+		// the plan pages through the tracking tables, a sync changing them at the same time would make the pages skip or repeat rows
+		if ( !startRunning() ) {
+			throw new IOException("A CSV sync is running (" + commonHandlerService.getCurrentSyncState()
+					+ "), the batch can be planned once it is done");
+		}
+		CsvSyncPlanner.Plan result;
+		try {
+			result = planner.plan(dir, handlers, planProperties);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Planning batch [" + dir + "] was interrupted");
+		} finally {
+			running = false;
+		}
+		String report = result.toString();
+		log.info(report);
+		dbLog.create(new SakoraLog(this.getClass().toString(), "Planned batch [" + dir.getName() + "] (nothing was changed)"));
+		for (CsvSyncPlanner.HandlerPlan handlerPlan : result.getHandlers()) {
+			dbLog.create(new SakoraLog(this.getClass().toString(), "Plan " + handlerPlan));
+		}
+		for (String warning : result.getWarnings()) {
+			log.warn("SakoraCSV plan: " + warning);
+			dbLog.create(new SakoraLog(this.getClass().toString(), "Plan WARNING " + warning));
+		}
+		return report;
+	}
+
+	/**
+	 * @param laneFiles the feed files of the selected handlers
+	 * @return true if there are files directly in the upload dir and they are all for the selected handlers
+	 */
+	private boolean isLaneUploaded(Set<String> laneFiles) {
+		File[] files = new File(batchUploadDir).listFiles();
+		boolean found = false;
+		if ( files != null ) {
+			for ( File file : files ) {
+				if ( file.isDirectory() ) {
+					continue;
+				}
+				if ( !laneFiles.contains(file.getName()) ) {
+					log.info("SakoraCSV upload dir has file " + file.getName() + " which is not processed by handlers " 
+							+ laneFiles + ", leaving the upload for a full run");
+					return false;
+				}
+				found = true;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Starts the Sakai session for the run (shared by all the handler phases)
+	 */
+	private void beginRunSession() {
+		if ( runSession != null ) {
+			runSession.begin();
+		}
+	}
+
+	/**
+	 * Invalidates the Sakai session(s) of the run, only once the whole run is done
+	 */
+	private void endRunSession() {
+		if ( runSession != null ) {
+			try {
+				runSession.end();
+			} catch (Exception e) {
+				log.error("SakoraCSV failed to end the sync run session: " + e, e);
+			}
+		}
+	}
+
+	/**
+	 * Takes the run lock, only one sync (full run or lane) can run at once
+	 * 
+	 * @return true if this sync can run, false if another sync is already running
+	 */
+	private synchronized boolean startRunning() {
+		if ( running ) {
+			return false;
+		}
+		running = true;
+		return true;
+	}
+
 	private boolean isBatchUploaded() {
 		File dir = new File(batchUploadDir);
 		if ( !(dir.exists()) ) {
@@ -263,14 +766,19 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 			}
 			return false;
 		}
-		for ( File file : dir.listFiles() ) {
-			if ( !(file.isDirectory()) ) {
-				return true;
+		if ( !(committedBatchesOnly) ) {
+			for ( File file : dir.listFiles() ) {
+				if ( !(file.isDirectory()) ) {
+					return true;
+				}
 			}
 		}
+		if ( batchQueue.hasCommitted() ) {
+			return true;
+		}
 		if ( log.isDebugEnabled() ) {
 			log.debug("Either no files in configured batch upload dir [" + batchUploadDir + 
-					"] or all files therein are directories, so no new batch has been uploaded.");
+					"] or all files therein are directories (and no committed upload batches), so no new batch has been uploaded.");
 		}
 		return false;
 	}
@@ -346,11 +854,69 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 	}
 	
 
+	public List<SakoraRun> getRunHistory(Date since, int max) {
+		Search search = new Search();
+		if ( since != null ) {
+			search.addRestriction(new Restriction("startTime", since, Restriction.GREATER_EQUALS));
+		}
+		search.addOrder(new Order("startTime", false));
+		if ( max > 0 ) {
+			search.setLimit(max);
+		}
+		return dbLog.findBySearch(SakoraRun.class, search);
+	}
+
+	public List<SakoraRunHandler> getRunHandlerHistory(String handler, Date since, int max) {
+		Search search = new Search();
+		if ( handler != null ) {
+			search.addRestriction(new Restriction("handler", handler, Restriction.EQUALS));
+		}
+		if ( since != null ) {
+			search.addRestriction(new Restriction("startTime", since, Restriction.GREATER_EQUALS));
+		}
+		search.addOrder(new Order("startTime", false));
+		if ( max > 0 ) {
+			search.setLimit(max);
+		}
+		return dbLog.findBySearch(SakoraRunHandler.class, search);
+	}
+
+	public List<CsvSyncMetric> getMetrics() {
+		return metricsExporter.getMetrics(batchQueue.getCommitted().size());
+	}
+
+	public List<SakoraRunHandler> getRunHandlers(long runId) {
+		Search search = new Search("runId", runId);
+		search.addOrder(new Order("id"));
+		return dbLog.findBySearch(SakoraRunHandler.class, search);
+	}
+
 	/**
 	 * Post-DI initialization
 	 */
 	public void init() {
 		initBatchUploadDir();
+		batchQueue = new CsvBatchQueue(batchUploadDir);
+		committedBatchesOnly = configurationService.getBoolean(COMMITTED_BATCHES_ONLY_SAKAI_PROPERTY, committedBatchesOnly);
+		log.info("SakoraCSV committedBatchesOnly="+committedBatchesOnly);
+		batchArchiver = new CsvBatchArchiver(batchUploadDir);
+		batchArchiver.setKeepFinished(configurationService.getInt("net.unicon.sakora.csv.archiveKeepFinished", batchArchiver.getKeepFinished()));
+		batchArchiver.setAbandonedStagingHours(configurationService.getInt("net.unicon.sakora.csv.archiveAbandonedStagingHours", batchArchiver.getAbandonedStagingHours()));
+		batchArchiver.setRetentionDays(configurationService.getInt("net.unicon.sakora.csv.archiveRetentionDays", batchArchiver.getRetentionDays()));
+		archiveAfterSync = configurationService.getBoolean(ARCHIVE_AFTER_SYNC_SAKAI_PROPERTY, archiveAfterSync);
+		planner = new CsvSyncPlanner(commonHandlerService, dbLog);
+		int planThreads = configurationService.getInt("net.unicon.sakora.csv.planThreads", 4);
+		int planRemovalWarnPercent = configurationService.getInt("net.unicon.sakora.csv.planRemovalWarnPercent", 10);
+		planner.setThreads(planThreads);
+		planner.setRemovalWarnPercent(planRemovalWarnPercent);
+		log.info("SakoraCSV planThreads="+planThreads+", planRemovalWarnPercent="+planRemovalWarnPercent);
+		log.info("SakoraCSV archiveAfterSync="+archiveAfterSync+" (keep finished="+batchArchiver.getKeepFinished()
+				+", abandoned staging hours="+batchArchiver.getAbandonedStagingHours()+", retention days="+batchArchiver.getRetentionDays()+")");
+		commonHandlerService.getProgress().setBatchQueue(batchQueue);
+		metricsExporter = new CsvSyncMetricsExporter(commonHandlerService, dbLog);
+		if ( configurationService.getBoolean(JMX_SAKAI_PROPERTY, true) ) {
+			registerProgressMBean();
+		}
 	}
 	
 	/**
@@ -358,6 +924,41 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 	 */
 	public void destroy() {
 		pleaseStop = true;
+		unregisterProgressMBean();
+	}
+
+	/**
+	 * Registers the live sync progress ({@link CsvSyncProgress}) with the platform MBean server,
+	 * replaces the MBean left by an earlier deployment
+	 */
+	private void registerProgressMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(CsvSyncProgress.OBJECT_NAME);
+			if ( server.isRegistered(name) ) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(commonHandlerService.getProgress(), name);
+			progressMBeanName = name;
+			log.info("SakoraCSV sync progress is available over JMX as "+name);
+		} catch ( Exception e ) {
+			log.warn("SakoraCSV unable to register the sync progress MBean ("+CsvSyncProgress.OBJECT_NAME+"): "+e, e);
+		}
+	}
+
+	private void unregisterProgressMBean() {
+		if ( progressMBeanName == null ) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if ( server.isRegistered(progressMBeanName) ) {
+				server.unregisterMBean(progressMBeanName);
+			}
+		} catch ( Exception e ) {
+			log.warn("SakoraCSV unable to unregister the sync progress MBean ("+progressMBeanName+"): "+e);
+		}
+		progressMBeanName = null;
 	}
 	
 	/**
@@ -424,16 +1025,21 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 		if ( !(syncContext.getProperties().containsKey(BATCH_PROCESSING_DIR)) ) {
 			syncContext.getProperties().put(BATCH_PROCESSING_DIR, nextBatchProcessingDir());
 		}
+		// queued batches are moved from their own upload dir (legacy uploads are directly in the upload dir)
+		String queuedBatchDir = syncContext.getProperties().get(QUEUED_BATCH_DIR);
+		String fromDir = queuedBatchDir != null ? queuedBatchDir : syncContext.getProperties().get(BATCH_UPLOAD_DIR);
 		try {
 			if ( log.isInfoEnabled() ) {
-				log.info("SakoraCSV Moving batch from [" + syncContext.getProperties().get(BATCH_UPLOAD_DIR) + 
+				log.info("SakoraCSV Moving batch from [" + fromDir + 
 						"] to [" + syncContext.getProperties().get(BATCH_PROCESSING_DIR) + "]");
 			}
-			moveFiles(syncContext.getProperties().get(BATCH_UPLOAD_DIR),
-				syncContext.getProperties().get(BATCH_PROCESSING_DIR));
+			moveFiles(fromDir, syncContext.getProperties().get(BATCH_PROCESSING_DIR));
+			if ( queuedBatchDir != null && !(new File(queuedBatchDir).delete()) ) {
+				log.warn("Failed to remove the emptied queued batch directory [" + queuedBatchDir + "]");
+			}
 		} catch ( IOException e ) {
-			if ( !(deleteFilesInDir((String)syncContext.getProperties().get(BATCH_UPLOAD_DIR))) ) {
-				log.error("Failed to empty batch upload directory [" + syncContext.getProperties().get(BATCH_UPLOAD_DIR) + 
+			if ( !(deleteFilesInDir(fromDir)) ) {
+				log.error("Failed to empty batch upload directory [" + fromDir + 
 						"]. Probably not a serious problem in and of itself, but does probably indicate some sort of fundamentally misconfigured file system or JVM process");
 			}
 			if ( !(deleteFilesInDir((String)syncContext.getProperties().get(BATCH_PROCESSING_DIR))) ) {
@@ -463,6 +1069,106 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 		throw new IOException("Unable to create a batch processing directory after several tries.");
 	}
 
+	/**
+	 * Finds the given feed file in the most recent finished batch processing dir,
+	 * failed batches are skipped since their data may not have been applied.
+	 * Delta feed batches are not snapshots, if one with this file finished after the newest snapshot
+	 * then that snapshot no longer matches CM and there is nothing to diff against.
+	 * 
+	 * @param batchUploadDir the batch upload dir (which contains the batch processing dirs)
+	 * @param fileName the name of the feed file (e.g. sectionMembership.csv)
+	 * @return the file from the newest finished batch which contains it OR null if there is none
+	 */
+	static File findPreviousBatchFile(String batchUploadDir, String fileName) {
+		if ( batchUploadDir == null || fileName == null ) {
+			return null;
+		}
+		File[] dirs = new File(batchUploadDir).listFiles();
+		if ( dirs == null ) {
+			return null;
+		}
+		String prefix = BATCH_PROCESSING_DIR_BASE_NAME + "-";
+		File previous = null;
+		long previousTime = -1;
+		long deltaTime = -1;
+		for (File dir : dirs) {
+			String name = dir.getName();
+			if ( !dir.isDirectory() || !name.startsWith(prefix) || !name.endsWith(FINISHED_BATCH_PROCESSING_DIR_SUFFIX) ) {
+				continue;
+			}
+			long batchTime;
+			try {
+				batchTime = Long.parseLong(name.substring(prefix.length(), name.length() - FINISHED_BATCH_PROCESSING_DIR_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			File file = new File(dir, fileName);
+			if ( !file.isFile() ) {
+				continue;
+			}
+			if ( new File(dir, DELTA_FEED_MARKER_FILE_NAME).exists() ) {
+				deltaTime = Math.max(deltaTime, batchTime);
+			} else if ( batchTime > previousTime ) {
+				previous = file;
+				previousTime = batchTime;
+			}
+		}
+		if ( previous != null && deltaTime > previousTime ) {
+			log.info("SakoraCSV diffMode: a delta feed with " + fileName + " was applied after the newest snapshot of it ["
+					+ previous.getParentFile().getName() + "], it cannot be diffed");
+			return null;
+		}
+		return previous;
+	}
+
+	/**
+	 * Finds the failed batch which can be resumed, only the newest failed batch with a checkpoint
+	 * and only if no batch has finished since (resuming would apply older data over it)
+	 * 
+	 * @param batchUploadDir the batch upload dir (which contains the batch processing dirs)
+	 * @return the failed batch processing dir OR null if there is none to resume
+	 */
+	static File findResumableBatch(String batchUploadDir) {
+		if ( batchUploadDir == null ) {
+			return null;
+		}
+		File[] dirs = new File(batchUploadDir).listFiles();
+		if ( dirs == null ) {
+			return null;
+		}
+		String prefix = BATCH_PROCESSING_DIR_BASE_NAME + "-";
+		File failed = null;
+		long failedTime = -1;
+		long finishedTime = -1;
+		for (File dir : dirs) {
+			String name = dir.getName();
+			if ( !dir.isDirectory() || !name.startsWith(prefix) ) {
+				continue;
+			}
+			boolean isFinished = name.endsWith(FINISHED_BATCH_PROCESSING_DIR_SUFFIX);
+			if ( !isFinished && !name.endsWith(FAILED_BATCH_PROCESSING_DIR_SUFFIX) ) {
+				continue;
+			}
+			String suffix = isFinished ? FINISHED_BATCH_PROCESSING_DIR_SUFFIX : FAILED_BATCH_PROCESSING_DIR_SUFFIX;
+			long batchTime;
+			try {
+				batchTime = Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if ( isFinished ) {
+				finishedTime = Math.max(finishedTime, batchTime);
+			} else if ( batchTime > failedTime ) {
+				failed = dir;
+				failedTime = batchTime;
+			}
+		}
+		if ( failed == null || failedTime < finishedTime || !CsvSyncCheckpoint.exists(failed) ) {
+			return null;
+		}
+		return failed;
+	}
+
 	private void markBatchFinished(CsvSyncContext syncContext) {
 		try {
 			closeBatchProcessingPath(syncContext);
@@ -506,6 +1212,14 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 		String newName = batchProcessingDir.getName() + 
 			(isBatchOk ? FINISHED_BATCH_PROCESSING_DIR_SUFFIX : FAILED_BATCH_PROCESSING_DIR_SUFFIX);
 		File newPath = new File(batchProcessingDir.getParentFile(), newName);
+		if ( isBatchOk ) {
+			// only failed batches can be resumed
+			CsvSyncCheckpoint.remove(batchProcessingDir);
+			if ( commonHandlerService.deltaFeed() ) {
+				// the files are not snapshots (see findPreviousBatchFile)
+				new File(batchProcessingDir, DELTA_FEED_MARKER_FILE_NAME).createNewFile();
+			}
+		}
 		if ( !(batchProcessingDir.renameTo(newPath)) ) {
 			throw new IOException("Unable to rename batch processing dir at [" + batchProcessingPath + "] to [" + newPath + "]");
 		}
@@ -519,6 +1233,22 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 		this.cleanupData = cleanupData;
 	}
 
+	public boolean isCommittedBatchesOnly() {
+		return committedBatchesOnly;
+	}
+
+	public CsvBatchQueue getBatchQueue() {
+		return batchQueue;
+	}
+
+	public CsvBatchArchiver getBatchArchiver() {
+		return batchArchiver;
+	}
+
+	public void setCommittedBatchesOnly(boolean committedBatchesOnly) {
+		this.committedBatchesOnly = committedBatchesOnly;
+	}
+
 	public CsvMembershipHandler getCourseMembershipHandler() {
 		return courseMembershipHandler;
 	}
@@ -634,6 +1364,13 @@ public class CsvSyncServiceImpl implements CsvSyncService {
 		this.dbLog = dbLog;
 	}
 
+    /**
+     * Optional, if not set then the handlers log in and out of Sakai for every phase (legacy)
+     */
+    public void setRunSession(CsvSyncRunSession runSession) {
+        this.runSession = runSession;
+    }
+
     public void setCommonHandlerService(CsvCommonHandlerService commonHandlerService) {
         this.commonHandlerService = commonHandlerService;
     }
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Profiling context for a sync run, the equivalent of custom flight recorder events which works on any JVM:
+ * <ul>
+ * <li>the sync thread is renamed for each handler phase (e.g. "... [sakora 3:1300000000 Person read]") so the
+ * CPU and allocation samples of any profiler (JFR, async-profiler, thread dumps) carry the handler context</li>
+ * <li>run and phase events (with their durations) are logged at debug level in this log category,
+ * turn on debug logging for net.unicon.sakora.impl.csv.CsvSyncTrace to record them</li>
+ * <li>rows which take longer than slowRowMillis are logged (warn) with the handler, the row key (EID)
+ * and the time spent in each phase of the row (validation, CM, user directory, tracking writes)</li>
+ * </ul>
+ * Only the phase transitions rename the thread, nothing is done per row unless slow row tracing is on.
+ */
+public class CsvSyncTrace {
+
+    static final Log log = LogFactory.getLog(CsvSyncTrace.class);
+
+    private boolean threadNames = true;
+    private long slowRowMillis = 1000L;
+    private int maxSlowRows = 100;
+
+    private volatile Thread runThread = null;
+    private volatile String runThreadName = null;
+    private volatile String runId = null;
+    private volatile long runStart = 0L;
+    private volatile String phaseHandler = null;
+    private volatile String phase = null;
+    private volatile long phaseStart = 0L;
+    private volatile int slowRows = 0;
+
+    /**
+     * @param runId the sync run id
+     */
+    public void runStarted(String runId) {
+        this.runId = runId;
+        this.runStart = System.nanoTime();
+        this.phaseHandler = null;
+        this.phase = null;
+        this.runThread = Thread.currentThread();
+        this.runThreadName = runThread.getName();
+        if (log.isDebugEnabled()) {
+            log.debug("SakoraCSV trace event=run.start run=" + runId + " thread=" + runThreadName);
+        }
+        rename(null, null);
+    }
+
+    /**
+     * A handler phase transition (see {@link CsvCommonHandlerService#setCurrentHandlerState(String, net.unicon.sakora.api.csv.CsvHandler)})
+     * 
+     * @param handler the handler name
+     * @param state the new state
+     */
+    public void handlerState(String handler, String state) {
+        long now = System.nanoTime();
+        if (phase != null && log.isDebugEnabled()) {
+            log.debug("SakoraCSV trace event=phase run=" + runId + " handler=" + phaseHandler + " phase=" + phase
+                    + " ms=" + ((now - phaseStart) / 1000000L));
+        }
+        if (CsvCommonHandlerService.STATE_START.equals(state)) {
+            slowRows = 0;
+        }
+        if (CsvCommonHandlerService.STATE_DONE.equals(state)) {
+            if (slowRows > maxSlowRows) {
+                log.warn("SakoraCSV handler " + handler + " had " + slowRows + " slow rows (over " + slowRowMillis
+                        + " ms), only the first " + maxSlowRows + " were logged");
+            }
+            phaseHandler = null;
+            phase = null;
+            rename(null, null);
+        } else {
+            phaseHandler = handler;
+            phase = state;
+            phaseStart = now;
+            rename(handler, state);
+        }
+    }
+
+    /**
+     * @param success true if the run completed
+     */
+    public void runDone(boolean success) {
+        if (log.isDebugEnabled()) {
+            log.debug("SakoraCSV trace event=run.end run=" + runId + " success=" + success
+                    + " ms=" + ((System.nanoTime() - runStart) / 1000000L));
+        }
+        Thread thread = runThread;
+        if (threadNames && thread == Thread.currentThread() && runThreadName != null) {
+            thread.setName(runThreadName);
+        }
+        runThread = null;
+        runThreadName = null;
+    }
+
+    /**
+     * @return true if the rows should be timed (slow row tracing is on)
+     */
+    public boolean isRowTracing() {
+        return slowRowMillis > 0L;
+    }
+
+    /**
+     * @param nanos the time a row took
+     * @return true if the row is slow (took at least slowRowMillis)
+     */
+    public boolean isSlow(long nanos) {
+        return slowRowMillis > 0L && nanos >= slowRowMillis * 1000000L;
+    }
+
+    /**
+     * Logs the row if it took longer than slowRowMillis
+     * 
+     * @param handler the handler name
+     * @param key the row key (EID)
+     * @param nanos the time the row took
+     * @param breakdown the time spent in each phase of the row (nanos), may be null
+     */
+    public void row(String handler, String key, long nanos, Map<String, Long> breakdown) {
+        if (!isSlow(nanos)) {
+            return;
+        }
+        if (++slowRows > maxSlowRows) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("SakoraCSV slow row: handler=").append(handler).append(" eid=").append(key)
+            .append(" ms=").append(nanos / 1000000L);
+        if (breakdown != null) {
+            for (Map.Entry<String, Long> entry : breakdown.entrySet()) {
+                sb.append(' ').append(entry.getKey().replace(' ', '_')).append("_ms=")
+                    .append(String.format("%.1f", entry.getValue() / 1000000d));
+            }
+        }
+        log.warn(sb.toString());
+    }
+
+    private void rename(String handler, String state) {
+        Thread thread = runThread;
+        if (!threadNames || thread != Thread.currentThread() || runThreadName == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(runThreadName);
+        sb.append(" [sakora ").append(runId);
+        if (handler != null) {
+            sb.append(' ').append(handler).append(' ').append(state);
+        }
+        sb.append(']');
+        thread.setName(sb.toString());
+    }
+
+    public boolean isThreadNames() {
+        return threadNames;
+    }
+
+    public void setThreadNames(boolean threadNames) {
+        this.threadNames = threadNames;
+    }
+
+    public long getSlowRowMillis() {
+        return slowRowMillis;
+    }
+
+    public void setSlowRowMillis(long slowRowMillis) {
+        this.slowRowMillis = slowRowMillis;
+    }
+
+    public int getMaxSlowRows() {
+        return maxSlowRows;
+    }
+
+    public void setMaxSlowRows(int maxSlowRows) {
+        this.maxSlowRows = maxSlowRows;
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per thread CPU time and allocated bytes (ThreadMXBean) for the handlers (see {@link CsvHandlerBase#getStats()}).
+ * 
+ * The allocated bytes are only available on JVMs with com.sun.management.ThreadMXBean (HotSpot), that
+ * interface is used by reflection so other JVMs just report -1 (unsupported) instead of failing.
+ * A worker thread which does work for a handler takes a {@link #snapshot()} when it starts and adds its
+ * usage to the handler with {@link Usage#addSince(long[])} when it is done.
+ */
+public class CsvThreadAccounting {
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final Method allocatedBytesMethod;
+    private static final boolean cpuSupported;
+
+    static {
+        boolean cpu = false;
+        try {
+            cpu = threadBean.isCurrentThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+        } catch (UnsupportedOperationException e) {
+            cpu = false;
+        }
+        cpuSupported = cpu;
+        Method allocated = null;
+        try {
+            Class<?> sunBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (sunBean.isInstance(threadBean)
+                    && (Boolean) sunBean.getMethod("isThreadAllocatedMemorySupported").invoke(threadBean)
+                    && (Boolean) sunBean.getMethod("isThreadAllocatedMemoryEnabled").invoke(threadBean)) {
+                allocated = sunBean.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (Exception e) {
+            // not a HotSpot JVM (or it is turned off), allocations are not measured
+            allocated = null;
+        }
+        allocatedBytesMethod = allocated;
+    }
+
+    /**
+     * @return true if the CPU time of the threads is measured
+     */
+    public static boolean isCpuSupported() {
+        return cpuSupported;
+    }
+
+    /**
+     * @return true if the bytes allocated by the threads are measured
+     */
+    public static boolean isAllocationSupported() {
+        return allocatedBytesMethod != null;
+    }
+
+    /**
+     * @return the CPU time (nanos) and allocated bytes of the current thread so far, -1 for the ones which are not measured
+     */
+    public static long[] snapshot() {
+        long cpu = cpuSupported ? threadBean.getCurrentThreadCpuTime() : -1L;
+        long allocated = -1L;
+        if (allocatedBytesMethod != null) {
+            try {
+                allocated = (Long) allocatedBytesMethod.invoke(threadBean, Thread.currentThread().getId());
+            } catch (Exception e) {
+                allocated = -1L;
+            }
+        }
+        return new long[] {cpu, allocated};
+    }
+
+    /**
+     * The CPU time and allocated bytes of a handler (its own thread and any worker threads)
+     */
+    public static class Usage {
+        private final AtomicLong cpuNanos = new AtomicLong();
+        private final AtomicLong allocatedBytes = new AtomicLong();
+
+        /**
+         * Adds the usage of the current thread since the snapshot
+         * 
+         * @param start the {@link CsvThreadAccounting#snapshot()} taken on this thread when the work started
+         */
+        public void addSince(long[] start) {
+            long[] now = snapshot();
+            if (start[0] >= 0L && now[0] >= start[0]) {
+                cpuNanos.addAndGet(now[0] - start[0]);
+            }
+            if (start[1] >= 0L && now[1] >= start[1]) {
+                allocatedBytes.addAndGet(now[1] - start[1]);
+            }
+        }
+
+        public void reset() {
+            cpuNanos.set(0L);
+            allocatedBytes.set(0L);
+        }
+
+        /**
+         * @return the CPU time in millis, -1 if it is not measured
+         */
+        public int getCpuMillis() {
+            return cpuSupported ? (int) Math.min(Integer.MAX_VALUE, cpuNanos.get() / 1000000L) : -1;
+        }
+
+        /**
+         * @return the allocated KB, -1 if it is not measured
+         */
+        public int getAllocatedKB() {
+            return allocatedBytesMethod != null ? (int) Math.min(Integer.MAX_VALUE, allocatedBytes.get() / 1024L) : -1;
+        }
+
+        /**
+         * @param lines the lines processed
+         * @return the bytes allocated per line, -1 if allocations are not measured
+         */
+        public int getAllocatedBytesPerLine(int lines) {
+            if (allocatedBytesMethod == null) {
+                return -1;
+            }
+            return lines > 0 ? (int) Math.min(Integer.MAX_VALUE, allocatedBytes.get() / lines) : 0;
+        }
+    }
+
+}
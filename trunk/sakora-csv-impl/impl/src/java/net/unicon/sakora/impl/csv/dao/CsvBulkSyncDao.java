@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv.dao;
+
+/**
+ * Bulk (high volume) variant of the tracking DAO, backed by a hibernate StatelessSession
+ * so nothing is kept in a first level cache and there is no dirty checking,
+ * the tracking records are inserted, updated and deleted directly.
+ * 
+ * Work happens in units: {@link #begin()} opens a stateless session and transaction
+ * for the current thread which stays open until {@link #commit()} or {@link #rollback()}
+ */
+public interface CsvBulkSyncDao extends CsvTrackingDao {
+
+    /**
+     * Open a stateless session and start a transaction for the current thread
+     * @throws IllegalStateException if there is already a bulk unit open for this thread
+     */
+    public void begin();
+
+    /**
+     * Commit the transaction and close the stateless session for the current thread
+     */
+    public void commit();
+
+    /**
+     * Rollback the transaction (if there is one) and close the stateless session for the current thread,
+     * safe to call if no unit is open
+     */
+    public void rollback();
+
+    /**
+     * @return true if there is a bulk unit open for the current thread
+     */
+    public boolean isActive();
+
+    /**
+     * Insert a new persistent object (Membership, Person, Session)
+     * @param entity the object to insert
+     */
+    public void insert(Object entity);
+
+    /**
+     * Update a persistent object (Membership, Person, Session), no dirty checking is done
+     * @param entity the object to update
+     */
+    public void update(Object entity);
+
+    /**
+     * Delete a persistent object (Membership, Person, Session)
+     * @param entity the object to delete
+     */
+    public void delete(Object entity);
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import net.unicon.sakora.api.csv.model.Membership;
+import net.unicon.sakora.api.csv.model.Person;
+import net.unicon.sakora.api.csv.model.Session;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+
+/**
+ * StatelessSession implementation of the bulk tracking DAO,
+ * this is NOT wrapped in a transaction proxy, it manages the transactions itself
+ */
+public class CsvBulkSyncDaoImpl implements CsvBulkSyncDao {
+
+    private static final Log log = LogFactory.getLog(CsvBulkSyncDaoImpl.class);
+
+    private SessionFactory sessionFactory;
+    private CsvTrackingUpsert upsert;
+    private final ThreadLocal<StatelessSession> currentSession = new ThreadLocal<StatelessSession>();
+
+    public void init() {
+        if (sessionFactory == null) {
+            throw new IllegalStateException("sessionFactory must be set");
+        }
+    }
+
+    public void begin() {
+        if (currentSession.get() != null) {
+            throw new IllegalStateException("There is already a bulk tracking session open for this thread");
+        }
+        StatelessSession session = sessionFactory.openStatelessSession();
+        try {
+            session.beginTransaction();
+        } catch (HibernateException e) {
+            session.close();
+            throw e;
+        }
+        currentSession.set(session);
+    }
+
+    public void commit() {
+        StatelessSession session = getSession();
+        try {
+            session.getTransaction().commit();
+        } finally {
+            currentSession.remove();
+            session.close();
+        }
+    }
+
+    public void rollback() {
+        StatelessSession session = currentSession.get();
+        if (session == null) {
+            return;
+        }
+        try {
+            Transaction tx = session.getTransaction();
+            if (tx != null && tx.isActive()) {
+                tx.rollback();
+            }
+        } catch (HibernateException e) {
+            log.warn("SakoraCSV failed to rollback bulk tracking transaction: "+e);
+        } finally {
+            currentSession.remove();
+            session.close();
+        }
+    }
+
+    public boolean isActive() {
+        return currentSession.get() != null;
+    }
+
+    private StatelessSession getSession() {
+        StatelessSession session = currentSession.get();
+        if (session == null) {
+            throw new IllegalStateException("No bulk tracking session open for this thread, begin() must be called first");
+        }
+        return session;
+    }
+
+    private boolean useUpsert() {
+        return upsert != null && upsert.isEnabled();
+    }
+
+    public void insert(Object entity) {
+        getSession().insert(entity);
+    }
+
+    public void update(Object entity) {
+        getSession().update(entity);
+    }
+
+    public void delete(Object entity) {
+        getSession().delete(entity);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void saveMembership(String mode, String userEid, String containerEid, String role, Date inputTime) {
+        StatelessSession session = getSession();
+        if (useUpsert()) {
+            upsert.upsertMembership(session.createSQLQuery(upsert.getMembershipSql()), mode, userEid, containerEid, role, inputTime);
+            return;
+        }
+        List<Membership> existing = session.createQuery("from Membership m where m.mode = :mode and m.userEid = :userEid and m.containerEid = :containerEid order by m.id")
+            .setString("mode", mode)
+            .setString("userEid", userEid)
+            .setString("containerEid", containerEid)
+            .list();
+        if ( existing == null || existing.isEmpty() ) {
+            session.insert( new Membership(userEid, containerEid, role, mode, inputTime) );
+        } else {
+            for ( int i = 0 ; i < existing.size() ; i++ ) {
+                // guard against dupl records, which can lead to inadvertent CM membership deletion
+                if ( i == existing.size() - 1 ) {
+                    // only update the last one found
+                    existing.get(i).setInputTime(inputTime);
+                    existing.get(i).setRole(role);
+                    session.update(existing.get(i));
+                } else {
+                    // Remove all duplicates
+                    session.delete(existing.get(i));
+                }
+            }
+        }
+    }
+
+    public void savePerson(String userEid, String userId, Date inputTime) {
+        StatelessSession session = getSession();
+        if (useUpsert()) {
+            upsert.upsertPerson(session.createSQLQuery(upsert.getPersonSql()), userEid, userId, inputTime);
+            return;
+        }
+        Person p = (Person) session.get(Person.class, userEid);
+        if (p == null) {
+            session.insert(new Person(userEid, userId, inputTime));
+        } else {
+            p.setInputTime(inputTime);
+            p.setUserId(userId);
+            session.update(p);
+        }
+    }
+
+    public void saveSession(String eid, Date inputTime) {
+        StatelessSession session = getSession();
+        if (useUpsert()) {
+            upsert.upsertSession(session.createSQLQuery(upsert.getSessionSql()), eid, inputTime);
+            return;
+        }
+        Session existing = (Session) session.get(Session.class, eid);
+        if (existing != null) {
+            existing.setInputTime(inputTime);
+            session.update(existing);
+        } else {
+            session.insert(new Session(eid, inputTime));
+        }
+    }
+
+    public void removeMembership(String mode, String userEid, String containerEid) {
+        getSession().createQuery("delete from Membership m where m.mode = :mode and m.userEid = :userEid and m.containerEid = :containerEid")
+            .setString("mode", mode)
+            .setString("userEid", userEid)
+            .setString("containerEid", containerEid)
+            .executeUpdate();
+    }
+
+    public void removePerson(String userEid) {
+        getSession().createQuery("delete from Person p where p.userEid = :userEid")
+            .setString("userEid", userEid)
+            .executeUpdate();
+    }
+
+    public void setSessionFactory(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    public void setUpsert(CsvTrackingUpsert upsert) {
+        this.upsert = upsert;
+    }
+
+}
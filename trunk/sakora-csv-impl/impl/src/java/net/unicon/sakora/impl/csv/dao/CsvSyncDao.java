@@ -18,8 +18,37 @@
  */
 package net.unicon.sakora.impl.csv.dao;
 
-import org.sakaiproject.genericdao.api.GeneralGenericDao;;
+import java.util.Date;
 
-public interface CsvSyncDao extends GeneralGenericDao {
+import org.sakaiproject.genericdao.api.GeneralGenericDao;
+
+public interface CsvSyncDao extends GeneralGenericDao, CsvTrackingDao {
+
+    /**
+     * Flushes all pending changes in the current hibernate session to the database
+     * and then clears the session (first level cache) so it does not keep growing,
+     * only useful when called inside a larger transaction (see {@link CsvTrackingBatch})
+     */
+    public void flushAndClear();
+
+    /**
+     * Find the id of the newest SAKORA_LOG entry which is beyond the given number of entries to keep,
+     * this entry and everything older can be removed
+     * 
+     * @param keepRows the number of newest log entries to keep
+     * @return the id OR null if there are not more than keepRows entries
+     */
+    public Long findLogPruneMaxId(int keepRows);
+
+    /**
+     * Remove one batch of the oldest SAKORA_LOG entries (in id order),
+     * each call is a separate (small) transaction so the table is not locked for long
+     * 
+     * @param before only remove entries older than this time, null for any time
+     * @param maxId only remove entries with an id less than or equal to this, null for any id
+     * @param batchSize the max number of entries to remove
+     * @return the number of entries removed, 0 when there is nothing left to remove
+     */
+    public int pruneLogs(Date before, Long maxId, int batchSize);
 
 }
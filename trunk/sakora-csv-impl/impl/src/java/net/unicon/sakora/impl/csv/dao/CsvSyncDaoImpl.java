@@ -18,8 +18,171 @@
  */
 package net.unicon.sakora.impl.csv.dao;
 
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+import net.unicon.sakora.api.csv.model.Membership;
+import net.unicon.sakora.api.csv.model.Person;
+import net.unicon.sakora.api.csv.model.Session;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.sakaiproject.genericdao.api.search.Restriction;
+import org.sakaiproject.genericdao.api.search.Search;
 import org.sakaiproject.genericdao.hibernate.HibernateGeneralGenericDao;
+import org.springframework.orm.hibernate3.HibernateCallback;
 
 public class CsvSyncDaoImpl extends HibernateGeneralGenericDao implements CsvSyncDao {
 
+    private CsvTrackingUpsert upsert;
+
+    private boolean useUpsert() {
+        return upsert != null && upsert.isEnabled();
+    }
+
+    public void flushAndClear() {
+        getHibernateTemplate().flush();
+        getHibernateTemplate().clear();
+    }
+
+    public void saveMembership(final String mode, final String userEid, final String containerEid, final String role, final Date inputTime) {
+        if (useUpsert()) {
+            getHibernateTemplate().execute(new HibernateCallback() {
+                public Object doInHibernate(org.hibernate.Session session) throws HibernateException, SQLException {
+                    return upsert.upsertMembership(session.createSQLQuery(upsert.getMembershipSql()), mode, userEid, containerEid, role, inputTime);
+                }
+            });
+            return;
+        }
+        Search search = new Search();
+        search.addRestriction(new Restriction("mode", mode, Restriction.EQUALS));
+        search.addRestriction(new Restriction("userEid", userEid));
+        search.addRestriction(new Restriction("containerEid", containerEid));
+        List<Membership> existing = findBySearch(Membership.class, search);
+        if ( existing == null || existing.isEmpty() ) {
+            create( new Membership(userEid, containerEid, role, mode, inputTime) );
+        } else {
+            for ( int i = 0 ; i < existing.size() ; i++ ) {
+                // guard against dupl records, which can lead to inadvertent CM membership deletion
+                if ( i == existing.size() - 1 ) {
+                    // only update the last one found
+                    existing.get(i).setInputTime(inputTime);
+                    existing.get(i).setRole(role);
+                    update(existing.get(i));
+                } else {
+                    // Remove all duplicates
+                    delete(Membership.class, existing.get(i).getId());
+                }
+            }
+        }
+    }
+
+    public void savePerson(final String userEid, final String userId, final Date inputTime) {
+        if (useUpsert()) {
+            getHibernateTemplate().execute(new HibernateCallback() {
+                public Object doInHibernate(org.hibernate.Session session) throws HibernateException, SQLException {
+                    return upsert.upsertPerson(session.createSQLQuery(upsert.getPersonSql()), userEid, userId, inputTime);
+                }
+            });
+            return;
+        }
+        Person p = findById(Person.class, userEid);
+        if (p == null) {
+            create(new Person(userEid, userId, inputTime));
+        } else {
+            p.setInputTime(inputTime);
+            p.setUserId(userId);
+            update(p);
+        }
+    }
+
+    public void saveSession(final String eid, final Date inputTime) {
+        if (useUpsert()) {
+            getHibernateTemplate().execute(new HibernateCallback() {
+                public Object doInHibernate(org.hibernate.Session session) throws HibernateException, SQLException {
+                    return upsert.upsertSession(session.createSQLQuery(upsert.getSessionSql()), eid, inputTime);
+                }
+            });
+            return;
+        }
+        Search search = new Search();
+        search.addRestriction(new Restriction("eid", eid));
+        Session existing = findOneBySearch(Session.class, search);
+        if (existing != null) {
+            existing.setInputTime(inputTime);
+            update(existing);
+        } else {
+            create(new Session(eid, inputTime));
+        }
+    }
+
+    public void removeMembership(final String mode, final String userEid, final String containerEid) {
+        getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(org.hibernate.Session session) throws HibernateException, SQLException {
+                return session.createQuery("delete from Membership m where m.mode = :mode and m.userEid = :userEid and m.containerEid = :containerEid")
+                    .setString("mode", mode)
+                    .setString("userEid", userEid)
+                    .setString("containerEid", containerEid)
+                    .executeUpdate();
+            }
+        });
+    }
+
+    public void removePerson(final String userEid) {
+        getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(org.hibernate.Session session) throws HibernateException, SQLException {
+                return session.createQuery("delete from Person p where p.userEid = :userEid")
+                    .setString("userEid", userEid)
+                    .executeUpdate();
+            }
+        });
+    }
+
+    public Long findLogPruneMaxId(final int keepRows) {
+        return (Long) getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(org.hibernate.Session session) throws HibernateException, SQLException {
+                return session.createQuery("select l.id from SakoraLog l order by l.id desc")
+                    .setFirstResult(keepRows)
+                    .setMaxResults(1)
+                    .uniqueResult();
+            }
+        });
+    }
+
+    public int pruneLogs(final Date before, final Long maxId, final int batchSize) {
+        Integer removed = (Integer) getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(org.hibernate.Session session) throws HibernateException, SQLException {
+                StringBuilder hql = new StringBuilder("select l.id from SakoraLog l where 1=1");
+                if (before != null) {
+                    hql.append(" and l.time < :before");
+                }
+                if (maxId != null) {
+                    hql.append(" and l.id <= :maxId");
+                }
+                hql.append(" order by l.id");
+                Query query = session.createQuery(hql.toString());
+                if (before != null) {
+                    query.setTimestamp("before", before);
+                }
+                if (maxId != null) {
+                    query.setLong("maxId", maxId);
+                }
+                List<?> ids = query.setMaxResults(batchSize).list();
+                if (ids == null || ids.isEmpty()) {
+                    return 0;
+                }
+                // delete by key so only this batch of rows is locked
+                return session.createQuery("delete from SakoraLog where id in (:ids)")
+                    .setParameterList("ids", ids)
+                    .executeUpdate();
+            }
+        });
+        return removed == null ? 0 : removed;
+    }
+
+    public void setUpsert(CsvTrackingUpsert upsert) {
+        this.upsert = upsert;
+    }
+
 }
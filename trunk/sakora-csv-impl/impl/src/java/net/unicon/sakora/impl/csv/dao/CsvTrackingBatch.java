@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+
+/**
+ * Unit of work for the sakora tracking tables (SAKORA_MEMBERSHIP, SAKORA_PERSON, SAKORA_SESSION).
+ *
+ * Tracking writes are queued and executed in groups of batchSize inside a single transaction
+ * instead of every DAO call committing on its own (the DAO proxy uses PROPAGATION_REQUIRED
+ * so the calls made while the batch transaction is open simply join it). The hibernate session
+ * is flushed and cleared every flushSize writes which keeps the first level cache small and
+ * lets hibernate use JDBC batching (hibernate.jdbc.batch_size).
+ *
+ * In bulk (high volume) mode the writes go through a {@link CsvBulkSyncDao} instead, each batch
+ * runs in one StatelessSession transaction so there is no first level cache or dirty checking at all.
+ *
+ * NOTE: only tracking table writes should be queued here, CM and user directory calls must
+ * stay outside of the batch transaction (a CM failure would otherwise mark the whole batch
+ * for rollback)
+ */
+public class CsvTrackingBatch {
+
+    private static final Log log = LogFactory.getLog(CsvTrackingBatch.class);
+
+    /**
+     * A single tracking table write (typically a create or update of one tracking record),
+     * all DAO calls must go through the dao passed in
+     */
+    public interface TrackingWrite {
+        public void write(CsvTrackingDao dao);
+    }
+
+    private final PlatformTransactionManager transactionManager;
+    private final CsvSyncDao dao;
+    private final CsvBulkSyncDao bulkDao;
+    private final int batchSize;
+    private final int flushSize;
+    private final List<TrackingWrite> pending;
+    private int writes = 0;
+    private int commits = 0;
+    private int failures = 0;
+
+    /**
+     * @param transactionManager the hibernate transaction manager, if null then every write is executed immediately (legacy)
+     * @param dao the tracking DAO
+     * @param batchSize number of writes to group into a single transaction, 1 or less executes every write immediately (legacy)
+     * @param flushSize number of writes between session flush and clear calls inside a transaction
+     */
+    public CsvTrackingBatch(PlatformTransactionManager transactionManager, CsvSyncDao dao, int batchSize, int flushSize) {
+        this(transactionManager, dao, null, batchSize, flushSize);
+    }
+
+    /**
+     * @param transactionManager the hibernate transaction manager, if null then every write is executed immediately (legacy)
+     * @param dao the tracking DAO
+     * @param bulkDao the bulk tracking DAO, if not null then all batches are written using it (bulk mode)
+     * @param batchSize number of writes to group into a single transaction, 1 or less executes every write immediately (legacy)
+     * @param flushSize number of writes between session flush and clear calls inside a transaction (ignored in bulk mode)
+     */
+    public CsvTrackingBatch(PlatformTransactionManager transactionManager, CsvSyncDao dao, CsvBulkSyncDao bulkDao, int batchSize, int flushSize) {
+        if (dao == null) {
+            throw new IllegalArgumentException("dao must be set");
+        }
+        this.transactionManager = transactionManager;
+        this.dao = dao;
+        this.bulkDao = bulkDao;
+        this.batchSize = batchSize;
+        this.flushSize = (flushSize <= 0 ? batchSize : flushSize);
+        this.pending = new ArrayList<TrackingWrite>(batchSize > 1 ? batchSize : 0);
+    }
+
+    /**
+     * Queue a tracking write, the pending writes are executed once batchSize is reached
+     *
+     * @param write the tracking write to execute
+     * @return the number of writes which failed and were discarded if this triggered a flush (see {@link #flush()})
+     */
+    public int add(TrackingWrite write) {
+        if (bulkDao == null && (transactionManager == null || batchSize <= 1)) {
+            // no batching, each DAO call is a separate transaction
+            write.write(dao);
+            writes++;
+            return 0;
+        }
+        pending.add(write);
+        if (pending.size() >= batchSize) {
+            return flush();
+        }
+        return 0;
+    }
+
+    /**
+     * Execute all pending writes in one transaction,
+     * if the batch fails then each write is retried in its own transaction so only the bad writes are lost
+     *
+     * @return the number of writes which failed on their own and were discarded (their tracking records are missing)
+     */
+    public int flush() {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        int lost = 0;
+        List<TrackingWrite> batch = new ArrayList<TrackingWrite>(pending);
+        pending.clear();
+        try {
+            execute(batch);
+        } catch (RuntimeException e) {
+            log.warn("SakoraCSV tracking batch of "+batch.size()+" writes failed, retrying writes individually: "+e);
+            for (TrackingWrite write : batch) {
+                try {
+                    execute(Collections.singletonList(write));
+                } catch (RuntimeException e1) {
+                    lost++;
+                    log.error("SakoraCSV tracking write failed: "+e1, e1);
+                }
+            }
+        }
+        failures += lost;
+        return lost;
+    }
+
+    private void execute(List<TrackingWrite> batch) {
+        if (bulkDao != null) {
+            executeBulk(batch);
+            return;
+        }
+        TransactionStatus status = transactionManager.getTransaction(new DefaultTransactionDefinition(TransactionDefinition.PROPAGATION_REQUIRED));
+        try {
+            int count = 0;
+            for (TrackingWrite write : batch) {
+                write.write(dao);
+                count++;
+                if (count % flushSize == 0) {
+                    dao.flushAndClear();
+                }
+            }
+        } catch (RuntimeException e) {
+            transactionManager.rollback(status);
+            throw e;
+        }
+        transactionManager.commit(status);
+        writes += batch.size();
+        commits++;
+        if (log.isDebugEnabled()) log.debug("SakoraCSV committed tracking batch of "+batch.size()+" writes ("+writes+" writes in "+commits+" commits so far)");
+    }
+
+    private void executeBulk(List<TrackingWrite> batch) {
+        bulkDao.begin();
+        try {
+            for (TrackingWrite write : batch) {
+                write.write(bulkDao);
+            }
+            bulkDao.commit();
+        } catch (RuntimeException e) {
+            bulkDao.rollback();
+            throw e;
+        }
+        writes += batch.size();
+        commits++;
+        if (log.isDebugEnabled()) log.debug("SakoraCSV committed bulk tracking batch of "+batch.size()+" writes ("+writes+" writes in "+commits+" commits so far)");
+    }
+
+    /**
+     * @return true if this batch writes using the bulk (stateless) DAO
+     */
+    public boolean isBulk() {
+        return bulkDao != null;
+    }
+
+    /**
+     * @return the number of writes which are queued but not executed yet
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of writes completed so far
+     */
+    public int getWrites() {
+        return writes;
+    }
+
+    /**
+     * @return the number of batch transactions committed so far
+     */
+    public int getCommits() {
+        return commits;
+    }
+
+    /**
+     * @return the number of writes which failed and were discarded
+     */
+    public int getFailures() {
+        return failures;
+    }
+
+}
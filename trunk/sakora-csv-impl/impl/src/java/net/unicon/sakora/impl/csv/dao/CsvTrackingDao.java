@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv.dao;
+
+import java.util.Date;
+
+/**
+ * Writes to the sakora tracking tables (SAKORA_MEMBERSHIP, SAKORA_PERSON, SAKORA_SESSION),
+ * these record what was included in each feed so that removals can be calculated
+ * (anything with an older input time was not in the current feed)
+ */
+public interface CsvTrackingDao {
+
+    /**
+     * Create or update the tracking record for a membership,
+     * any duplicate records for the same mode, user and container are removed
+     * 
+     * @param mode the membership mode (section, course, enrollment)
+     * @param userEid the user EID
+     * @param containerEid the section, course offering or enrollment set EID
+     * @param role the membership role
+     * @param inputTime the input time for the current feed
+     */
+    public void saveMembership(String mode, String userEid, String containerEid, String role, Date inputTime);
+
+    /**
+     * Create or update the tracking record for a person
+     * 
+     * @param userEid the user EID
+     * @param userId the sakai user id
+     * @param inputTime the input time for the current feed
+     */
+    public void savePerson(String userEid, String userId, Date inputTime);
+
+    /**
+     * Create or update the tracking record for an academic session
+     * 
+     * @param eid the academic session EID
+     * @param inputTime the input time for the current feed
+     */
+    public void saveSession(String eid, Date inputTime);
+
+    /**
+     * Remove the tracking record(s) for a membership (used when a removal is applied directly from a delta)
+     * 
+     * @param mode the membership mode (section, course, enrollment)
+     * @param userEid the user EID
+     * @param containerEid the section, course offering or enrollment set EID
+     */
+    public void removeMembership(String mode, String userEid, String containerEid);
+
+    /**
+     * Remove the tracking record for a person (used when a removal is applied directly from a delta)
+     * 
+     * @param userEid the user EID
+     */
+    public void removePerson(String userEid);
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.csv.dao;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Query;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.db.api.SqlService;
+
+/**
+ * Dialect aware native upsert statements for the sakora tracking tables,
+ * this turns the "search, then create or update" sequence for a tracking record
+ * into a single idempotent statement (MERGE on oracle and hsqldb, ON DUPLICATE KEY on mysql).
+ *
+ * The membership upsert relies on the unique index on SAKORA_MEMBERSHIP (MODE, COURSE_EID, USER_EID)
+ * which is a one time upgrade (see sakora_csv_tracking_upsert.sql), upserts stay disabled until it exists.
+ *
+ * NOTE: hsqldb MERGE requires hsqldb 2.x, if the vendor is not supported then upserts
+ * are disabled and the DAOs fall back to search then create or update
+ */
+public class CsvTrackingUpsert {
+
+    private static final Log log = LogFactory.getLog(CsvTrackingUpsert.class);
+
+    static final String UNIQUE_MEMBERSHIP_INDEX = "SAKORA_MEMBERSHIP_UNIQUE_IDX";
+
+    private static final String MYSQL_MEMBERSHIP =
+        "insert into SAKORA_MEMBERSHIP (USER_EID, COURSE_EID, ROLE, `MODE`, INPUT_TIME) values (:userEid, :containerEid, :role, :mode, :inputTime) "
+        + "on duplicate key update ROLE = values(ROLE), INPUT_TIME = values(INPUT_TIME)";
+    private static final String MYSQL_PERSON =
+        "insert into SAKORA_PERSON (USER_EID, USER_ID, INPUT_TIME) values (:userEid, :userId, :inputTime) "
+        + "on duplicate key update USER_ID = values(USER_ID), INPUT_TIME = values(INPUT_TIME)";
+    private static final String MYSQL_SESSION =
+        "insert into SAKORA_SESSION (EID, INPUT_TIME) values (:eid, :inputTime) "
+        + "on duplicate key update INPUT_TIME = values(INPUT_TIME)";
+
+    // native id generation on oracle uses the hibernate_sequence
+    private static final String ORACLE_MEMBERSHIP =
+        "merge into SAKORA_MEMBERSHIP t using (select :userEid USER_EID, :containerEid COURSE_EID, :role ROLE, :mode \"MODE\", :inputTime INPUT_TIME from dual) s "
+        + "on (t.\"MODE\" = s.\"MODE\" and t.COURSE_EID = s.COURSE_EID and t.USER_EID = s.USER_EID) "
+        + "when matched then update set t.ROLE = s.ROLE, t.INPUT_TIME = s.INPUT_TIME "
+        + "when not matched then insert (ID, USER_EID, COURSE_EID, ROLE, \"MODE\", INPUT_TIME) "
+        + "values (hibernate_sequence.nextval, s.USER_EID, s.COURSE_EID, s.ROLE, s.\"MODE\", s.INPUT_TIME)";
+    private static final String ORACLE_PERSON =
+        "merge into SAKORA_PERSON t using (select :userEid USER_EID, :userId USER_ID, :inputTime INPUT_TIME from dual) s "
+        + "on (t.USER_EID = s.USER_EID) "
+        + "when matched then update set t.USER_ID = s.USER_ID, t.INPUT_TIME = s.INPUT_TIME "
+        + "when not matched then insert (USER_EID, USER_ID, INPUT_TIME) values (s.USER_EID, s.USER_ID, s.INPUT_TIME)";
+    private static final String ORACLE_SESSION =
+        "merge into SAKORA_SESSION t using (select :eid EID, :inputTime INPUT_TIME from dual) s "
+        + "on (t.EID = s.EID) "
+        + "when matched then update set t.INPUT_TIME = s.INPUT_TIME "
+        + "when not matched then insert (EID, INPUT_TIME) values (s.EID, s.INPUT_TIME)";
+
+    // hsqldb needs the parameter types in the VALUES table
+    private static final String HSQLDB_MEMBERSHIP =
+        "merge into SAKORA_MEMBERSHIP t using (values(cast(:userEid as varchar(255)), cast(:containerEid as varchar(255)), cast(:role as varchar(255)), cast(:mode as varchar(8)), cast(:inputTime as timestamp))) "
+        + "as s(USER_EID, COURSE_EID, ROLE, \"MODE\", INPUT_TIME) "
+        + "on (t.\"MODE\" = s.\"MODE\" and t.COURSE_EID = s.COURSE_EID and t.USER_EID = s.USER_EID) "
+        + "when matched then update set t.ROLE = s.ROLE, t.INPUT_TIME = s.INPUT_TIME "
+        + "when not matched then insert (USER_EID, COURSE_EID, ROLE, \"MODE\", INPUT_TIME) "
+        + "values (s.USER_EID, s.COURSE_EID, s.ROLE, s.\"MODE\", s.INPUT_TIME)";
+    private static final String HSQLDB_PERSON =
+        "merge into SAKORA_PERSON t using (values(cast(:userEid as varchar(255)), cast(:userId as varchar(255)), cast(:inputTime as timestamp))) "
+        + "as s(USER_EID, USER_ID, INPUT_TIME) "
+        + "on (t.USER_EID = s.USER_EID) "
+        + "when matched then update set t.USER_ID = s.USER_ID, t.INPUT_TIME = s.INPUT_TIME "
+        + "when not matched then insert (USER_EID, USER_ID, INPUT_TIME) values (s.USER_EID, s.USER_ID, s.INPUT_TIME)";
+    private static final String HSQLDB_SESSION =
+        "merge into SAKORA_SESSION t using (values(cast(:eid as varchar(255)), cast(:inputTime as timestamp))) "
+        + "as s(EID, INPUT_TIME) "
+        + "on (t.EID = s.EID) "
+        + "when matched then update set t.INPUT_TIME = s.INPUT_TIME "
+        + "when not matched then insert (EID, INPUT_TIME) values (s.EID, s.INPUT_TIME)";
+
+    private SqlService sqlService;
+    private ServerConfigurationService configurationService;
+
+    protected boolean enabled = false;
+    private String vendor;
+    private String membershipSql;
+    private String personSql;
+    private String sessionSql;
+
+    public void init() {
+        boolean configured = configurationService.getBoolean("net.unicon.sakora.csv.trackingUpsert", enabled);
+        vendor = sqlService.getVendor();
+        if ("mysql".equalsIgnoreCase(vendor)) {
+            membershipSql = MYSQL_MEMBERSHIP;
+            personSql = MYSQL_PERSON;
+            sessionSql = MYSQL_SESSION;
+        } else if ("oracle".equalsIgnoreCase(vendor)) {
+            membershipSql = ORACLE_MEMBERSHIP;
+            personSql = ORACLE_PERSON;
+            sessionSql = ORACLE_SESSION;
+        } else if ("hsqldb".equalsIgnoreCase(vendor)) {
+            membershipSql = HSQLDB_MEMBERSHIP;
+            personSql = HSQLDB_PERSON;
+            sessionSql = HSQLDB_SESSION;
+        }
+        if (configured && membershipSql == null) {
+            log.warn("SakoraCSV trackingUpsert is enabled but the database vendor ("+vendor+") is not supported, using search then create or update for tracking records");
+            configured = false;
+        }
+        if (configured && !hasUniqueMembershipIndex()) {
+            log.error("SakoraCSV trackingUpsert is enabled but the "+UNIQUE_MEMBERSHIP_INDEX+" unique index does not exist (or could not be checked), apply sakora_csv_tracking_upsert.sql ("
+                    +vendor+") first, using search then create or update for tracking records");
+            configured = false;
+        }
+        enabled = configured;
+        log.info("SakoraCSV tracking native upsert: "+(enabled ? "enabled ("+vendor+")" : "disabled"));
+    }
+
+    /**
+     * @return true if SAKORA_MEMBERSHIP has the unique index the membership upsert needs (false if it cannot be checked)
+     */
+    private boolean hasUniqueMembershipIndex() {
+        Connection conn = null;
+        try {
+            conn = sqlService.borrowConnection();
+            DatabaseMetaData meta = conn.getMetaData();
+            String[] tables = {"SAKORA_MEMBERSHIP", "sakora_membership"};
+            for (String table : tables) {
+                ResultSet rs = meta.getIndexInfo(null, null, table, true, true);
+                try {
+                    while (rs.next()) {
+                        if (UNIQUE_MEMBERSHIP_INDEX.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                            return true;
+                        }
+                    }
+                } finally {
+                    rs.close();
+                }
+            }
+            return false;
+        } catch (SQLException e) {
+            // without the index the mysql upsert is a plain insert (duplicate tracking records), so only upsert when it is known to exist
+            log.error("SakoraCSV could not check for the "+UNIQUE_MEMBERSHIP_INDEX+" unique index, apply sakora_csv_tracking_upsert.sql: "+e);
+            return false;
+        } finally {
+            if (conn != null) {
+                sqlService.returnConnection(conn);
+            }
+        }
+    }
+
+    /**
+     * @return true if native upserts should be used for the tracking tables
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getMembershipSql() {
+        return membershipSql;
+    }
+
+    public String getPersonSql() {
+        return personSql;
+    }
+
+    public String getSessionSql() {
+        return sessionSql;
+    }
+
+    /**
+     * Bind and execute the membership upsert
+     * @param query native query created from {@link #getMembershipSql()}
+     * @return the number of rows changed
+     */
+    public int upsertMembership(Query query, String mode, String userEid, String containerEid, String role, Date inputTime) {
+        return query.setString("mode", mode)
+            .setString("userEid", userEid)
+            .setString("containerEid", containerEid)
+            .setString("role", role)
+            .setTimestamp("inputTime", inputTime)
+            .executeUpdate();
+    }
+
+    /**
+     * Bind and execute the person upsert
+     * @param query native query created from {@link #getPersonSql()}
+     * @return the number of rows changed
+     */
+    public int upsertPerson(Query query, String userEid, String userId, Date inputTime) {
+        return query.setString("userEid", userEid)
+            .setString("userId", userId)
+            .setTimestamp("inputTime", inputTime)
+            .executeUpdate();
+    }
+
+    /**
+     * Bind and execute the academic session upsert
+     * @param query native query created from {@link #getSessionSql()}
+     * @return the number of rows changed
+     */
+    public int upsertSession(Query query, String eid, Date inputTime) {
+        return query.setString("eid", eid)
+            .setTimestamp("inputTime", inputTime)
+            .executeUpdate();
+    }
+
+    public void setSqlService(SqlService sqlService) {
+        this.sqlService = sqlService;
+    }
+
+    public void setConfigurationService(ServerConfigurationService configurationService) {
+        this.configurationService = configurationService;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+}
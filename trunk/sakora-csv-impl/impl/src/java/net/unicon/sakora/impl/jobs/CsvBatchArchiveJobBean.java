@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.jobs;
+
+import net.unicon.sakora.impl.csv.CsvBatchArchiver;
+import net.unicon.sakora.impl.csv.CsvSyncServiceImpl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.StatefulJob;
+
+/**
+ * Batch upload dir housekeeping: archives the old batch dirs, gzips the archived files
+ * and removes archived batches older than the retention (see {@link CsvBatchArchiver}),
+ * runs at the lowest thread priority so it does not compete with the server.
+ * 
+ * Controlled by (sakai.properties):
+ * net.unicon.sakora.csv.archiveKeepFinished
+ * net.unicon.sakora.csv.archiveAbandonedStagingHours
+ * net.unicon.sakora.csv.archiveRetentionDays (0 = keep forever)
+ */
+public class CsvBatchArchiveJobBean implements StatefulJob {
+
+    private static final Log log = LogFactory.getLog(CsvBatchArchiveJobBean.class);
+
+    private CsvSyncServiceImpl csvSyncService;
+
+    public void execute(JobExecutionContext context) throws JobExecutionException {
+        if (csvSyncService.isSyncRunning()) {
+            log.warn("SakoraCSV batch archiving skipped, a sync is currently running");
+            return;
+        }
+        CsvBatchArchiver archiver = csvSyncService.getBatchArchiver();
+        Thread thread = Thread.currentThread();
+        int priority = thread.getPriority();
+        long start = System.currentTimeMillis();
+        try {
+            thread.setPriority(Thread.MIN_PRIORITY);
+            int archived = archiver.archive();
+            int compressed = archiver.compress();
+            int removed = archiver.prune();
+            log.info("SakoraCSV batch archiving archived "+archived+" batch dirs, compressed "+compressed+" files and removed "
+                    +removed+" expired batch dirs in "+(System.currentTimeMillis() - start)+" ms");
+        } catch (InterruptedException e) {
+            log.warn("SakoraCSV batch archiving interrupted");
+            thread.interrupt();
+        } finally {
+            thread.setPriority(priority);
+        }
+    }
+
+    public void setCsvSyncService(CsvSyncServiceImpl csvSyncService) {
+        this.csvSyncService = csvSyncService;
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.jobs;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.unicon.sakora.impl.csv.CsvSyncServiceImpl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.quartz.JobDetail;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.sakaiproject.api.app.scheduler.JobBeanWrapper;
+import org.sakaiproject.api.app.scheduler.SchedulerManager;
+import org.sakaiproject.component.api.ServerConfigurationService;
+
+/**
+ * Watches the batch upload dir and triggers the csv loader job as soon as a complete batch is there,
+ * instead of waiting for the next scheduled (cron) run.
+ * 
+ * Each check is a single stat of the upload dir (its modification time changes whenever an entry is
+ * added, renamed or removed), the dir is only listed after it has changed. Committed upload batches are
+ * published with an atomic rename so they trigger the job right away, loose files copied into the upload
+ * dir trigger it once all the expected files are there and nothing has changed for the quiet period.
+ * Nothing is triggered while a sync is running (the running sync processes any newly committed batches).
+ * 
+ * Controlled by (sakai.properties):
+ * net.unicon.sakora.csv.watchUploads (default false)
+ * net.unicon.sakora.csv.watchIntervalMillis
+ * net.unicon.sakora.csv.watchQuietMillis
+ * net.unicon.sakora.csv.watchExpectedFiles (comma separated, e.g. people.csv,sectionMembership.csv)
+ */
+public class CsvBatchWatcher implements Runnable {
+
+    private static final Log log = LogFactory.getLog(CsvBatchWatcher.class);
+
+    /**
+     * some filesystems only keep the modification time in seconds so a recently modified
+     * dir is always checked again (a second change in the same second does not change the time)
+     */
+    private static final long MODIFIED_RESOLUTION_MILLIS = 2000;
+
+    private CsvSyncServiceImpl csvSyncService;
+    private SchedulerManager schedulerManager;
+    private ServerConfigurationService configurationService;
+    private String jobName;
+
+    protected boolean watchUploads = false;
+    protected long watchIntervalMillis = 2000;
+    protected long watchQuietMillis = 10000;
+    protected Set<String> watchExpectedFiles = new HashSet<String>();
+
+    private volatile boolean stopped = false;
+    private Thread thread;
+
+    // watch state (only used by the watcher thread)
+    private long lastDirModified = -1;
+    private boolean pending = false;
+    private long looseFilesSignature = -1;
+    private long looseFilesChanged = 0;
+
+    public void init() {
+        watchUploads = configurationService.getBoolean("net.unicon.sakora.csv.watchUploads", watchUploads);
+        watchIntervalMillis = configurationService.getInt("net.unicon.sakora.csv.watchIntervalMillis", (int) watchIntervalMillis);
+        watchQuietMillis = configurationService.getInt("net.unicon.sakora.csv.watchQuietMillis", (int) watchQuietMillis);
+        String expected = configurationService.getString("net.unicon.sakora.csv.watchExpectedFiles", null);
+        if (expected != null && expected.trim().length() > 0) {
+            watchExpectedFiles.clear();
+            for (String name : expected.split(",")) {
+                if (name.trim().length() > 0) {
+                    watchExpectedFiles.add(name.trim());
+                }
+            }
+        }
+        if (watchIntervalMillis < 100) {
+            watchIntervalMillis = 100;
+        }
+        if (jobName == null || "".equals(jobName)) {
+            jobName = "SIS CSV Data Loader";
+        }
+        log.info("SakoraCSV watchUploads="+watchUploads+" (interval="+watchIntervalMillis+" ms, quiet="+watchQuietMillis
+                +" ms, expected files="+watchExpectedFiles+")");
+        if (watchUploads) {
+            thread = new Thread(this, "SakoraCSV batch watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void destroy() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public void run() {
+        while (!stopped) {
+            try {
+                Thread.sleep(watchIntervalMillis);
+                check();
+            } catch (InterruptedException e) {
+                // stopping
+            } catch (Exception e) {
+                // keep watching, the next change will try again
+                log.error("SakoraCSV batch watcher check failed: "+e, e);
+            }
+        }
+    }
+
+    /**
+     * One watch cycle, triggers the loader job when a complete batch is waiting
+     */
+    protected void check() {
+        File dir = new File(csvSyncService.getBatchUploadDir());
+        long modified = dir.lastModified();
+        long now = System.currentTimeMillis();
+        if (modified != lastDirModified || now - modified < MODIFIED_RESOLUTION_MILLIS) {
+            lastDirModified = modified;
+            pending = true;
+        }
+        if (!pending || csvSyncService.isSyncRunning()) {
+            return;
+        }
+        if (csvSyncService.getBatchQueue().hasCommitted()) {
+            log.info("SakoraCSV batch watcher found committed upload batches in "+dir);
+            trigger();
+            return;
+        }
+        if (csvSyncService.isCommittedBatchesOnly()) {
+            pending = false;
+            return;
+        }
+        // loose files (legacy uploads), wait for the expected files and for the writes to settle
+        long signature = 0;
+        Set<String> names = new HashSet<String>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    names.add(file.getName());
+                    signature = 31 * signature + file.getName().hashCode() + file.length() + file.lastModified();
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            pending = false;
+            return;
+        }
+        if (signature != looseFilesSignature) {
+            looseFilesSignature = signature;
+            looseFilesChanged = now;
+            return;
+        }
+        if (now - looseFilesChanged < watchQuietMillis) {
+            return;
+        }
+        if (!names.containsAll(watchExpectedFiles)) {
+            if (log.isDebugEnabled()) log.debug("SakoraCSV batch watcher waiting for expected files "+watchExpectedFiles+", found "+names);
+            return;
+        }
+        log.info("SakoraCSV batch watcher found uploaded files "+names+" in "+dir);
+        trigger();
+    }
+
+    /**
+     * Fires the csv loader job (same as a scheduled run)
+     */
+    protected void trigger() {
+        Scheduler scheduler = schedulerManager.getScheduler();
+        if (scheduler == null) {
+            return;
+        }
+        JobBeanWrapper jobWrapper = schedulerManager.getJobBeanWrapper(jobName);
+        if (jobWrapper == null) {
+            log.error("SakoraCSV batch watcher: No Job Wrapper by that name ("+jobName+")");
+            return;
+        }
+        try {
+            if (scheduler.getJobDetail(jobName, Scheduler.DEFAULT_GROUP) == null) {
+                JobDetail jd = new JobDetail(jobName, Scheduler.DEFAULT_GROUP, jobWrapper.getJobClass(), false, true, true);
+                jd.getJobDataMap().put(JobBeanWrapper.SPRING_BEAN_NAME, jobWrapper.getBeanId());
+                jd.getJobDataMap().put(JobBeanWrapper.JOB_TYPE, jobWrapper.getJobType());
+                scheduler.addJob(jd, true);
+            }
+            scheduler.triggerJob(jobName, Scheduler.DEFAULT_GROUP);
+            pending = false;
+            looseFilesSignature = -1;
+        } catch (SchedulerException e) {
+            log.error("SakoraCSV batch watcher failed to trigger the sync job: "+e, e);
+        }
+    }
+
+    public void setCsvSyncService(CsvSyncServiceImpl csvSyncService) {
+        this.csvSyncService = csvSyncService;
+    }
+
+    public void setSchedulerManager(SchedulerManager schedulerManager) {
+        this.schedulerManager = schedulerManager;
+    }
+
+    public void setConfigurationService(ServerConfigurationService configurationService) {
+        this.configurationService = configurationService;
+    }
+
+    public void setJobName(String jobName) {
+        this.jobName = jobName;
+    }
+
+    public void setWatchUploads(boolean watchUploads) {
+        this.watchUploads = watchUploads;
+    }
+
+    public void setWatchIntervalMillis(long watchIntervalMillis) {
+        this.watchIntervalMillis = watchIntervalMillis;
+    }
+
+    public void setWatchQuietMillis(long watchQuietMillis) {
+        this.watchQuietMillis = watchQuietMillis;
+    }
+
+}
@@ -23,7 +23,10 @@ import java.util.HashMap;
 import net.unicon.sakora.api.csv.CsvSyncContext;
 import net.unicon.sakora.api.csv.CsvSyncService;
 import net.unicon.sakora.impl.csv.CsvSyncContextImpl;
+import net.unicon.sakora.impl.csv.CsvSyncServiceImpl;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.quartz.JobDataMap;
 import org.quartz.JobDetail;
 import org.quartz.JobExecutionContext;
@@ -31,16 +34,39 @@ import org.quartz.JobExecutionException;
 import org.quartz.StatefulJob;
 
 public class CsvLoaderJobBean implements StatefulJob {
+
+	private static final Log log = LogFactory.getLog(CsvLoaderJobBean.class);
 	
 	private CsvSyncService csvSyncService;
+	/**
+	 * comma separated handler names, if set this job is a lane which only runs these handlers
+	 * (the handlers in the job data map take precedence)
+	 */
+	private String handlers;
 
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public void execute(JobExecutionContext context) throws JobExecutionException {
 		JobDetail detail = context.getJobDetail();
 		JobDataMap map = detail.getJobDataMap();
+		boolean lane = handlers != null && !map.containsKey(CsvSyncServiceImpl.HANDLERS);
+		if (lane && csvSyncService.isSyncRunning()) {
+			// lanes share the run lock, the next run of this lane picks up the waiting batches
+			log.info("SakoraCSV a sync is already running, skipping this run of the " + handlers + " lane");
+			return;
+		}
 		CsvSyncContext syncContext = new CsvSyncContextImpl();
 		syncContext.setProperties(map);
-		csvSyncService.sync(syncContext);
+		if (lane) {
+			map.put(CsvSyncServiceImpl.HANDLERS, handlers);
+		}
+		try {
+			csvSyncService.sync(syncContext);
+		} finally {
+			if (lane) {
+				// the lane setting is not stored with the job
+				map.remove(CsvSyncServiceImpl.HANDLERS);
+			}
+		}
 		context.setResult(new HashMap(map));
 	}
 	
@@ -52,4 +78,12 @@ public class CsvLoaderJobBean implements StatefulJob {
 		this.csvSyncService = csvSyncService;
 	}
 
+	public String getHandlers() {
+		return handlers;
+	}
+
+	public void setHandlers(String handlers) {
+		this.handlers = handlers;
+	}
+
 }
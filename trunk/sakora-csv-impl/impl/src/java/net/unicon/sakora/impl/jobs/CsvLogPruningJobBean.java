@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.jobs;
+
+import java.util.Date;
+
+import net.unicon.sakora.api.csv.CsvSyncService;
+import net.unicon.sakora.impl.csv.dao.CsvSyncDao;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.StatefulJob;
+import org.sakaiproject.component.api.ServerConfigurationService;
+
+/**
+ * Applies the SAKORA_LOG retention policy (max age and/or max rows),
+ * the old entries are deleted in small keyed batches (each in its own transaction)
+ * with a short pause between batches so the table is never locked for long.
+ * 
+ * Controlled by (sakai.properties):
+ * net.unicon.sakora.csv.logRetentionDays (0 = keep forever)
+ * net.unicon.sakora.csv.logMaxRows (0 = unlimited)
+ * net.unicon.sakora.csv.logPruneBatchSize
+ * net.unicon.sakora.csv.logPrunePauseMillis
+ */
+public class CsvLogPruningJobBean implements StatefulJob {
+
+    private static final Log log = LogFactory.getLog(CsvLogPruningJobBean.class);
+
+    private static final long DAY_MILLIS = 24L * 60L * 60L * 1000L;
+
+    private CsvSyncService csvSyncService;
+    private CsvSyncDao dao;
+    private ServerConfigurationService configurationService;
+
+    protected int logRetentionDays = 0;
+    protected int logMaxRows = 0;
+    protected int logPruneBatchSize = 1000;
+    protected long logPrunePauseMillis = 100;
+
+    public void execute(JobExecutionContext context) throws JobExecutionException {
+        int retentionDays = configurationService.getInt("net.unicon.sakora.csv.logRetentionDays", logRetentionDays);
+        int maxRows = configurationService.getInt("net.unicon.sakora.csv.logMaxRows", logMaxRows);
+        int batchSize = configurationService.getInt("net.unicon.sakora.csv.logPruneBatchSize", logPruneBatchSize);
+        long pauseMillis = configurationService.getInt("net.unicon.sakora.csv.logPrunePauseMillis", (int) logPrunePauseMillis);
+        if (retentionDays <= 0 && maxRows <= 0) {
+            log.info("SakoraCSV log pruning skipped, no retention policy is set (logRetentionDays and logMaxRows are both disabled)");
+            return;
+        }
+        if (csvSyncService.isSyncRunning()) {
+            log.warn("SakoraCSV log pruning skipped, a sync is currently running");
+            return;
+        }
+        if (batchSize <= 0) {
+            batchSize = logPruneBatchSize;
+        }
+        long start = System.currentTimeMillis();
+        int removed = 0;
+        try {
+            if (retentionDays > 0) {
+                Date before = new Date(start - (retentionDays * DAY_MILLIS));
+                removed += prune(before, null, batchSize, pauseMillis);
+            }
+            if (maxRows > 0) {
+                Long maxId = dao.findLogPruneMaxId(maxRows);
+                if (maxId != null) {
+                    removed += prune(null, maxId, batchSize, pauseMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("SakoraCSV log pruning interrupted after removing "+removed+" log entries");
+            Thread.currentThread().interrupt();
+            return;
+        }
+        log.info("SakoraCSV log pruning removed "+removed+" log entries (retentionDays="+retentionDays+", maxRows="+maxRows+") in "
+                +(System.currentTimeMillis() - start)+" ms");
+    }
+
+    private int prune(Date before, Long maxId, int batchSize, long pauseMillis) throws InterruptedException {
+        int total = 0;
+        int removed;
+        do {
+            removed = dao.pruneLogs(before, maxId, batchSize);
+            total += removed;
+            if (removed > 0 && pauseMillis > 0) {
+                // give other writers a chance at the table
+                Thread.sleep(pauseMillis);
+            }
+        } while (removed > 0);
+        return total;
+    }
+
+    public void setCsvSyncService(CsvSyncService csvSyncService) {
+        this.csvSyncService = csvSyncService;
+    }
+
+    public void setDao(CsvSyncDao dao) {
+        this.dao = dao;
+    }
+
+    public void setConfigurationService(ServerConfigurationService configurationService) {
+        this.configurationService = configurationService;
+    }
+
+    public void setLogRetentionDays(int logRetentionDays) {
+        this.logRetentionDays = logRetentionDays;
+    }
+
+    public void setLogMaxRows(int logMaxRows) {
+        this.logMaxRows = logMaxRows;
+    }
+
+    public void setLogPruneBatchSize(int logPruneBatchSize) {
+        this.logPruneBatchSize = logPruneBatchSize;
+    }
+
+    public void setLogPrunePauseMillis(long logPrunePauseMillis) {
+        this.logPrunePauseMillis = logPrunePauseMillis;
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.impl.jobs;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.unicon.sakora.api.csv.CsvSyncService;
+import net.unicon.sakora.api.csv.model.Membership;
+import net.unicon.sakora.api.csv.model.Person;
+import net.unicon.sakora.api.csv.model.SakoraLog;
+import net.unicon.sakora.impl.csv.dao.CsvSyncDao;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.StatefulJob;
+import org.sakaiproject.coursemanagement.api.CourseManagementService;
+import org.sakaiproject.coursemanagement.api.Enrollment;
+import org.sakaiproject.genericdao.api.search.Order;
+import org.sakaiproject.genericdao.api.search.Restriction;
+import org.sakaiproject.genericdao.api.search.Search;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+import org.sakaiproject.user.api.UserNotDefinedException;
+
+/**
+ * Offline compaction of the sakora tracking tables (SAKORA_MEMBERSHIP, SAKORA_PERSON),
+ * removes stale tracking records (not included in the latest feed) whose removal has already
+ * been applied in sakai so they are no longer selected and removed again on every run.
+ * 
+ * A stale membership is compacted when the CM container no longer exists or the user is no longer
+ * a member (enrollments: no longer enrolled or dropped), a stale person is compacted when the user
+ * no longer exists or has the suspended type. Anything else is left alone for the next sync to handle.
+ * 
+ * This is intended for cleaning up records left over from before trackingCompaction was enabled,
+ * it will not run while a sync is running.
+ */
+public class CsvTrackingCompactionJobBean implements StatefulJob {
+
+    private static final Log log = LogFactory.getLog(CsvTrackingCompactionJobBean.class);
+
+    private static final String[] MEMBERSHIP_MODES = {"section", "course", "enrollment"};
+
+    private CsvSyncService csvSyncService;
+    private CsvSyncDao dao;
+    private CourseManagementService cmService;
+    private UserDirectoryService userDirService;
+    private int pageSize = 1000;
+    private String suspended = "suspended";
+
+    public void execute(JobExecutionContext context) throws JobExecutionException {
+        if (csvSyncService.isSyncRunning()) {
+            log.warn("SakoraCSV tracking compaction skipped, a sync is currently running");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int memberships = 0;
+        for (String mode : MEMBERSHIP_MODES) {
+            memberships += compactMemberships(mode);
+        }
+        int people = compactPeople();
+        String msg = "Tracking compaction removed " + memberships + " membership and " + people + " person tracking records in " 
+                + (System.currentTimeMillis() - start) + " ms";
+        log.info("SakoraCSV " + msg);
+        dao.create(new SakoraLog(this.getClass().toString(), msg));
+    }
+
+    /**
+     * @return the number of stale membership tracking records removed for this mode
+     */
+    protected int compactMemberships(String mode) {
+        Search latestSearch = new Search();
+        latestSearch.addRestriction(new Restriction("mode", mode));
+        latestSearch.addOrder(new Order("inputTime", false));
+        latestSearch.setLimit(1);
+        Membership latest = dao.findOneBySearch(Membership.class, latestSearch);
+        if (latest == null) {
+            return 0;
+        }
+        int removed = 0;
+        long lastId = -1;
+        boolean done = false;
+        while (!done) {
+            // keyed paging (id > last id) so that deleted records do not shift the pages
+            Search search = new Search();
+            search.addRestriction(new Restriction("mode", mode));
+            search.addRestriction(new Restriction("inputTime", latest.getInputTime(), Restriction.LESS));
+            search.addRestriction(new Restriction("id", lastId, Restriction.GREATER));
+            search.addOrder(new Order("id"));
+            search.setLimit(pageSize);
+            List<Membership> page = dao.findBySearch(Membership.class, search);
+            if (page == null || page.isEmpty()) {
+                done = true;
+            } else {
+                Map<String, Set<String>> containerMembers = new HashMap<String, Set<String>>();
+                List<Long> ids = new ArrayList<Long>();
+                for (Membership membership : page) {
+                    lastId = membership.getId();
+                    try {
+                        if (isMembershipRemoved(mode, membership, containerMembers)) {
+                            ids.add(membership.getId());
+                        }
+                    } catch (RuntimeException e) {
+                        log.warn("SakoraCSV tracking compaction could not check "+mode+" membership ("+membership.getUserEid()+" in "+membership.getContainerEid()+"), leaving it: "+e);
+                    }
+                }
+                removed += delete(Membership.class, ids);
+            }
+        }
+        if (log.isDebugEnabled()) log.debug("SakoraCSV tracking compaction removed "+removed+" stale "+mode+" membership records");
+        return removed;
+    }
+
+    private boolean isMembershipRemoved(String mode, Membership membership, Map<String, Set<String>> containerMembers) {
+        String containerEid = membership.getContainerEid();
+        if ("enrollment".equals(mode)) {
+            if (!cmService.isEnrollmentSetDefined(containerEid)) {
+                return true;
+            }
+            Enrollment enrollment = cmService.findEnrollment(membership.getUserEid(), containerEid);
+            return enrollment == null || enrollment.isDropped();
+        }
+        // load the members once per container
+        Set<String> members = containerMembers.get(containerEid);
+        if (members == null) {
+            members = new HashSet<String>();
+            Set<org.sakaiproject.coursemanagement.api.Membership> cmMembers = null;
+            if ("section".equals(mode)) {
+                if (cmService.isSectionDefined(containerEid)) {
+                    cmMembers = cmService.getSectionMemberships(containerEid);
+                }
+            } else if (cmService.isCourseOfferingDefined(containerEid)) {
+                cmMembers = cmService.getCourseOfferingMemberships(containerEid);
+            }
+            if (cmMembers != null) {
+                for (org.sakaiproject.coursemanagement.api.Membership cmMember : cmMembers) {
+                    members.add(cmMember.getUserId());
+                }
+            }
+            containerMembers.put(containerEid, members);
+        }
+        return !members.contains(membership.getUserEid());
+    }
+
+    /**
+     * @return the number of stale person tracking records removed
+     */
+    protected int compactPeople() {
+        Search latestSearch = new Search();
+        latestSearch.addOrder(new Order("inputTime", false));
+        latestSearch.setLimit(1);
+        Person latest = dao.findOneBySearch(Person.class, latestSearch);
+        if (latest == null) {
+            return 0;
+        }
+        int removed = 0;
+        String lastEid = "";
+        boolean done = false;
+        while (!done) {
+            Search search = new Search();
+            search.addRestriction(new Restriction("inputTime", latest.getInputTime(), Restriction.LESS));
+            search.addRestriction(new Restriction("userEid", lastEid, Restriction.GREATER));
+            search.addOrder(new Order("userEid"));
+            search.setLimit(pageSize);
+            List<Person> page = dao.findBySearch(Person.class, search);
+            if (page == null || page.isEmpty()) {
+                done = true;
+            } else {
+                List<String> eids = new ArrayList<String>();
+                for (Person person : page) {
+                    lastEid = person.getUserEid();
+                    try {
+                        User user = userDirService.getUser(person.getUserId());
+                        if (suspended.equals(user.getType())) {
+                            eids.add(person.getUserEid());
+                        }
+                    } catch (UserNotDefinedException e) {
+                        // user was removed
+                        eids.add(person.getUserEid());
+                    } catch (RuntimeException e) {
+                        log.warn("SakoraCSV tracking compaction could not check person ("+person.getUserEid()+"), leaving it: "+e);
+                    }
+                }
+                removed += delete(Person.class, eids);
+            }
+        }
+        if (log.isDebugEnabled()) log.debug("SakoraCSV tracking compaction removed "+removed+" stale person records");
+        return removed;
+    }
+
+    private <T> int delete(Class<T> type, List<? extends Serializable> ids) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        dao.deleteSet(type, ids.toArray(new Serializable[ids.size()]));
+        return ids.size();
+    }
+
+    public void setCsvSyncService(CsvSyncService csvSyncService) {
+        this.csvSyncService = csvSyncService;
+    }
+
+    public void setDao(CsvSyncDao dao) {
+        this.dao = dao;
+    }
+
+    public void setCmService(CourseManagementService cmService) {
+        this.cmService = cmService;
+    }
+
+    public void setUserDirService(UserDirectoryService userDirService) {
+        this.userDirService = userDirService;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param suspended the user type assigned to disabled users (should match the CsvPersonHandler suspended value)
+     */
+    public void setSuspended(String suspended) {
+        this.suspended = suspended;
+    }
+
+}
@@ -1,3 +1,8 @@
 create index SAKORA_MEMBERSHIP_SEARCH_IDX on SAKORA_MEMBERSHIP (COURSE_EID, USER_EID, MODE, INPUT_TIME);
 create index SAKORA_PERSON_SEARCH_IDX on SAKORA_PERSON (INPUT_TIME);
 create index SAKORA_SESSION_SEARCH_IDX on SAKORA_SESSION (INPUT_TIME);
+create index SAKORA_LOG_TIME_IDX on SAKORA_LOG (TIME);
+create index SAKORA_LOG_SOURCE_IDX on SAKORA_LOG (SOURCE, TIME);
+create index SAKORA_RUN_START_IDX on SAKORA_RUN (START_TIME);
+create index SAKORA_RUN_HANDLER_RUN_IDX on SAKORA_RUN_HANDLER (RUN_ID);
+create index SAKORA_RUN_HANDLER_NAME_IDX on SAKORA_RUN_HANDLER (HANDLER_NAME, START_TIME);
@@ -0,0 +1,4 @@
+-- One time upgrade for net.unicon.sakora.csv.trackingUpsert=true (apply before enabling it, not run by auto.ddl):
+-- removes duplicate membership tracking records (keeps the newest) and adds the unique index the upsert needs
+delete m1 from SAKORA_MEMBERSHIP m1 join SAKORA_MEMBERSHIP m2 on m1.`MODE` = m2.`MODE` and m1.COURSE_EID = m2.COURSE_EID and m1.USER_EID = m2.USER_EID and m1.ID < m2.ID;
+create unique index SAKORA_MEMBERSHIP_UNIQUE_IDX on SAKORA_MEMBERSHIP (`MODE`, COURSE_EID, USER_EID);
@@ -0,0 +1,4 @@
+-- One time upgrade for net.unicon.sakora.csv.trackingUpsert=true (apply before enabling it, not run by auto.ddl):
+-- removes duplicate membership tracking records (keeps the newest) and adds the unique index the upsert needs
+delete from SAKORA_MEMBERSHIP m1 where exists (select 1 from SAKORA_MEMBERSHIP m2 where m2."MODE" = m1."MODE" and m2.COURSE_EID = m1.COURSE_EID and m2.USER_EID = m1.USER_EID and m2.ID > m1.ID);
+create unique index SAKORA_MEMBERSHIP_UNIQUE_IDX on SAKORA_MEMBERSHIP ("MODE", COURSE_EID, USER_EID);
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Sakai Foundation under one or more contributor
+ * license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership.
+ * The Sakai Foundation licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at:
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package net.unicon.sakora.tool;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.unicon.sakora.api.csv.CsvSyncMetric;
+import net.unicon.sakora.api.csv.CsvSyncService;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.component.cover.ComponentManager;
+
+/**
+ * Read only (GET) metrics endpoint for monitoring, renders {@link CsvSyncService#getMetrics()} in the
+ * Prometheus text exposition format (version 0.0.4), e.g. scrape http://localhost:8080/sakai-sakora-csv-tool/metrics
+ * 
+ * The endpoint does not require a login (scrapers cannot log in to Sakai) so it is limited to the
+ * remote addresses in net.unicon.sakora.csv.metricsAllowedAddresses in sakai.properties
+ * (comma separated, * allows all), only localhost is allowed unless it is set.
+ */
+@SuppressWarnings("serial")
+public class CsvMetricsServlet extends HttpServlet {
+
+    static final Log log = LogFactory.getLog(CsvMetricsServlet.class);
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String DEFAULT_ALLOWED_ADDRESSES = "127.0.0.1,0:0:0:0:0:0:0:1,::1";
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        ServerConfigurationService serverConfigurationService = (ServerConfigurationService) ComponentManager.get("org.sakaiproject.component.api.ServerConfigurationService");
+        String allowed = serverConfigurationService.getString("net.unicon.sakora.csv.metricsAllowedAddresses", DEFAULT_ALLOWED_ADDRESSES);
+        if (!isAllowed(allowed, req.getRemoteAddr())) {
+            log.warn("SakoraCSV metrics request from "+req.getRemoteAddr()+" denied (not in metricsAllowedAddresses)");
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        CsvSyncService csvSyncService = (CsvSyncService) ComponentManager.get("net.unicon.sakora.api.csv.CsvSyncService");
+        List<CsvSyncMetric> metrics = csvSyncService.getMetrics();
+
+        // the samples of one metric must be together, the _sum and _count samples belong to their summary
+        Map<String, List<CsvSyncMetric>> families = new LinkedHashMap<String, List<CsvSyncMetric>>();
+        for (CsvSyncMetric metric : metrics) {
+            String family = getFamily(metric);
+            List<CsvSyncMetric> samples = families.get(family);
+            if (samples == null) {
+                samples = new ArrayList<CsvSyncMetric>();
+                families.put(family, samples);
+            }
+            samples.add(metric);
+        }
+
+        resp.setContentType(CONTENT_TYPE);
+        resp.setHeader("Cache-Control", "no-cache");
+        PrintWriter out = resp.getWriter();
+        for (Map.Entry<String, List<CsvSyncMetric>> family : families.entrySet()) {
+            CsvSyncMetric first = family.getValue().get(0);
+            out.print("# HELP ");
+            out.print(family.getKey());
+            out.print(' ');
+            out.print(escapeHelp(first.getHelp()));
+            out.print('\n');
+            out.print("# TYPE ");
+            out.print(family.getKey());
+            out.print(' ');
+            out.print(first.getType());
+            out.print('\n');
+            for (CsvSyncMetric sample : family.getValue()) {
+                out.print(sample.getName());
+                if (!sample.getLabels().isEmpty()) {
+                    out.print('{');
+                    boolean firstLabel = true;
+                    for (Map.Entry<String, String> label : sample.getLabels().entrySet()) {
+                        if (!firstLabel) {
+                            out.print(',');
+                        }
+                        firstLabel = false;
+                        out.print(label.getKey());
+                        out.print("=\"");
+                        out.print(escapeLabel(label.getValue()));
+                        out.print('"');
+                    }
+                    out.print('}');
+                }
+                out.print(' ');
+                out.print(formatValue(sample.getValue()));
+                out.print('\n');
+            }
+        }
+        out.flush();
+    }
+
+    private static String getFamily(CsvSyncMetric metric) {
+        String name = metric.getName();
+        if (CsvSyncMetric.TYPE_SUMMARY.equals(metric.getType())) {
+            if (name.endsWith("_sum")) {
+                return name.substring(0, name.length() - 4);
+            } else if (name.endsWith("_count")) {
+                return name.substring(0, name.length() - 6);
+            }
+        }
+        return name;
+    }
+
+    static boolean isAllowed(String allowed, String remoteAddr) {
+        if (allowed == null || remoteAddr == null) {
+            return false;
+        }
+        for (String address : allowed.split(",")) {
+            if ("*".equals(address.trim()) || address.trim().equals(remoteAddr)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String formatValue(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String escapeHelp(String help) {
+        return help == null ? "" : help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String escapeLabel(String value) {
+        return value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
@@ -63,10 +63,19 @@ import com.oreilly.servlet.multipart.Part;
  * 
  * The path to upload the files to is configurable via:
  * net.unicon.sakora.csv.basePath in sakai.properties, it defaults to /tmp
+ * Each upload is written to its own batch dir in that path and is only queued for processing
+ * once all the files have been written (along with any overrides passed in the request).
  * 
  * If 'runJob' is passed in equal to 'true' the quartz sync job will be fired
  * off at the end of the request cycle.
  * 
+ * If 'resume' is passed in equal to 'true' the quartz sync job will be fired off to
+ * continue the last failed batch from its checkpoint (no files are needed).
+ * 
+ * If 'plan' is passed in equal to 'true' the uploaded files are NOT queued, instead the
+ * changes they would make are worked out (dry run) and the report is returned in the response,
+ * without any files the next queued batch is planned.
+ * 
  * Example: Calling this service to upload some of the unittest test data and run the sync
  * from a unix shell would look like:
  * 
@@ -91,6 +100,12 @@ public class CsvUploadServlet extends HttpServlet {
     private static final String OVERRIDE_USER_REMOVAL_MODE = "userRemovalMode";
     private static final String OVERRIDE_IGNORE_MEMBERSHIP_REMOVALS = "ignoreMembershipRemovals";
     private static final String OVERRIDE_IGNORE_MISSING_SESSIONS = "ignoreMissingSessions";
+    private static final String OVERRIDE_TRACKING_BULK_MODE = "trackingBulkMode";
+    private static final String OVERRIDE_TRACKING_COMPACTION = "trackingCompaction";
+    private static final String OVERRIDE_DIFF_MODE = "diffMode";
+    private static final String OVERRIDE_DELTA_FEED = "deltaFeed";
+    private static final String PARAM_RESUME = "resume";
+    private static final String PARAM_PLAN = "plan";
 
     static final Log log = LogFactory.getLog(CsvUploadServlet.class);
 
@@ -107,13 +122,17 @@ public class CsvUploadServlet extends HttpServlet {
 	    jobOverrides = new HashMap<String, String>();
 	    ServerConfigurationService serverConfigurationService = (ServerConfigurationService) ComponentManager.get("org.sakaiproject.component.api.ServerConfigurationService");
 
-	    String basePath = ((CsvSyncService)ComponentManager.get("net.unicon.sakora.api.csv.CsvSyncService")).getBatchUploadDir();
+	    CsvSyncService csvSyncService = (CsvSyncService)ComponentManager.get("net.unicon.sakora.api.csv.CsvSyncService");
+	    // each upload is written to its own batch dir which is queued (committed) once all the files are written
+	    String basePath = null;
 
 		// 1GB, should be enough, but it can be configured via net.unicon.sakora.csv.maxFileSize
 		int maxFileSize = 1000;
 		String username = "";
 		String password = "";
 		boolean runJob = false;
+		boolean resume = false;
+		boolean plan = false;
 		PrintWriter out = resp.getWriter();
 
 		maxFileSize = serverConfigurationService.getInt("net.unicon.sakora.csv.maxFileSize", maxFileSize);
@@ -134,8 +153,24 @@ public class CsvUploadServlet extends HttpServlet {
 		            runJob = true;
 		        }
 		    }
+		    else if (PARAM_RESUME.equals(part.getName()) && part.isParam()) {
+		        ParamPart paramPart = (ParamPart) part;
+		        if ("true".equals(paramPart.getStringValue())) {
+		            resume = true;
+		        }
+		    }
+		    else if (PARAM_PLAN.equals(part.getName()) && part.isParam()) {
+		        ParamPart paramPart = (ParamPart) part;
+		        if ("true".equals(paramPart.getStringValue())) {
+		            plan = true;
+		        }
+		    }
 		    else if ( (OVERRIDE_IGNORE_MISSING_SESSIONS.equals(part.getName()) 
 		            || OVERRIDE_IGNORE_MEMBERSHIP_REMOVALS.equals(part.getName())
+		            || OVERRIDE_TRACKING_BULK_MODE.equals(part.getName())
+		            || OVERRIDE_TRACKING_COMPACTION.equals(part.getName())
+		            || OVERRIDE_DIFF_MODE.equals(part.getName())
+		            || OVERRIDE_DELTA_FEED.equals(part.getName())
 		            ) && part.isParam()) {
 		        // boolean overrides here
 		        ParamPart paramPart = (ParamPart) part;
@@ -174,9 +209,9 @@ public class CsvUploadServlet extends HttpServlet {
 		            out.println("You are not authorized to use this service. (Specified username: [" + 
 		                    username + "] did not resolve to a super user). \n* Please ensure that parameters are passed before files");
 		        } else {
-		            File baseFile = new File(basePath);
-		            if (!baseFile.exists()) {
-		                baseFile.mkdir();
+		            if (basePath == null) {
+		                basePath = csvSyncService.createUploadBatch();
+		                log.info("SakoraCSV writing upload batch to: "+basePath);
 		            }
 		            String filename = basePath + File.separator + part.getName() + ".csv";
 		            log.info("SakoraCSV Processing file upload: "+filename);
@@ -202,9 +237,32 @@ public class CsvUploadServlet extends HttpServlet {
 		        log.warn("SakoraCSV POST request processing found unrecognized param ("+part.getName()+"), skipping...");
 		    }
 		}
-		if (runJob) {
+		if (plan) {
+		    // dry run only, nothing is queued or processed
+		    try {
+		        out.print(csvSyncService.plan(basePath, jobOverrides));
+		    } catch (IOException e) {
+		        log.error("SakoraCSV failed to plan batch from POST request: "+e, e);
+		        out.println("Unable to plan the batch: " + e.getMessage());
+		    } finally {
+		        if (basePath != null) {
+		            csvSyncService.discardUploadBatch(basePath);
+		        }
+		    }
+		    log.info("SakoraCSV completed POST request processing: planned batch by request");
+		    out.flush();
+		    return;
+		}
+		if (basePath != null) {
+		    // queue the batch for processing along with the overrides for this upload
+		    csvSyncService.commitUploadBatch(basePath, jobOverrides);
+		}
+		if (resume) {
+		    log.info("SakoraCSV completed POST request processing: resuming the last failed batch by request");
+		    runSyncJob(basePath != null, true);
+		} else if (runJob) {
 		    log.info("SakoraCSV completed POST request processing: doing immediate job run by request");
-			runSyncJob();
+			runSyncJob(basePath != null, false);
 		} else {
 		    log.info("SakoraCSV completed POST request processing");
 		}
@@ -213,8 +271,12 @@ public class CsvUploadServlet extends HttpServlet {
 	
 	/**
 	 * Fires off the quartz job for running the Sakara csv sync
+	 * 
+	 * @param batchQueued true if this request queued a batch (the overrides are stored with the batch),
+	 * otherwise the overrides are put in the job data map (legacy)
+	 * @param resume true to resume the last failed batch (the sync removes the flag once it is used)
 	 */
-	private void runSyncJob() {
+	private void runSyncJob(boolean batchQueued, boolean resume) {
 		String jobName = (String) ComponentManager.get("net.unicon.sakora.impl.jobs.DataLoaderJobBean.csv.jobName");
 		if (jobName == null || "".equals(jobName)) {
 			jobName = "SIS CSV Data Loader";
@@ -232,7 +294,7 @@ public class CsvUploadServlet extends HttpServlet {
 					}
 					jd.getJobDataMap().put(JobBeanWrapper.SPRING_BEAN_NAME, jobWrapper.getBeanId());
 					jd.getJobDataMap().put(JobBeanWrapper.JOB_TYPE, jobWrapper.getJobType());
-					if (jobOverrides != null && !jobOverrides.isEmpty()) {
+					if (!batchQueued && jobOverrides != null && !jobOverrides.isEmpty()) {
 						if (log.isDebugEnabled()) log.debug("SakoraCSV inserting "+jobOverrides.size()+" job overrides into job data map: "+jobOverrides);
 						jd.getJobDataMap().putAll(jobOverrides);
 					} else {
@@ -240,6 +302,13 @@ public class CsvUploadServlet extends HttpServlet {
 					    jd.getJobDataMap().remove(OVERRIDE_IGNORE_MISSING_SESSIONS);
 					    jd.getJobDataMap().remove(OVERRIDE_IGNORE_MEMBERSHIP_REMOVALS);
 					    jd.getJobDataMap().remove(OVERRIDE_USER_REMOVAL_MODE);
+					    jd.getJobDataMap().remove(OVERRIDE_TRACKING_BULK_MODE);
+					    jd.getJobDataMap().remove(OVERRIDE_TRACKING_COMPACTION);
+					    jd.getJobDataMap().remove(OVERRIDE_DIFF_MODE);
+					    jd.getJobDataMap().remove(OVERRIDE_DELTA_FEED);
+					}
+					if (resume) {
+					    jd.getJobDataMap().put(PARAM_RESUME, "true");
 					}
 					scheduler.addJob(jd, true); // need to always update the job details
 				} catch (SchedulerException e) {